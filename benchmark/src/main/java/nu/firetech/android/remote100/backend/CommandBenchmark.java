@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and dispatch of commands.
+ * 
+ * The set* benchmarks cycle through all values of one control through the
+ * public Car100 API, connected to a NullTransport, which is what the
+ * control loop pays for every change. The encode* benchmarks measure just
+ * picking the frame for a transition and writing it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+	private static final byte[] DIRS = {Car100.DIR_LEFT, Car100.DIR_STRAIGHT, Car100.DIR_RIGHT, Car100.DIR_STRAIGHT};
+	private static final byte[] ACCS = {Car100.ACC_FORWARD, Car100.ACC_STOP, Car100.ACC_REVERSE, Car100.ACC_STOP};
+	private static final byte[] GEARS = {1, 2, 3, 2};
+	
+	private IoEngine engine;
+	private Car100 car;
+	private int step = 0;
+	private byte sentDir = Car100.DIR_STRAIGHT;
+	
+	private final OutputStream sink = new OutputStream() {
+		private long count;
+		
+		@Override
+		public void write(int b) {
+			count++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	};
+	
+	@Setup
+	public void setup() throws IOException {
+		engine = new IoEngine(1);
+		car = Car100.connect(new NullTransport(), engine, null);
+	}
+	
+	@TearDown
+	public void tearDown() {
+		car.close();
+		engine.shutdown();
+	}
+	
+	@Benchmark
+	public boolean setDir() {
+		return car.setDir(DIRS[step++ & 3]);
+	}
+	
+	@Benchmark
+	public boolean setAcc() {
+		return car.setAcc(ACCS[step++ & 3]);
+	}
+	
+	@Benchmark
+	public boolean setGear() {
+		return car.setGear(GEARS[step++ & 3]);
+	}
+	
+	@Benchmark
+	public void encodeDir() throws IOException {
+		byte dir = DIRS[step++ & 3];
+		sink.write(CommandFrames.DIR[sentDir + 1][dir + 1]);
+		sentDir = dir;
+	}
+	
+	@Benchmark
+	public void encodeAcc() throws IOException {
+		sink.write(CommandFrames.ACC[ACCS[step++ & 3] + 1]);
+	}
+	
+	@Benchmark
+	public void encodeGear() throws IOException {
+		sink.write(CommandFrames.GEAR[GEARS[step++ & 3] - 1]);
+	}
+}
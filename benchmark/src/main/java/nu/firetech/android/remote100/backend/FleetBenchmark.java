@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Steering a whole fleet, through TCP loopback links to one CarSimulator
+ * per car.
+ * 
+ * Each operation changes the steering of all cars and waits until every
+ * simulator has decoded the resulting key event. The number of writer
+ * threads stays at ioThreads whatever the number of cars, so this shows
+ * what the fan-out costs per added car.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FleetBenchmark {
+	private static final long CONNECT_TIMEOUT = 10000;
+	
+	@Param({"1", "4", "16"})
+	public int cars;
+	
+	@Param({"2"})
+	public int ioThreads;
+	
+	private CarSimulator[] simulators;
+	private CarFleet fleet;
+	private int[] events;
+	private boolean left = false;
+	
+	@Setup
+	public void setup() throws IOException, InterruptedException {
+		simulators = new CarSimulator[cars];
+		events = new int[cars];
+		fleet = new CarFleet(ioThreads);
+		for (int i = 0; i < cars; i++) {
+			simulators[i] = new CarSimulator(0);
+			fleet.add(new SocketTransport("127.0.0.1", simulators[i].getPort()));
+		}
+		long timeout = System.currentTimeMillis() + CONNECT_TIMEOUT;
+		while (fleet.getTargetStatus() != Car100.STATUS_READY) {
+			if (System.currentTimeMillis() > timeout) {
+				throw new IOException("Could not connect to simulators");
+			}
+			Thread.sleep(10);
+		}
+	}
+	
+	@TearDown
+	public void tearDown() {
+		fleet.close();
+		for (CarSimulator simulator : simulators) {
+			simulator.close();
+		}
+	}
+	
+	@Benchmark
+	public int steer() {
+		for (int i = 0; i < cars; i++) {
+			events[i] = simulators[i].getKeyEvents();
+		}
+		left = !left;
+		fleet.setDir(left ? Car100.DIR_LEFT : Car100.DIR_STRAIGHT);
+		for (int i = 0; i < cars; i++) {
+			while (simulators[i].getKeyEvents() == events[i]) {
+				Thread.yield();
+			}
+		}
+		return cars;
+	}
+}
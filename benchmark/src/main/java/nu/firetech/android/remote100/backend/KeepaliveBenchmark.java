@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * An hour of keepalive and reconnects, run in virtual time.
+ * 
+ * Each operation drives a CarServer, with its Car100, CommandScheduler and
+ * Heartbeat, through one hour of a car being driven, with all timers and
+ * I/O work on a VirtualClock (see IoEngine(Clock)). The car is a
+ * ScriptedTransport answering each probe after rtt ms, except every
+ * lossEvery:th probe, which is lost, so the link is declared dead and
+ * reconnected after a (seeded) Backoff delay. Every run has the same
+ * outcome, and the time per operation is what an hour of the timing logic
+ * costs, along with a reader thread per connection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeepaliveBenchmark {
+	private static final long HOUR = 3600 * 1000000000L;
+	private static final long SEED = 100;
+	
+	@Param({"20", "80"})
+	public int rtt;
+	
+	@Param({"50"})
+	public int lossEvery;
+	
+	private ScriptedTransport transport;
+	private volatile int deaths;
+	
+	private final CarListener listener = new CarListener() {
+		@Override
+		public void onStatusChanged(String address, byte status) {}
+		
+		@Override
+		public void onLinkLost(String address) {
+			deaths++;
+		}
+		
+		@Override
+		public void onChargeChanged(String address, byte charge) {}
+		
+		@Override
+		public void onCommandFailed(String address, IOException e) {}
+		
+		@Override
+		public void onStopLate(String address, long latency) {}
+	};
+	
+	@Benchmark
+	public int hour() {
+		VirtualClock clock = new VirtualClock();
+		IoEngine engine = new IoEngine(clock);
+		transport = new ScriptedTransport(clock, rtt, lossEvery);
+		deaths = 0;
+		CarServer server = new CarServer(transport, engine, listener, new Backoff(
+				CarServer.MIN_RETRY_DELAY, CarServer.MAX_RETRY_DELAY, new Random(SEED)));
+		clock.advance(HOUR);
+		
+		// Let the close sequence be written, then finish closing at once.
+		server.requestClose();
+		clock.advance(0);
+		server.awaitClose(clock.nanoTime());
+		engine.shutdown();
+		return deaths;
+	}
+	
+	/**
+	 * @return The number of probes sent in the last hour.
+	 */
+	public int getProbes() {
+		return transport.getProbes();
+	}
+	
+	/**
+	 * @return The number of dead links in the last hour.
+	 */
+	public int getDeaths() {
+		return deaths;
+	}
+}
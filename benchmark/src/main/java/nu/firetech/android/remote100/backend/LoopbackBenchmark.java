@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The full command path, through a TCP loopback link to a CarSimulator.
+ * 
+ * Each operation changes the steering and waits until the simulator has
+ * decoded the resulting key event, so the time per operation covers the
+ * Car100 API, the command scheduler, the transport and the simulator's
+ * decoding.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackBenchmark {
+	private CarSimulator simulator;
+	private IoEngine engine;
+	private Car100 car;
+	private boolean left = false;
+	
+	@Setup
+	public void setup() throws IOException {
+		simulator = new CarSimulator(0);
+		engine = new IoEngine(1);
+		car = Car100.connect(new SocketTransport("127.0.0.1", simulator.getPort()), engine, null);
+		byte status = car.getStatus();
+		while (status != Car100.STATUS_READY) {
+			if (status == Car100.STATUS_NO_LINK) {
+				throw new IOException("Could not connect to simulator");
+			}
+			status = car.awaitStatusChange(status);
+		}
+	}
+	
+	@TearDown
+	public void tearDown() {
+		car.close();
+		engine.shutdown();
+		simulator.close();
+	}
+	
+	@Benchmark
+	public int steer() {
+		int events = simulator.getKeyEvents();
+		left = !left;
+		car.setDir(left ? Car100.DIR_LEFT : Car100.DIR_STRAIGHT);
+		while (simulator.getKeyEvents() == events) {
+			Thread.yield();
+		}
+		return events;
+	}
+}
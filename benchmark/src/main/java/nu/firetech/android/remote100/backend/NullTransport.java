@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A transport that never delivers any input and throws all output away.
+ * 
+ * Used to measure the cost of the command path without any I/O.
+ */
+public class NullTransport implements CarTransport {
+	private volatile boolean closed = false;
+	private volatile long written = 0;
+	
+	private final InputStream input = new InputStream() {
+		@Override
+		public int read() throws IOException {
+			synchronized (NullTransport.this) {
+				while (!closed) {
+					try {
+						NullTransport.this.wait();
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted");
+					}
+				}
+			}
+			return -1;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return read();
+		}
+	};
+	
+	private final OutputStream output = new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			written++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("Closed");
+			}
+			written += len;
+		}
+	};
+	
+	@Override
+	public void connect() throws IOException {}
+	
+	@Override
+	public InputStream getInputStream() {
+		return input;
+	}
+	
+	@Override
+	public OutputStream getOutputStream() {
+		return output;
+	}
+	
+	@Override
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+	
+	@Override
+	public String getAddress() {
+		return "null";
+	}
+	
+	/**
+	 * @return The number of bytes written so far.
+	 */
+	public long getWritten() {
+		return written;
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of input from the car.
+ * 
+ * The "transcript" traffic is a session as the car sends it (status burst
+ * on connect, charging, fully charged, driving), the "synthetic" traffic
+ * is random lines mixing known messages with noise. Both are fed to the
+ * parser in chunks of the given size, as the reader thread would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+	@Param({"transcript", "synthetic"})
+	public String traffic;
+	
+	@Param({"1", "7", "64", "256"})
+	public int chunkSize;
+	
+	private byte[] data;
+	private MessageParser parser;
+	private int messages;
+	
+	@Setup
+	public void setup() throws IOException {
+		if (traffic.equals("transcript")) {
+			data = load("/traffic/transcript.txt");
+		} else {
+			data = synthetic(4096, 42);
+		}
+		parser = new MessageParser(new MessageParser.Listener() {
+			@Override
+			public void onMessage(int message) {
+				messages += message + 1;
+			}
+		});
+	}
+	
+	@Benchmark
+	public int parse() throws IOException {
+		for (int pos = 0; pos < data.length; pos += chunkSize) {
+			parser.feed(data, pos, Math.min(chunkSize, data.length - pos));
+		}
+		return messages;
+	}
+	
+	/* Load traffic from a resource. */
+	static byte[] load(String name) throws IOException {
+		InputStream is = ParserBenchmark.class.getResourceAsStream(name);
+		if (is == null) {
+			throw new IOException("Missing resource: " + name);
+		}
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = is.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		} finally {
+			is.close();
+		}
+	}
+	
+	/* Generate random lines of input, of roughly the given size. */
+	static byte[] synthetic(int size, long seed) {
+		String[] lines = {"Charging", "Ready", "Speed=2", "AT+CKPD=\"e\"", "ERROR", "+CIND: 1,0"};
+		Random random = new Random(seed);
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < size) {
+			sb.append("\r\n").append(lines[random.nextInt(lines.length)]).append("\r\n");
+		}
+		byte[] data = new byte[sb.length()];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte)sb.charAt(i);
+		}
+		return data;
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * An in-memory car, timed by a VirtualClock.
+ * 
+ * After each connect, the car sends its status (ready to drive) after rtt
+ * ms, and answers each heartbeat probe after rtt ms, except every
+ * lossEvery:th probe, which is lost. Everything else written is thrown
+ * away.
+ * 
+ * Each line is handed to the Car100 reader thread from the thread driving
+ * the clock, which then waits until the reader has dealt with it and is
+ * waiting for more input. Likewise, closing the link waits for the reader
+ * to be gone. The reader never races the clock, so a run repeats exactly.
+ */
+public class ScriptedTransport implements CarTransport {
+	private static final byte[] STATUS_LINE = "\r\nSpeed=2\r\n".getBytes();
+	private static final byte[] REPLY_LINE = "\r\nOK\r\n".getBytes();
+	
+	private final Clock clock;
+	private final long rtt;
+	private final int lossEvery;
+	
+	// The input of the current connection.
+	private volatile Input input = new Input();
+	
+	private volatile int probes = 0;
+	
+	private final OutputStream output = new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			Input in = input;
+			if (in.closed) {
+				throw new IOException("Closed");
+			}
+			if (len == CommandFrames.PROBE.length &&
+					Arrays.equals(Arrays.copyOfRange(b, off, off + len), CommandFrames.PROBE)) {
+				probes++;
+				if (lossEvery <= 0 || probes % lossEvery != 0) {
+					in.send(REPLY_LINE);
+				}
+			}
+		}
+	};
+	
+	/**
+	 * @param clock The clock to time the car by.
+	 * @param rtt The time (in ms) the car takes to answer.
+	 * @param lossEvery Lose every lossEvery:th probe, or 0 to lose none.
+	 */
+	public ScriptedTransport(Clock clock, int rtt, int lossEvery) {
+		this.clock = clock;
+		this.rtt = rtt * 1000000L;
+		this.lossEvery = lossEvery;
+	}
+	
+	@Override
+	public void connect() {
+		input = new Input();
+		input.send(STATUS_LINE);
+	}
+	
+	@Override
+	public InputStream getInputStream() {
+		return input;
+	}
+	
+	@Override
+	public OutputStream getOutputStream() {
+		return output;
+	}
+	
+	@Override
+	public void close() {
+		input.close();
+	}
+	
+	@Override
+	public String getAddress() {
+		return "scripted";
+	}
+	
+	/**
+	 * @return The number of probes written so far.
+	 */
+	public int getProbes() {
+		return probes;
+	}
+	
+	/* The input of one connection. */
+	private class Input extends InputStream {
+		private byte[] line;
+		private int pos = 0;
+		private boolean waiting = false;
+		private volatile boolean closed = false;
+		private Thread reader;
+		
+		/* Have the car send a line after rtt. */
+		public void send(final byte[] data) {
+			clock.schedule(new Runnable() {
+				@Override
+				public void run() {
+					deliver(data);
+				}
+			}, rtt);
+		}
+		
+		/* Hand a line to the reader, and wait until it's done with it. */
+		private synchronized void deliver(byte[] data) {
+			if (closed) {
+				return;
+			}
+			line = data;
+			pos = 0;
+			waiting = false;
+			notifyAll();
+			while (!closed && !(waiting && pos == line.length)) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+		
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF);
+		}
+		
+		@Override
+		public synchronized int read(byte[] b, int off, int len) throws IOException {
+			reader = Thread.currentThread();
+			while (!closed && (line == null || pos == line.length)) {
+				waiting = true;
+				notifyAll();
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted");
+				}
+			}
+			waiting = false;
+			if (closed) {
+				return -1;
+			}
+			int count = Math.min(len, line.length - pos);
+			System.arraycopy(line, pos, b, off, count);
+			pos += count;
+			return count;
+		}
+		
+		/* Close the link, and unless called by the reader, wait for it to finish. */
+		@Override
+		public void close() {
+			Thread r;
+			synchronized (this) {
+				closed = true;
+				notifyAll();
+				r = reader;
+			}
+			if (r != null && r != Thread.currentThread()) {
+				try {
+					r.join();
+				} catch (InterruptedException e) {}
+			}
+		}
+	}
+}
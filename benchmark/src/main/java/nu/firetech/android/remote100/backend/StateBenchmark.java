@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Stress test of the car state under concurrent control input and status
+ * updates.
+ * 
+ * Two threads steer, one accelerates and stops, one reads snapshots and
+ * one feeds alternating status lines (each of which resets the controls)
+ * to the car's reader thread, all against the same car. The state retries
+ * counter shows how often a compare-and-set had to be retried because
+ * another thread got there first.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateBenchmark {
+	private static final byte[] READY = "\r\nSpeed=2\r\n".getBytes();
+	private static final byte[] CHARGING = "\r\nCharging\r\n".getBytes();
+	
+	private IoEngine engine;
+	private Car100 car;
+	private PipedOutputStream feed;
+	
+	/**
+	 * Counts state retries, reported by the status thread only.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Contention {
+		public long stateRetries;
+		private long start;
+		
+		@Setup(Level.Iteration)
+		public void start() {
+			start = Metrics.getStateContention();
+		}
+		
+		@TearDown(Level.Iteration)
+		public void stop() {
+			stateRetries = Metrics.getStateContention() - start;
+		}
+	}
+	
+	/**
+	 * Per-thread position in the input cycle.
+	 */
+	@State(Scope.Thread)
+	public static class Step {
+		public int step = 0;
+	}
+	
+	@Setup
+	public void setup() throws IOException {
+		feed = new PipedOutputStream();
+		final InputStream input = new PipedInputStream(feed, 4096);
+		engine = new IoEngine(1);
+		car = Car100.connect(new CarTransport() {
+			@Override
+			public void connect() {}
+			
+			@Override
+			public InputStream getInputStream() {
+				return input;
+			}
+			
+			@Override
+			public OutputStream getOutputStream() {
+				return new OutputStream() {
+					@Override
+					public void write(int b) {}
+					
+					@Override
+					public void write(byte[] b, int off, int len) {}
+				};
+			}
+			
+			@Override
+			public void close() throws IOException {
+				input.close();
+			}
+			
+			@Override
+			public String getAddress() {
+				return "pipe";
+			}
+		}, engine, null);
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		car.close();
+		engine.shutdown();
+		feed.close();
+	}
+	
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(2)
+	public boolean steer(Step s) {
+		return car.setDir((byte)((s.step++ % 3) - 1));
+	}
+	
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(1)
+	public boolean accelerate(Step s) {
+		return car.setAcc((s.step++ & 1) == 0 ? Car100.ACC_FORWARD : Car100.ACC_STOP);
+	}
+	
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(1)
+	public CarState read() {
+		return car.getState();
+	}
+	
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(1)
+	public void status(Step s, Contention c) throws IOException {
+		feed.write((s.step++ & 1) == 0 ? READY : CHARGING);
+	}
+}
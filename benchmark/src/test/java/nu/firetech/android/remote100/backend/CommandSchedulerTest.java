@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The lanes and command rate of the CommandScheduler, run on a VirtualClock.
+ * 
+ * The scheduler runs as timers on the clock (see IoEngine(Clock)), so it
+ * only writes when the clock is advanced, and each frame written is kept.
+ */
+public class CommandSchedulerTest {
+	private static final long MS = 1000000L;
+	
+	private VirtualClock clock;
+	private AtomicReference<CarState> state;
+	private CommandScheduler scheduler;
+	private List<byte[]> frames;
+	private List<Integer> committed;
+	private int lateStops;
+	
+	/* Start a scheduler on a new clock, for a car that is ready to drive. */
+	private void start() {
+		clock = new VirtualClock();
+		state = new AtomicReference<CarState>(CarState.INITIAL.withStatus(Car100.STATUS_READY));
+		frames = new ArrayList<byte[]>();
+		committed = new ArrayList<Integer>();
+		lateStops = 0;
+		scheduler = new CommandScheduler(new IoEngine(clock), state, new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte)b }, 0, 1);
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				frames.add(Arrays.copyOfRange(b, off, off + len));
+			}
+		}, new CommandScheduler.Listener() {
+			@Override
+			public void onWriteFailed(IOException e) {
+				throw new AssertionError(e);
+			}
+			
+			@Override
+			public void onStopLate(long latency) {
+				lateStops++;
+			}
+			
+			@Override
+			public void onCommitted(byte dir, byte acc, byte gear) {
+				committed.add(ManeuverRecorder.pack(dir, acc, gear));
+			}
+		});
+	}
+	
+	/* Change the wanted state and wake the scheduler, as Car100 does. */
+	private void set(byte dir, byte acc, byte gear) {
+		state.set(state.get().withDir(dir).withAcc(acc, clock.nanoTime()).withGear(gear));
+		scheduler.wake();
+	}
+	
+	/* Check the frames written since the last call. */
+	private void assertWritten(byte[]... expected) {
+		assert frames.size() == expected.length : frames.size() + " frames written, expected " + expected.length;
+		for (int i = 0; i < expected.length; i++) {
+			assert Arrays.equals(frames.get(i), expected[i]) : "Frame " + i + " was " + new String(frames.get(i));
+		}
+		frames.clear();
+	}
+	
+	public void testLanesInPriorityOrder() {
+		start();
+		set(Car100.DIR_STRAIGHT, Car100.ACC_FORWARD, (byte)2);
+		clock.advance(0);
+		assertWritten(CommandFrames.ACC[Car100.ACC_FORWARD + 1]);
+		
+		// Everything at once: gear, motion, protocol and a stop.
+		scheduler.answer();
+		scheduler.probe();
+		set(Car100.DIR_LEFT, Car100.ACC_STOP, (byte)3);
+		clock.advance(0);
+		assertWritten(
+				CommandFrames.ACC[Car100.ACC_STOP + 1],
+				CommandFrames.ANSWER_OK,
+				CommandFrames.PROBE,
+				CommandFrames.DIR[Car100.DIR_STRAIGHT + 1][Car100.DIR_LEFT + 1],
+				CommandFrames.GEAR[3 - 1]);
+		assert scheduler.getStopCount() == 1 : scheduler.getStopCount() + " stops";
+		assert scheduler.getStopLatencyMax() == 0 : "Stop latency " + scheduler.getStopLatencyMax();
+		assert lateStops == 0 : lateStops + " late stops";
+	}
+	
+	public void testRateHoldsCommandsOnly() {
+		start();
+		scheduler.setCommandRate(10);
+		set(Car100.DIR_STRAIGHT, Car100.ACC_FORWARD, (byte)2);
+		clock.advance(0);
+		assertWritten(CommandFrames.ACC[Car100.ACC_FORWARD + 1]);
+		
+		// Motion is held until 100 ms after the last command...
+		clock.advance(10 * MS);
+		set(Car100.DIR_RIGHT, Car100.ACC_FORWARD, (byte)2);
+		clock.advance(0);
+		assertWritten();
+		
+		// ...but protocol frames are not.
+		scheduler.answer();
+		clock.advance(0);
+		assertWritten(CommandFrames.ANSWER_OK);
+		
+		// Input during the hold is merged, only the latest is sent.
+		clock.advance(50 * MS);
+		set(Car100.DIR_LEFT, Car100.ACC_FORWARD, (byte)2);
+		clock.advance(39 * MS);
+		assertWritten();
+		clock.advance(1 * MS);
+		assertWritten(CommandFrames.DIR[Car100.DIR_STRAIGHT + 1][Car100.DIR_LEFT + 1]);
+		
+		// A stop is never held.
+		clock.advance(1 * MS);
+		set(Car100.DIR_LEFT, Car100.ACC_STOP, (byte)2);
+		clock.advance(0);
+		assertWritten(CommandFrames.ACC[Car100.ACC_STOP + 1]);
+		assert scheduler.getStopLatencyMax() == 0 : "Stop latency " + scheduler.getStopLatencyMax();
+		
+		// The next command waits for the rate again, counted from the stop.
+		set(Car100.DIR_STRAIGHT, Car100.ACC_STOP, (byte)2);
+		clock.advance(99 * MS);
+		assertWritten();
+		clock.advance(1 * MS);
+		assertWritten(CommandFrames.DIR[Car100.DIR_LEFT + 1][Car100.DIR_STRAIGHT + 1]);
+		assert scheduler.getCommandCount() == 4 : scheduler.getCommandCount() + " commands";
+	}
+	
+	public void testCommitsWhatIsWritten() {
+		start();
+		scheduler.setCommandRate(10);
+		set(Car100.DIR_STRAIGHT, Car100.ACC_FORWARD, (byte)2);
+		clock.advance(0);
+		
+		// Input merged during the hold is never committed, only the latest.
+		set(Car100.DIR_RIGHT, Car100.ACC_FORWARD, (byte)2);
+		clock.advance(50 * MS);
+		set(Car100.DIR_LEFT, Car100.ACC_FORWARD, (byte)2);
+		clock.advance(50 * MS);
+		
+		// The stop is committed on its own, before the steering.
+		set(Car100.DIR_STRAIGHT, Car100.ACC_STOP, (byte)2);
+		clock.advance(100 * MS);
+		assert committed.equals(Arrays.asList(
+				ManeuverRecorder.pack(Car100.DIR_STRAIGHT, Car100.ACC_STOP, (byte)2),
+				ManeuverRecorder.pack(Car100.DIR_STRAIGHT, Car100.ACC_FORWARD, (byte)2),
+				ManeuverRecorder.pack(Car100.DIR_LEFT, Car100.ACC_FORWARD, (byte)2),
+				ManeuverRecorder.pack(Car100.DIR_LEFT, Car100.ACC_STOP, (byte)2),
+				ManeuverRecorder.pack(Car100.DIR_STRAIGHT, Car100.ACC_STOP, (byte)2))) : "Committed " + committed;
+		assert scheduler.getCommitted() == committed.get(committed.size() - 1) : "Committed state is " + scheduler.getCommitted();
+	}
+	
+	public void testRepliesToProbesOnly() {
+		start();
+		set(Car100.DIR_STRAIGHT, Car100.ACC_FORWARD, (byte)2);
+		scheduler.probe();
+		clock.advance(0);
+		assert scheduler.onReply() : "Probe not answered";
+		
+		// A lost probe is given up on, the next one is answered again.
+		scheduler.probe();
+		clock.advance(0);
+		scheduler.probeLost();
+		scheduler.probe();
+		clock.advance(0);
+		assert scheduler.onReply() : "Probe after a lost one not answered";
+	}
+	
+	public void testRepliesToKeyEvents() {
+		start();
+		set(Car100.DIR_STRAIGHT, Car100.ACC_FORWARD, (byte)2);
+		scheduler.probe();
+		clock.advance(0);
+		
+		// Until the car has answered more than the probes, a reply to the
+		// key event can't be told from one to the probe...
+		assert scheduler.onReply() : "First reply not taken for the probe";
+		assert !scheduler.onReply() : "Second reply taken for the probe";
+		
+		// ...but after that the key events are owed answers first.
+		set(Car100.DIR_LEFT, Car100.ACC_FORWARD, (byte)2);
+		clock.advance(0);
+		scheduler.probe();
+		clock.advance(0);
+		assertWritten(
+				CommandFrames.PROBE,
+				CommandFrames.ACC[Car100.ACC_FORWARD + 1],
+				CommandFrames.DIR[Car100.DIR_STRAIGHT + 1][Car100.DIR_LEFT + 1],
+				CommandFrames.PROBE);
+		assert !scheduler.onReply() : "Reply to the key event taken for the probe";
+		assert scheduler.onReply() : "Probe not answered";
+	}
+	
+	public void testCloseSequenceFirst() {
+		start();
+		scheduler.setCommandRate(10);
+		set(Car100.DIR_RIGHT, Car100.ACC_FORWARD, (byte)1);
+		scheduler.answer();
+		scheduler.requestClose();
+		clock.advance(1000 * MS);
+		assertWritten(CommandFrames.CLOSE);
+		assert scheduler.awaitClose(clock.nanoTime()) : "Close sequence not written";
+	}
+}
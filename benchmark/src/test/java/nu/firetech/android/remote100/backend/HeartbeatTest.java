@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+/**
+ * Dead-link detection by the Heartbeat, run on a VirtualClock.
+ * 
+ * The car answers each probe after RTT, until the link dies, and the
+ * heartbeat is ticked every Heartbeat.TICK ms, as Car100 does.
+ */
+public class HeartbeatTest {
+	private static final long MS = 1000000L;
+	private static final long RTT = 20 * MS;
+	private static final int BUDGET = 500;
+	
+	private VirtualClock clock;
+	private Heartbeat heartbeat;
+	
+	// The time the link dies at, after which probes go unanswered.
+	private long diesAt;
+	
+	// Whether the car answers probes at all.
+	private boolean answers;
+	
+	// The time of the last input from the car, or 0.
+	private long lastInput;
+	
+	private int probes;
+	private long deadAt;
+	private long silence;
+	
+	/* Start a heartbeat on a new clock, ticked like Car100 does. */
+	private void start() {
+		clock = new VirtualClock();
+		diesAt = Long.MAX_VALUE;
+		answers = true;
+		lastInput = 0;
+		probes = 0;
+		deadAt = 0;
+		heartbeat = new Heartbeat(clock, new Heartbeat.Listener() {
+			@Override
+			public void sendProbe() {
+				probes++;
+				final long reply = clock.nanoTime() + RTT;
+				if (answers && reply - diesAt < 0) {
+					clock.schedule(new Runnable() {
+						@Override
+						public void run() {
+							lastInput = reply;
+							heartbeat.onReply();
+						}
+					}, RTT);
+				}
+			}
+			
+			@Override
+			public void onProbeLost() {}
+			
+			@Override
+			public void onDead(long time) {
+				if (deadAt == 0) {
+					deadAt = clock.nanoTime();
+					silence = time;
+				}
+			}
+		});
+		heartbeat.setBudget(BUDGET);
+		clock.repeat(new Runnable() {
+			@Override
+			public void run() {
+				heartbeat.tick(Car100.STATUS_READY, lastInput);
+			}
+		}, Heartbeat.TICK * MS);
+	}
+	
+	public void testDeadLinkNoticedWithinBudget() {
+		// Let the link die at every point of a probe interval.
+		for (long offset = 0; offset < BUDGET / 4 * MS; offset += 5 * MS) {
+			start();
+			diesAt = VirtualClock.ORIGIN + 2000 * MS + offset;
+			clock.advance(2000 * MS + offset + 2 * BUDGET * MS);
+			
+			assert deadAt != 0 : "Dead link not noticed, dying " + offset / MS + " ms into an interval";
+			assert deadAt - diesAt <= BUDGET * MS : "Dead link noticed after " + (deadAt - diesAt) / MS + " ms";
+			assert silence == deadAt - lastInput : "Silence " + silence + " reported, was " + (deadAt - lastInput);
+		}
+	}
+	
+	public void testLiveLinkNeverDead() {
+		start();
+		clock.advance(3600 * 1000 * MS);
+		
+		assert deadAt == 0 : "Live link declared dead";
+		assert heartbeat.getQuality() == 100 : "Quality " + heartbeat.getQuality();
+		assert heartbeat.getRtt() == RTT : "RTT " + heartbeat.getRtt();
+		// A probe every budget / 4 while driving, from the first tick.
+		assert probes == (3600 * 1000 - Heartbeat.TICK) / (BUDGET / 4) + 1 : probes + " probes in an hour";
+	}
+	
+	public void testOtherInputKeepsLinkAlive() {
+		start();
+		diesAt = VirtualClock.ORIGIN + 1000 * MS;
+		clock.repeat(new Runnable() {
+			@Override
+			public void run() {
+				lastInput = clock.nanoTime();
+			}
+		}, 100 * MS);
+		clock.advance(60 * 1000 * MS);
+		
+		assert deadAt == 0 : "Link with input declared dead";
+		assert heartbeat.getQuality() < 10 : "Quality " + heartbeat.getQuality();
+	}
+	
+	public void testSilentCarNotDeclaredDead() {
+		start();
+		answers = false;
+		clock.advance(60 * 1000 * MS);
+		
+		assert deadAt == 0 : "Car never answering declared dead";
+		// Only probed as rarely as the old keepalive, once it has missed a few.
+		assert probes < 20 : probes + " probes in a minute";
+	}
+}
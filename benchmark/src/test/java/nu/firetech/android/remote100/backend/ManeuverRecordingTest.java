@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A ManeuverRecorder recording, timed by a VirtualClock, and its replay by
+ * a ManeuverPlayer into a CarSimulator, recording what is written to it.
+ * 
+ * The transitions are spaced so that the times between them take every
+ * varint length from one to four bytes.
+ */
+public class ManeuverRecordingTest {
+	private static final long US = 1000L;
+	
+	// The time (in us) before each transition, and the transition.
+	private static final long[] DELTAS = { 0, 127, 128, 16383, 16384, 2097151, 2097152 };
+	private static final byte[][] STATES = {
+		{ Car100.DIR_STRAIGHT, Car100.ACC_FORWARD, 1 },
+		{ Car100.DIR_LEFT, Car100.ACC_FORWARD, 1 },
+		{ Car100.DIR_RIGHT, Car100.ACC_FORWARD, 2 },
+		{ Car100.DIR_RIGHT, Car100.ACC_REVERSE, 2 },
+		{ Car100.DIR_STRAIGHT, Car100.ACC_STOP, 3 },
+		{ Car100.DIR_LEFT, Car100.ACC_REVERSE, 3 },
+		{ Car100.DIR_STRAIGHT, Car100.ACC_STOP, 2 },
+	};
+	
+	// The speed to replay at, to replay the 4.2 s recorded in 42 ms.
+	private static final float SPEED = 100;
+	
+	// The longest time (in ns) to wait for the simulated car.
+	private static final long TIMEOUT = 5000 * 1000000L;
+	
+	/* Record the transitions, advancing the clock between them. */
+	private byte[] record(VirtualClock clock) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ManeuverRecorder recorder = new ManeuverRecorder(out, clock);
+		for (int i = 0; i < DELTAS.length; i++) {
+			clock.advance(DELTAS[i] * US);
+			recorder.record(STATES[i][0], STATES[i][1], STATES[i][2]);
+			// Repeats are dropped.
+			recorder.record(STATES[i][0], STATES[i][1], STATES[i][2]);
+		}
+		recorder.close();
+		assert recorder.getCount() == DELTAS.length : recorder.getCount() + " transitions recorded";
+		assert recorder.getDropped() == 0 : recorder.getDropped() + " transitions dropped";
+		return out.toByteArray();
+	}
+	
+	public void testVarintEncoding() throws IOException {
+		byte[] recording = record(new VirtualClock());
+		
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write(ManeuverRecorder.MAGIC);
+		int[][] varints = {
+			{ 0x00 },
+			{ 0x7F },
+			{ 0x80, 0x01 },
+			{ 0xFF, 0x7F },
+			{ 0x80, 0x80, 0x01 },
+			{ 0xFF, 0xFF, 0x7F },
+			{ 0x80, 0x80, 0x80, 0x01 },
+		};
+		for (int i = 0; i < varints.length; i++) {
+			for (int b : varints[i]) {
+				expected.write(b);
+			}
+			expected.write(ManeuverRecorder.pack(STATES[i][0], STATES[i][1], STATES[i][2]));
+		}
+		assert Arrays.equals(recording, expected.toByteArray()) : "Recording is " + Arrays.toString(recording);
+	}
+	
+	public void testReplay() throws Exception {
+		File file = File.createTempFile("maneuver", ".r100");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(record(new VirtualClock()));
+			} finally {
+				out.close();
+			}
+			
+			// A fleet of one simulated car, reporting what is written to it.
+			final List<Integer> replayed = new ArrayList<Integer>();
+			CarSimulator simulator = new CarSimulator(0);
+			CarFleet fleet = new CarFleet(1);
+			fleet.add(new SocketTransport("127.0.0.1", simulator.getPort()));
+			long deadline = System.nanoTime() + TIMEOUT;
+			while (fleet.getTargetStatus() != Car100.STATUS_READY && System.nanoTime() - deadline < 0) {
+				Thread.sleep(10);
+			}
+			assert fleet.getTargetStatus() == Car100.STATUS_READY : "Simulated car not ready";
+			ManeuverRecorder capture = new ManeuverRecorder(new ByteArrayOutputStream()) {
+				@Override
+				public void record(byte dir, byte acc, byte gear) {
+					int state = pack(dir, acc, gear);
+					synchronized (replayed) {
+						if (replayed.isEmpty() || replayed.get(replayed.size() - 1) != state) {
+							replayed.add(state);
+						}
+					}
+				}
+			};
+			fleet.setRecorder(capture);
+			
+			long start = System.nanoTime();
+			ManeuverPlayer player = new ManeuverPlayer(file, fleet, SPEED, false, null);
+			player.join();
+			long time = System.nanoTime() - start;
+			
+			assert player.getCount() == DELTAS.length : player.getCount() + " transitions replayed";
+			long total = 0;
+			for (long delta : DELTAS) {
+				total += delta;
+			}
+			assert time >= (long)(total * US / SPEED) : "Replayed in " + time / US + " us";
+			
+			// The player sets the gear, direction and acceleration in turn, and
+			// stops at the end, which repeats the last transition.
+			List<Integer> told = new ArrayList<Integer>();
+			byte dir = Car100.DIR_STRAIGHT;
+			byte acc = Car100.ACC_STOP;
+			byte gear = CarState.INITIAL.getGear();
+			told.add(ManeuverRecorder.pack(dir, acc, gear));
+			for (byte[] step : STATES) {
+				gear = step[2];
+				add(told, ManeuverRecorder.pack(dir, acc, gear));
+				dir = step[0];
+				add(told, ManeuverRecorder.pack(dir, acc, gear));
+				acc = step[1];
+				add(told, ManeuverRecorder.pack(dir, acc, gear));
+			}
+			
+			// Only what was written is recorded, from the state the car was in
+			// to the one it ends up in. Once the scheduler has merged states
+			// following each other closely, fewer transitions are recorded.
+			int last = told.get(told.size() - 1);
+			deadline = System.nanoTime() + TIMEOUT;
+			while (System.nanoTime() - deadline < 0 && (simulator.getDir() != ManeuverRecorder.unpackDir(last) ||
+					simulator.getAcc() != ManeuverRecorder.unpackAcc(last) || simulator.getGear() != ManeuverRecorder.unpackGear(last))) {
+				Thread.sleep(10);
+			}
+			synchronized (replayed) {
+				assert replayed.get(0) == told.get(0) : "Recorded " + replayed + " from the start";
+				assert replayed.get(replayed.size() - 1) == last : "Recorded " + replayed + ", ending with " + last;
+				assert replayed.size() <= told.size() : "Recorded " + replayed + ", told " + told;
+			}
+			capture.close();
+			fleet.close();
+			simulator.close();
+		} finally {
+			file.delete();
+		}
+	}
+	
+	/* Add a state to a list, unless it's a repeat of the last one. */
+	private static void add(List<Integer> states, int state) {
+		if (states.get(states.size() - 1) != state) {
+			states.add(state);
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+/**
+ * Failures in tasks run by a VirtualClock reach the caller of advance(),
+ * so that asserts in listeners called from timers can fail a test.
+ */
+public class VirtualClockTest {
+	private static final long MS = 1000000L;
+	
+	private int runs;
+	
+	public void testScheduledTaskFailureRethrown() {
+		VirtualClock clock = new VirtualClock();
+		clock.schedule(new Runnable() {
+			@Override
+			public void run() {
+				throw new AssertionError("Failed in a timer");
+			}
+		}, 10 * MS);
+		try {
+			clock.advance(20 * MS);
+		} catch (AssertionError e) {
+			assert "Failed in a timer".equals(e.getMessage()) : "Wrong failure: " + e;
+			assert clock.nanoTime() == VirtualClock.ORIGIN + 10 * MS : "Time moved past the failure";
+			return;
+		}
+		throw new AssertionError("Failure swallowed by the clock");
+	}
+	
+	public void testRepeatedTaskFailureRethrown() {
+		VirtualClock clock = new VirtualClock();
+		runs = 0;
+		clock.repeat(new Runnable() {
+			@Override
+			public void run() {
+				if (++runs == 3) {
+					throw new IllegalStateException("Failed on the third run");
+				}
+			}
+		}, 10 * MS);
+		try {
+			clock.advance(100 * MS);
+			throw new AssertionError("Failure swallowed by the clock");
+		} catch (IllegalStateException e) {
+			assert runs == 3 : runs + " runs";
+		}
+		// Not run again.
+		clock.advance(100 * MS);
+		assert runs == 3 : runs + " runs after failing";
+	}
+	
+	public void testCancelledTaskNotRethrown() {
+		VirtualClock clock = new VirtualClock();
+		clock.schedule(new Runnable() {
+			@Override
+			public void run() {
+				throw new AssertionError("Cancelled task ran");
+			}
+		}, 10 * MS).cancel(false);
+		clock.advance(20 * MS);
+	}
+}
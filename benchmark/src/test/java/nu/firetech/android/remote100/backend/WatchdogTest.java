@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+/**
+ * Expiry of the Watchdog, checked on a VirtualClock rather than by its thread.
+ */
+public class WatchdogTest {
+	private static final long MS = 1000000L;
+	private static final int DEADLINE = 100;
+	
+	private VirtualClock clock;
+	private Watchdog watchdog;
+	private int expired;
+	
+	/* Start a new, disarmed watchdog on a new clock. */
+	private void start() {
+		clock = new VirtualClock();
+		expired = 0;
+		watchdog = new Watchdog(clock, DEADLINE, new Watchdog.Listener() {
+			@Override
+			public void onExpired() {
+				expired++;
+			}
+		});
+	}
+	
+	public void testExpiresOncePerMissedDeadline() {
+		start();
+		watchdog.setArmed(true);
+		clock.advance(DEADLINE * MS - 1);
+		assert expired == 0 : "Expired before the deadline";
+		clock.advance(1);
+		assert expired == 1 : "Not expired at the deadline";
+		assert watchdog.getLatenessMax() == 0 : "Expired " + watchdog.getLatenessMax() + " ns late";
+		
+		// Not again until it has been fed and missed another deadline.
+		clock.advance(10 * DEADLINE * MS);
+		assert expired == 1 : "Expired " + expired + " times for one miss";
+		watchdog.feed();
+		clock.advance(DEADLINE * MS);
+		assert expired == 2 : "Not expired after missing the next deadline";
+		assert watchdog.getFireCount() == 2 : watchdog.getFireCount() + " fires counted";
+	}
+	
+	public void testFeedingKeepsItQuiet() {
+		start();
+		watchdog.setArmed(true);
+		for (int i = 0; i < 1000; i++) {
+			clock.advance(DEADLINE * MS - 1);
+			watchdog.feed();
+		}
+		assert expired == 0 : "Expired " + expired + " times while fed";
+		clock.advance(DEADLINE * MS);
+		assert expired == 1 : "Not expired once feeding stopped";
+	}
+	
+	public void testDisarmedNeverExpires() {
+		start();
+		clock.advance(10 * DEADLINE * MS);
+		assert expired == 0 : "Expired while disarmed";
+		
+		// Arming starts a new deadline, and disarming cancels it.
+		watchdog.setArmed(true);
+		clock.advance(DEADLINE * MS / 2);
+		watchdog.setArmed(false);
+		clock.advance(10 * DEADLINE * MS);
+		assert expired == 0 : "Expired after being disarmed";
+		watchdog.setArmed(true);
+		clock.advance(DEADLINE * MS - 1);
+		assert expired == 0 : "Deadline not restarted when armed";
+		clock.advance(1);
+		assert expired == 1 : "Not expired after being armed again";
+	}
+	
+	public void testClosedNeverExpires() {
+		start();
+		watchdog.setArmed(true);
+		watchdog.close();
+		clock.advance(10 * DEADLINE * MS);
+		assert expired == 0 : "Expired after being closed";
+		assert clock.getPending() == 0 : clock.getPending() + " checks left on the clock";
+	}
+}
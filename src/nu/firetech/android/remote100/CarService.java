@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100;
+
+import java.io.File;
+import java.util.Collection;
+
+import nu.firetech.android.remote100.backend.CarFleet;
+import nu.firetech.android.remote100.backend.CarListener;
+import nu.firetech.android.remote100.backend.CarTransport;
+import nu.firetech.android.remote100.backend.JournalTransport;
+import nu.firetech.android.remote100.backend.TrafficJournal;
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Keeps the cars connected while the activity comes and goes.
+ * 
+ * The activity attaches when it's resumed and detaches when it's paused.
+ * While nothing is attached, the cars are stopped but stay connected until
+ * the idle timeout runs out, so that resuming (e.g. after a rotation or a
+ * visit to the settings) brings back control without reconnecting.
+ * 
+ * If enabled in the settings, all traffic to and from the cars is recorded
+ * in a TrafficJournal for as long as the service runs.
+ */
+public class CarService extends Service {
+	private static final String LOG_TAG = "[Remote100] Service";
+	
+	private static final int NOTIFICATION_ID = 1;
+	
+	public class LocalBinder extends Binder {
+		public CarService getService() {
+			return CarService.this;
+		}
+	}
+	
+	private final IBinder binder = new LocalBinder();
+	private final Handler handler = new Handler();
+	
+	private SharedPreferences prefs;
+	private ConnectionManager connections;
+	
+	private CarFleet fleet;
+	private CarListener client;
+	private TrafficJournal journal;
+	
+	private final Runnable idleTimeout = new Runnable() {
+		@Override
+		public void run() {
+			Log.i(LOG_TAG, "Idle timeout, disconnecting.");
+			stopSelf();
+		}
+	};
+	
+	// =========================================
+	// Service State Handling
+	// =========================================
+	
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		prefs = PreferenceManager.getDefaultSharedPreferences(getBaseContext());
+		connections = new ConnectionManager(this);
+		
+		if (prefs.getBoolean(getString(R.string.key_journal), false)) {
+			File dir = getExternalFilesDir(null);
+			if (dir == null) {
+				dir = getFilesDir();
+			}
+			journal = new TrafficJournal(new File(dir, "journal"), "traffic-",
+					getResources().getInteger(R.integer.journal_buffer) * 1024,
+					getResources().getInteger(R.integer.journal_file_size) * 1024L,
+					getResources().getInteger(R.integer.journal_files));
+		}
+		
+		Intent intent = new Intent(this, Remote100Activity.class);
+		Notification notification = new Notification(android.R.drawable.stat_sys_data_bluetooth,
+				getString(R.string.service_ticker), System.currentTimeMillis());
+		notification.setLatestEventInfo(this, getString(R.string.app_name),
+				getString(R.string.service_text), PendingIntent.getActivity(this, 0, intent, 0));
+		startForeground(NOTIFICATION_ID, notification);
+	}
+	
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		// Without the activity there is nothing to reconnect for.
+		return START_NOT_STICKY;
+	}
+	
+	@Override
+	public IBinder onBind(Intent intent) {
+		handler.removeCallbacks(idleTimeout);
+		return binder;
+	}
+	
+	@Override
+	public void onRebind(Intent intent) {
+		handler.removeCallbacks(idleTimeout);
+	}
+	
+	@Override
+	public boolean onUnbind(Intent intent) {
+		if (fleet != null) {
+			fleet.removeListener(client);
+			fleet.stopAll();
+		}
+		client = null;
+		
+		int timeout = Integer.parseInt(prefs.getString(getString(R.string.key_idle_timeout),
+				getString(R.string.idle_timeout_default)));
+		handler.postDelayed(idleTimeout, timeout * 1000L);
+		return true;
+	}
+	
+	@Override
+	public void onDestroy() {
+		handler.removeCallbacks(idleTimeout);
+		client = null;
+		if (fleet != null) {
+			fleet.close();
+			fleet = null;
+		}
+		if (journal != null) {
+			journal.close();
+			Log.i(LOG_TAG, "Journaled " + journal.getRecords() + " records, dropped " + journal.getDropped() + ".");
+			journal = null;
+		}
+		stopForeground(true);
+		super.onDestroy();
+	}
+	
+	// =========================================
+	// Public Methods
+	// =========================================
+	
+	/**
+	 * Attach to the fleet, connecting any car not already connected.
+	 * 
+	 * @param adapter The Bluetooth adapter to connect through.
+	 * @param addresses The addresses of the cars.
+	 * @param listener Told about events until the service is unbound.
+	 * @return The fleet holding the cars.
+	 */
+	public CarFleet attach(BluetoothAdapter adapter, Collection<String> addresses, CarListener listener) {
+		if (fleet == null) {
+			fleet = new CarFleet(getResources().getInteger(R.integer.io_threads));
+			fleet.setDeadLinkBudget(getResources().getInteger(R.integer.dead_link_budget));
+		}
+		for (String address : addresses) {
+			if (!fleet.contains(address)) {
+				CarTransport transport = connections.createTransport(adapter, address);
+				if (journal != null) {
+					transport = new JournalTransport(transport, journal);
+				}
+				fleet.add(transport).setCommandRate(connections.getCommandRate(address));
+			}
+		}
+		if (client != listener) {
+			fleet.removeListener(client);
+			fleet.addListener(listener);
+			client = listener;
+		}
+		return fleet;
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nu.firetech.android.remote100.backend.BluetoothTransport;
+import nu.firetech.android.remote100.backend.CarTransport;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers the cars and how to reach them.
+ * 
+ * The addresses of the paired cars and the RFCOMM channel of each are
+ * stored from the last good connection, so that neither the paired devices
+ * nor the car's services need to be searched again every time. The
+ * command rate each car's link was last calibrated to take is kept too.
+ */
+public class ConnectionManager implements BluetoothTransport.ChannelCache {
+	private static final String PREFS_NAME = "connections";
+	private static final String KEY_CARS = "cars";
+	private static final String KEY_CHANNEL = "channel_";
+	private static final String KEY_RATE = "rate_";
+	
+	public static final String CAR_NAME = "CAR 100";
+	
+	private final SharedPreferences prefs;
+	
+	public ConnectionManager(Context context) {
+		prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+	}
+	
+	/**
+	 * Get the addresses of the paired cars, searching for them only if none are known.
+	 * 
+	 * @param adapter The Bluetooth adapter the cars are paired to.
+	 * @return The addresses, empty if no cars are paired.
+	 */
+	public List<String> getCarAddresses(BluetoothAdapter adapter) {
+		List<String> addresses = new ArrayList<String>();
+		String cars = prefs.getString(KEY_CARS, "");
+		for (String address : cars.split(",")) {
+			if (address.length() > 0) {
+				addresses.add(address);
+			}
+		}
+		if (addresses.isEmpty()) {
+			addresses = scan(adapter);
+		}
+		return addresses;
+	}
+	
+	/**
+	 * Search the paired devices for cars, and remember what was found.
+	 * 
+	 * @param adapter The Bluetooth adapter the cars are paired to.
+	 * @return The addresses, empty if no cars are paired.
+	 */
+	public List<String> scan(BluetoothAdapter adapter) {
+		List<String> addresses = new ArrayList<String>();
+		StringBuilder cars = new StringBuilder();
+		for (BluetoothDevice d : adapter.getBondedDevices()) {
+			if (CAR_NAME.equals(d.getName())) {
+				addresses.add(d.getAddress());
+				if (cars.length() > 0) {
+					cars.append(',');
+				}
+				cars.append(d.getAddress());
+			}
+		}
+		prefs.edit().putString(KEY_CARS, cars.toString()).commit();
+		return addresses;
+	}
+	
+	/**
+	 * @param adapter The Bluetooth adapter to connect through.
+	 * @param address The address of the car.
+	 * @return A transport to the car, using the remembered channel.
+	 */
+	public CarTransport createTransport(BluetoothAdapter adapter, String address) {
+		return new BluetoothTransport(adapter, address, this);
+	}
+	
+	@Override
+	public int getChannel(String address) {
+		return prefs.getInt(KEY_CHANNEL + address, -1);
+	}
+	
+	@Override
+	public void putChannel(String address, int channel) {
+		if (channel > 0) {
+			prefs.edit().putInt(KEY_CHANNEL + address, channel).commit();
+		} else {
+			prefs.edit().remove(KEY_CHANNEL + address).commit();
+		}
+	}
+	
+	/**
+	 * @param address The address of the car.
+	 * @return The most commands per second the link to the car takes, see LinkCalibrator, or 0 if not calibrated.
+	 */
+	public int getCommandRate(String address) {
+		return prefs.getInt(KEY_RATE + address, 0);
+	}
+	
+	/**
+	 * Remember the outcome of calibrating the link to a car.
+	 * 
+	 * @param address The address of the car.
+	 * @param rate The most commands per second the link takes, or 0 to forget it.
+	 */
+	public void putCommandRate(String address, int rate) {
+		if (rate > 0) {
+			prefs.edit().putInt(KEY_RATE + address, rate).commit();
+		} else {
+			prefs.edit().remove(KEY_RATE + address).commit();
+		}
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100;
+
+import nu.firetech.android.remote100.backend.AxisFilter;
+import nu.firetech.android.remote100.backend.ControlLoop;
+import android.os.Build;
+import android.os.SystemClock;
+import android.view.InputDevice;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+
+/**
+ * Drives with a Bluetooth or USB gamepad, alongside the joystick.
+ * 
+ * The left stick (or the d-pad) steers, and the right trigger drives
+ * forward and the left one in reverse (or the left stick, whichever is
+ * pushed further). The shoulder buttons shift gear up and down.
+ * 
+ * A joystick MotionEvent carries all axis samples since the last one
+ * delivered, as history. Every sample is run through the AxisFilters in
+ * order, so nothing in between is skipped, and the newest is posted, with
+ * the time of the oldest sample that gave that output (which is when the
+ * command it leads to was actually given). Nothing is allocated per event.
+ * 
+ * A steady hold gives no new output, so while isHeld() the owner must keep
+ * re-asserting it to the ControlLoop, or the watchdog stops the car.
+ * 
+ * Joystick events need Android 3.1 (API level 12), see isSupported().
+ */
+/* package */ class GamepadInput {
+	// The first API level with joystick events.
+	private static final int MIN_SDK = 12;
+	
+	// The largest difference (in ns) between an event time and now to trust it.
+	private static final long MAX_CLOCK_SKEW = 1000 * 1000000L;
+	
+	public interface Listener {
+		/**
+		 * Called from the UI thread when the sticks or triggers move.
+		 * 
+		 * @param x Horizontal deflection, negative to the left.
+		 * @param y Vertical deflection, positive forward.
+		 * @param time The time (System.nanoTime()) of the sample behind it.
+		 */
+		void onStick(int x, int y, long time);
+		
+		/**
+		 * Called from the UI thread when a gear button is pressed.
+		 * 
+		 * @param step 1 to shift up, -1 to shift down.
+		 * @param time The time (System.nanoTime()) of the press.
+		 */
+		void onShift(int step, long time);
+	}
+	
+	private final Listener listener;
+	
+	// No smoothing, the sticks aren't noisy, but a deadband for stick drift.
+	private final AxisFilter steering = new AxisFilter(1f, 0.15f, 0.05f, ControlLoop.MAX_DEFLECTION);
+	private final AxisFilter throttle = new AxisFilter(1f, 0.15f, 0.05f, ControlLoop.MAX_DEFLECTION);
+	
+	// The last output posted.
+	private int lastX = 0;
+	private int lastY = 0;
+	
+	/**
+	 * @return true if this version of Android delivers gamepad events.
+	 */
+	public static boolean isSupported() {
+		return Build.VERSION.SDK_INT >= MIN_SDK;
+	}
+	
+	public GamepadInput(Listener listener) {
+		this.listener = listener;
+	}
+	
+	/**
+	 * Forget the stick positions, e.g. when control is handed back.
+	 */
+	public void reset() {
+		steering.reset();
+		throttle.reset();
+		lastX = 0;
+		lastY = 0;
+	}
+	
+	/**
+	 * @return true if the last output posted is away from the center.
+	 */
+	public boolean isHeld() {
+		return (lastX != 0 || lastY != 0);
+	}
+	
+	/**
+	 * Handle a generic motion event, if it's from a gamepad.
+	 * 
+	 * @return true if the event was handled.
+	 */
+	public boolean onMotionEvent(MotionEvent event) {
+		if ((event.getSource() & InputDevice.SOURCE_CLASS_JOYSTICK) == 0 ||
+				event.getAction() != MotionEvent.ACTION_MOVE) {
+			return false;
+		}
+		long now = System.nanoTime();
+		long uptime = SystemClock.uptimeMillis();
+		
+		// The historical samples first, oldest first, then the current one (at -1).
+		int x = lastX, y = lastY;
+		long changed = 0;
+		int history = event.getHistorySize();
+		for (int pos = 0; pos <= history; pos++) {
+			int sample = (pos < history ? pos : -1);
+			int newX = steering.filter(steeringAxis(event, sample));
+			int newY = throttle.filter(throttleAxis(event, sample));
+			if (newX != x || newY != y) {
+				x = newX;
+				y = newY;
+				changed = (sample >= 0 ? event.getHistoricalEventTime(sample) : event.getEventTime());
+			}
+		}
+		if (x == lastX && y == lastY) {
+			return true;
+		}
+		lastX = x;
+		lastY = y;
+		listener.onStick(x, y, toNanoTime(changed, uptime, now));
+		return true;
+	}
+	
+	/**
+	 * Handle a key event, if it's a gear button on a gamepad.
+	 * 
+	 * @return true if the event was handled.
+	 */
+	public boolean onKeyEvent(KeyEvent event) {
+		int step;
+		switch (event.getKeyCode()) {
+		case KeyEvent.KEYCODE_BUTTON_R1:
+			step = 1;
+			break;
+		case KeyEvent.KEYCODE_BUTTON_L1:
+			step = -1;
+			break;
+		default:
+			return false;
+		}
+		if (event.getAction() == KeyEvent.ACTION_DOWN && event.getRepeatCount() == 0) {
+			listener.onShift(step, toNanoTime(event.getEventTime(), SystemClock.uptimeMillis(), System.nanoTime()));
+		}
+		return true;
+	}
+	
+	/* The steering reading of a sample (-1 for the current one), from the stick or the d-pad. */
+	private static float steeringAxis(MotionEvent event, int sample) {
+		return furthest(axis(event, MotionEvent.AXIS_X, sample), axis(event, MotionEvent.AXIS_HAT_X, sample));
+	}
+	
+	/* The throttle reading of a sample (-1 for the current one), from the triggers or the stick. */
+	private static float throttleAxis(MotionEvent event, int sample) {
+		float forward = Math.max(axis(event, MotionEvent.AXIS_RTRIGGER, sample), axis(event, MotionEvent.AXIS_GAS, sample));
+		float reverse = Math.max(axis(event, MotionEvent.AXIS_LTRIGGER, sample), axis(event, MotionEvent.AXIS_BRAKE, sample));
+		return furthest(forward - reverse, -axis(event, MotionEvent.AXIS_Y, sample));
+	}
+	
+	/* An axis value of a sample, -1 for the current one. */
+	private static float axis(MotionEvent event, int axis, int sample) {
+		return (sample >= 0 ? event.getHistoricalAxisValue(axis, sample) : event.getAxisValue(axis));
+	}
+	
+	/* The reading furthest from the center. */
+	private static float furthest(float a, float b) {
+		return (Math.abs(a) >= Math.abs(b) ? a : b);
+	}
+	
+	/* Convert an event time (SystemClock.uptimeMillis()) to System.nanoTime(). */
+	private static long toNanoTime(long eventTime, long uptime, long now) {
+		long time = now - (uptime - eventTime) * 1000000L;
+		if (Math.abs(now - time) > MAX_CLOCK_SKEW) {
+			time = now;
+		}
+		return time;
+	}
+}
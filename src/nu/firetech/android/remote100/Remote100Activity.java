@@ -20,39 +20,86 @@
 
 package nu.firetech.android.remote100;
 
-import java.util.Set;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import nu.firetech.android.joystick.OnJoystickMovedListener;
 import nu.firetech.android.joystick.SplitJoystickView;
 import nu.firetech.android.remote100.R;
 import nu.firetech.android.remote100.backend.Car100;
+import nu.firetech.android.remote100.backend.CarFleet;
+import nu.firetech.android.remote100.backend.CarListener;
 import nu.firetech.android.remote100.backend.CarServer;
+import nu.firetech.android.remote100.backend.ControlBridge;
+import nu.firetech.android.remote100.backend.ControlLoop;
+import nu.firetech.android.remote100.backend.LinkCalibrator;
+import nu.firetech.android.remote100.backend.ManeuverPlayer;
+import nu.firetech.android.remote100.backend.ManeuverRecorder;
+import nu.firetech.android.remote100.backend.Metrics;
+import nu.firetech.android.remote100.backend.Watchdog;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
+import android.content.ComponentName;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.DialogInterface.OnClickListener;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.hardware.SensorManager;
+import android.net.wifi.WifiManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
+import android.util.Log;
+import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.ImageView;
 import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
 import android.widget.TextView;
+import android.widget.Toast;
 
 public class Remote100Activity extends Activity {
+	private static final String LOG_TAG = "[Remote100] Activity";
+	
 	private static final int ABOUT_ID = Menu.FIRST;
 	private static final int SETTINGS_ID = Menu.FIRST + 1;
+	private static final int DUMP_ID = Menu.FIRST + 2;
+	private static final int SELECT_ID = Menu.FIRST + 3;
+	private static final int RECORD_ID = Menu.FIRST + 4;
+	private static final int REPLAY_ID = Menu.FIRST + 5;
+	private static final int CALIBRATE_ID = Menu.FIRST + 6;
+	
+	// Shortest time (in ms) between two status updates, about one frame.
+	private static final long UPDATE_INTERVAL = 16;
 	
-	private static final String CAR_NAME = "CAR 100";
+	// The time (System.nanoTime()) the class was loaded, about when the process started.
+	private static final long CLASS_LOADED = System.nanoTime();
+	
+	// Set once an activity has been created in this process.
+	private static boolean created = false;
 	
 	private int currGear = 1;
+	
+	// The time (System.nanoTime()) the current start or resume began, or 0.
+	private long startTime = 0;
+	
+	// Set until the targeted cars are ready after a start or resume.
+	private boolean readyPending = false;
 	private byte lastStatus = -1;
 	private AlertDialog bluetoothAlert = null;
 	
@@ -61,7 +108,41 @@ public class Remote100Activity extends Activity {
 	
 	private SharedPreferences prefs;
 	
-	private CarServer server;
+	private ConnectionManager connections;
+	private BluetoothAdapter adapter;
+	private final List<String> carAddresses = new ArrayList<String>();
+	private boolean bound = false;
+	private CarService service;
+	private CarFleet fleet;
+	private ControlLoop control;
+	private ControlBridge bridge;
+	private ManeuverRecorder recorder;
+	private ManeuverPlayer player;
+	private LinkCalibrator calibrator;
+	private final List<CarServer> calibrationQueue = new ArrayList<CarServer>();
+	
+	private final Handler handler = new Handler();
+	private final FleetListener fleetListener = new FleetListener();
+	
+	private TextView statusText;
+	private ImageView statusIcon;
+	private View gearLayout;
+	private SeekBar gearBar;
+	private TextView gearText;
+	private SplitJoystickView joystick;
+	private TiltInput tilt;
+	private boolean tiltMode = false;
+	private GamepadInput gamepad;
+	// Whether the touch stick is held away from the center.
+	private boolean stickHeld = false;
+	private int holdInterval;
+	
+	// The time (System.nanoTime()) of the gamepad press behind the gear change being made, or 0.
+	private long shiftTime = 0;
+	
+	private final StringBuilder debugText = new StringBuilder();
+	private TextView debugOverlay;
+	private int debugOverlayInterval;
 	
 	// =========================================
 	// Activity State Handling
@@ -73,98 +154,75 @@ public class Remote100Activity extends Activity {
         setContentView(R.layout.main);
         prefs = PreferenceManager.getDefaultSharedPreferences(getBaseContext());
         
-        SeekBar gearBar = (SeekBar)findViewById(R.id.gearBar);
+        statusText = (TextView)findViewById(R.id.status);
+        statusIcon = (ImageView)findViewById(R.id.status_icon);
+        gearLayout = findViewById(R.id.gearLayout);
+        gearText = (TextView)findViewById(R.id.gearText);
+        debugOverlay = (TextView)findViewById(R.id.debug_overlay);
+        
+        gearBar = (SeekBar)findViewById(R.id.gearBar);
         GearChangeListener gearChangeListener = new GearChangeListener();
         gearBar.setOnSeekBarChangeListener(gearChangeListener);
         
-        SplitJoystickView joy = (SplitJoystickView)findViewById(R.id.joystick);
+        joystick = (SplitJoystickView)findViewById(R.id.joystick);
         JoystickListener joyListener = new JoystickListener();
-        joy.setOnJostickMovedListener(joyListener);
-		
-		if (aboutMessage == null) {
-			String spacer = "\n\n";
-			
-			String versionName;
-			try {
-				versionName = getPackageManager().getPackageInfo(getPackageName(), 0).versionName;
-			} catch (NameNotFoundException e) {
-				versionName = "(unknown version)";
-			}
-			
-			aboutMessage = new StringBuilder(getString(R.string.app_name))
-			.append(" - ")
-			.append(versionName)
-			.append(spacer)
-			.append("==================\n")
-			.append("The Remote-100 App\n")
-			.append("==================\n")
-			.append("Copyright (c) 2011 Joakim Andersson")
-			.append(spacer)
-			.append("This program comes with ABSOLUTELY NO WARRANTY.\nThis " +
-					"is free software, licensed under the GNU General Public" +
-					" License; version 2.")
-			.append(spacer)
-			.append("====================\n")
-			.append("The Joystick Library\n")
-			.append("====================\n")
-			.append("Copyright (c) 2011, olberg(at)gmail(dot)com, " +
-					"http://mobile-anarchy-widgets.googlecode.com\n")
-			.append("Copyright (c) 2011, Joakim Andersson\n")
-			.append("All rights reserved.\n")
-			.append("\n")
-			.append("Redistribution and use in source and binary forms, with" +
-					" or without modification, are permitted provided that " +
-					"the following conditions are met:\n")
-			.append("* Redistributions of source code must retain the above " +
-					"copyright notice, this list of conditions and the " +
-					"following disclaimer.\n")
-			.append("* Redistributions in binary form must reproduce the " +
-					"above copyright notice, this list of conditions and the" +
-					" following disclaimer in the documentation and/or other" +
-					" materials provided with the distribution.\n")
-			.append("\n")
-			.append("THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND " +
-					"CONTRIBUTORS \"AS IS\" AND ANY EXPRESS OR IMPLIED " +
-					"WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED " +
-					"WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A " +
-					"PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL " +
-					"THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY " +
-					"DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR " +
-					"CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, " +
-					"PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF " +
-					"USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) " +
-					"HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER " +
-					"IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING " +
-					"NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE " +
-					"USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE " +
-					"POSSIBILITY OF SUCH DAMAGE.")
-			/* phew... */
-			.toString();
-		}
-		
-		aboutDialog = new AlertDialog.Builder(this)
-		.setTitle(R.string.menu_about)
-		.setMessage(aboutMessage)
-		.setIcon(android.R.drawable.ic_dialog_info)
-		.setPositiveButton(android.R.string.ok, new OnClickListener() {
-			@Override
-			public void onClick(DialogInterface dialog, int which) {
-				dialog.dismiss();
-			}
-		})
-		.create();
+        joystick.setOnJostickMovedListener(joyListener);
+        
+        if (GamepadInput.isSupported()) {
+        	gamepad = new GamepadInput(new GamepadListener());
+        }
         
         setStatus(Car100.STATUS_NO_LINK);
+        
+        // The first start in this process includes loading the application.
+        startTime = (created ? System.nanoTime() : CLASS_LOADED);
+        created = true;
     }
     
     @Override
     protected void onResume() {
     	super.onResume();
 
-        SplitJoystickView joy = (SplitJoystickView)findViewById(R.id.joystick);
-        joy.setLeftControls(prefs.getBoolean(getString(R.string.key_left_controls), false));
+        joystick.setLeftControls(prefs.getBoolean(getString(R.string.key_left_controls), false));
+        
+        tiltMode = false;
+        if (prefs.getBoolean(getString(R.string.key_tilt), false)) {
+        	if (tilt == null) {
+        		tilt = new TiltInput((SensorManager)getSystemService(SENSOR_SERVICE), new TiltListener());
+        	}
+        	tiltMode = tilt.isAvailable();
+        	if (tiltMode) {
+        		tilt.start();
+        	}
+        }
+        // Show or hide the joystick as the next status says.
+        lastStatus = -1;
+        
+        // A few keep-alives per watchdog deadline, so one late frame doesn't stop the car.
+        holdInterval = getResources().getInteger(R.integer.watchdog_deadline) / 4;
+        handler.post(holdRunnable);
+        
+        if (prefs.getBoolean(getString(R.string.key_debug_overlay), false)) {
+        	debugOverlayInterval = getResources().getInteger(R.integer.debug_overlay_interval);
+        	debugOverlay.setVisibility(View.VISIBLE);
+        	handler.post(debugOverlayUpdater);
+        } else {
+        	debugOverlay.setVisibility(View.GONE);
+        }
         
-    	BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+    	// Connecting to the cars can wait until the screen is up.
+    	if (startTime == 0) {
+    		startTime = System.nanoTime();
+    	}
+    	readyPending = true;
+    	statusText.getViewTreeObserver().addOnPreDrawListener(firstFrameListener);
+    }
+    
+    private void connectCars() {
+    	if (connections == null) {
+    		connections = new ConnectionManager(this);
+    	}
+    	adapter = BluetoothAdapter.getDefaultAdapter();
     	if (adapter == null || !adapter.isEnabled()) {
     		bluetoothAlert = new AlertDialog.Builder(this)
     		.setTitle(R.string.bluetooth_off_title)
@@ -180,18 +238,12 @@ public class Remote100Activity extends Activity {
     		.create();
     		bluetoothAlert.show();
     	} else {
-    		Set<BluetoothDevice> devices = adapter.getBondedDevices();
-    		String carAddress = null;
-    		for (BluetoothDevice d : devices) {
-    			if (d.getName().equals(CAR_NAME)) {
-    				carAddress = d.getAddress();
-    				break;
-    			}
-    		}
-    		if (carAddress == null) {
+    		carAddresses.clear();
+    		carAddresses.addAll(connections.getCarAddresses(adapter));
+    		if (carAddresses.isEmpty()) {
         		bluetoothAlert = new AlertDialog.Builder(this)
         		.setTitle(R.string.no_car_title)
-        		.setMessage(getString(R.string.no_car_msg, CAR_NAME))
+        		.setMessage(getString(R.string.no_car_msg, ConnectionManager.CAR_NAME))
         		.setIcon(android.R.drawable.ic_dialog_alert)
         		.setNeutralButton(android.R.string.ok, new DialogInterface.OnClickListener() {
         			@Override
@@ -203,8 +255,9 @@ public class Remote100Activity extends Activity {
         		.create();
         		bluetoothAlert.show();
     		} else {
-    			
-    			server = new CarServer(this, adapter, carAddress);
+    			Intent intent = new Intent(this, CarService.class);
+    			startService(intent);
+    			bound = bindService(intent, serviceConnection, BIND_AUTO_CREATE);
     		}
     	}
     }
@@ -212,9 +265,41 @@ public class Remote100Activity extends Activity {
     @Override
     protected void onPause() {
     	super.onPause();
-    	if (server != null) {
-    		server.close();
-    		server = null;
+    	statusText.getViewTreeObserver().removeOnPreDrawListener(firstFrameListener);
+    	handler.removeCallbacks(connectRunnable);
+    	startTime = 0;
+    	readyPending = false;
+    	handler.removeCallbacks(debugOverlayUpdater);
+    	handler.removeCallbacks(resetUIRunnable);
+    	handler.removeCallbacks(holdRunnable);
+    	stickHeld = false;
+    	if (control != null) {
+    		Watchdog watchdog = control.getWatchdog();
+    		Log.i(LOG_TAG, "Watchdog fired " + watchdog.getFireCount() + " times, " +
+    				(watchdog.getLatenessMax() / 1000) + " us late at most.");
+    		control.close();
+    		control = null;
+    	}
+    	stopRecording();
+    	stopReplay();
+    	stopCalibration();
+    	stopBridge();
+    	fleet = null;
+    	service = null;
+    	if (bound) {
+    		unbindService(serviceConnection);
+    		bound = false;
+    	}
+    	fleetListener.cancel();
+    	if (tilt != null) {
+    		tilt.stop();
+    	}
+    	if (gamepad != null) {
+    		gamepad.reset();
+    	}
+    	if (isFinishing()) {
+    		// Leaving the application, no point in keeping the cars connected.
+    		stopService(new Intent(this, CarService.class));
     	}
     	if (bluetoothAlert != null) {
     		bluetoothAlert.dismiss();
@@ -231,6 +316,20 @@ public class Remote100Activity extends Activity {
 		super.onCreateOptionsMenu(menu);
 		menu.add(0, ABOUT_ID, 0, R.string.menu_about).setIcon(android.R.drawable.ic_menu_info_details);
 		menu.add(0, SETTINGS_ID, 0, R.string.menu_settings).setIcon(android.R.drawable.ic_menu_preferences);
+		menu.add(0, SELECT_ID, 0, R.string.menu_select_cars).setIcon(android.R.drawable.ic_menu_manage);
+		menu.add(0, RECORD_ID, 0, R.string.menu_record).setIcon(android.R.drawable.ic_menu_camera);
+		menu.add(0, REPLAY_ID, 0, R.string.menu_replay).setIcon(android.R.drawable.ic_media_play);
+		menu.add(0, CALIBRATE_ID, 0, R.string.menu_calibrate).setIcon(android.R.drawable.ic_menu_compass);
+		menu.add(0, DUMP_ID, 0, R.string.menu_dump_metrics).setIcon(android.R.drawable.ic_menu_save);
+		return true;
+	}
+
+	@Override
+	public boolean onPrepareOptionsMenu(Menu menu) {
+		super.onPrepareOptionsMenu(menu);
+		menu.findItem(RECORD_ID).setTitle(recorder != null ? R.string.menu_record_stop : R.string.menu_record);
+		menu.findItem(REPLAY_ID).setTitle(player != null ? R.string.menu_replay_stop : R.string.menu_replay);
+		menu.findItem(CALIBRATE_ID).setTitle(calibrator != null ? R.string.menu_calibrate_stop : R.string.menu_calibrate);
 		return true;
 	}
 
@@ -238,54 +337,105 @@ public class Remote100Activity extends Activity {
 	public boolean onMenuItemSelected(int featureId, MenuItem item) {
 		switch(item.getItemId()) {
 		case ABOUT_ID:
-			aboutDialog.show();
+			showAbout();
 			return true;
 		case SETTINGS_ID:
 			startActivity(new Intent(this, SettingsActivity.class));
 			return true;
+		case SELECT_ID:
+			selectCars();
+			return true;
+		case DUMP_ID:
+			dumpMetrics();
+			return true;
+		case RECORD_ID:
+			if (recorder != null) {
+				stopRecording();
+			} else {
+				startRecording();
+			}
+			return true;
+		case REPLAY_ID:
+			if (player != null) {
+				stopReplay();
+			} else {
+				startReplay();
+			}
+			return true;
+		case CALIBRATE_ID:
+			if (calibrator != null) {
+				stopCalibration();
+			} else {
+				startCalibration();
+			}
+			return true;
 		}
 
 		return super.onMenuItemSelected(featureId, item);
 	}
 	
+	// =========================================
+	// Input Handling
+	// =========================================
+	
+	@Override
+	public boolean dispatchGenericMotionEvent(MotionEvent event) {
+		if (gamepad != null && gamepad.onMotionEvent(event)) {
+			return true;
+		}
+		return super.dispatchGenericMotionEvent(event);
+	}
+	
+	@Override
+	public boolean dispatchKeyEvent(KeyEvent event) {
+		if (gamepad != null && gamepad.onKeyEvent(event)) {
+			return true;
+		}
+		return super.dispatchKeyEvent(event);
+	}
+	
 	// =========================================
 	// UI Modification Methods
 	// =========================================
 	
     public void setStatus(byte status) {
+    	Metrics.statusShown();
+    	if (status == Car100.STATUS_READY && readyPending && startTime != 0) {
+    		readyPending = false;
+    		Log.i(LOG_TAG, "Ready after " + (Metrics.startupReady(startTime) / 1000000) + " ms.");
+    	}
     	if (status != lastStatus) {
-	    	int statusText, statusIcon;
+	    	int text, icon;
 	    	switch (status) {
 	    	case Car100.STATUS_NO_LINK:
-	    		statusText = R.string.status_no_link;
-	    		statusIcon = R.drawable.status_no_link;
+	    		text = R.string.status_no_link;
+	    		icon = R.drawable.status_no_link;
 	    		break;
 	    	case Car100.STATUS_CONNECTED:
-	    		statusText = R.string.status_connected;
-	    		statusIcon = R.drawable.status_connected;
+	    		text = R.string.status_connected;
+	    		icon = R.drawable.status_connected;
 	    		break;
 	    	case Car100.STATUS_CHARGING:
-	    		statusText = R.string.status_charging;
-	    		statusIcon = R.drawable.status_charging;
+	    		text = R.string.status_charging;
+	    		icon = R.drawable.status_charging;
 	    		break;
 	    	case Car100.STATUS_CHARGE_FULL:
-	    		statusText = R.string.status_charge_full;
-	    		statusIcon = R.drawable.status_charge_full;
+	    		text = R.string.status_charge_full;
+	    		icon = R.drawable.status_charge_full;
 	    		break;
 	    	case Car100.STATUS_READY:
-	    		statusText = R.string.status_ready;
-	    		statusIcon = 0;
+	    		text = R.string.status_ready;
+	    		icon = 0;
 	    		break;
 	    	default:
 	    		throw new IllegalArgumentException("Unknown status: " + status);
 	    	}    	
-	    	((TextView)findViewById(R.id.status)).setText(statusText);
-	    	ImageView statusIconView = (ImageView)findViewById(R.id.status_icon);
-	    	if (statusIcon != 0) {
-	    		statusIconView.setImageResource(statusIcon);
-	    		statusIconView.setVisibility(View.VISIBLE);
+	    	statusText.setText(text);
+	    	if (icon != 0) {
+	    		statusIcon.setImageResource(icon);
+	    		statusIcon.setVisibility(View.VISIBLE);
 	    	} else {
-	    		statusIconView.setVisibility(View.GONE);
+	    		statusIcon.setVisibility(View.GONE);
 	    	}
 	    	
 	    	int visibility = View.GONE;
@@ -296,42 +446,548 @@ public class Remote100Activity extends Activity {
 	    		 * rendered on visibility change until something else changes.
 	    		 * :(
 	    		 */
-	    		findViewById(android.R.id.content).postDelayed(new Runnable() {
-					@Override
-					public void run() {
-						resetUI();
-					}
-				}, 100);
-	    	}
-	    	for (int view : new int[] {R.id.gearLayout, R.id.joystick}) {
-	    		findViewById(view).setVisibility(visibility);
-	    	}
-	    	if (status == Car100.STATUS_READY) {
+	    		handler.postDelayed(resetUIRunnable, 100);
 	    	}
+	    	gearLayout.setVisibility(visibility);
+	    	joystick.setVisibility(tiltMode ? View.GONE : visibility);
     	}
 		lastStatus = status;
     }
     
+    private final Runnable debugOverlayUpdater = new Runnable() {
+		@Override
+		public void run() {
+			debugText.setLength(0);
+			Metrics.format(debugText);
+			debugOverlay.setText(debugText);
+			handler.postDelayed(this, debugOverlayInterval);
+		}
+	};
+    
+    private void showAbout() {
+    	// Built on first use, there's no need to slow down every start with it.
+    	if (aboutDialog == null) {
+			if (aboutMessage == null) {
+				String spacer = "\n\n";
+			
+				String versionName;
+				try {
+					versionName = getPackageManager().getPackageInfo(getPackageName(), 0).versionName;
+				} catch (NameNotFoundException e) {
+					versionName = "(unknown version)";
+				}
+			
+				aboutMessage = new StringBuilder(getString(R.string.app_name))
+				.append(" - ")
+				.append(versionName)
+				.append(spacer)
+				.append("==================\n")
+				.append("The Remote-100 App\n")
+				.append("==================\n")
+				.append("Copyright (c) 2011 Joakim Andersson")
+				.append(spacer)
+				.append("This program comes with ABSOLUTELY NO WARRANTY.\nThis " +
+						"is free software, licensed under the GNU General Public" +
+						" License; version 2.")
+				.append(spacer)
+				.append("====================\n")
+				.append("The Joystick Library\n")
+				.append("====================\n")
+				.append("Copyright (c) 2011, olberg(at)gmail(dot)com, " +
+						"http://mobile-anarchy-widgets.googlecode.com\n")
+				.append("Copyright (c) 2011, Joakim Andersson\n")
+				.append("All rights reserved.\n")
+				.append("\n")
+				.append("Redistribution and use in source and binary forms, with" +
+						" or without modification, are permitted provided that " +
+						"the following conditions are met:\n")
+				.append("* Redistributions of source code must retain the above " +
+						"copyright notice, this list of conditions and the " +
+						"following disclaimer.\n")
+				.append("* Redistributions in binary form must reproduce the " +
+						"above copyright notice, this list of conditions and the" +
+						" following disclaimer in the documentation and/or other" +
+						" materials provided with the distribution.\n")
+				.append("\n")
+				.append("THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND " +
+						"CONTRIBUTORS \"AS IS\" AND ANY EXPRESS OR IMPLIED " +
+						"WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED " +
+						"WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A " +
+						"PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL " +
+						"THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY " +
+						"DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR " +
+						"CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, " +
+						"PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF " +
+						"USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) " +
+						"HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER " +
+						"IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING " +
+						"NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE " +
+						"USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE " +
+						"POSSIBILITY OF SUCH DAMAGE.")
+				/* phew... */
+				.toString();
+			}
+		
+			aboutDialog = new AlertDialog.Builder(this)
+			.setTitle(R.string.menu_about)
+			.setMessage(aboutMessage)
+			.setIcon(android.R.drawable.ic_dialog_info)
+			.setPositiveButton(android.R.string.ok, new OnClickListener() {
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dialog.dismiss();
+				}
+			})
+			.create();
+    	}
+    	aboutDialog.show();
+    }
+    
+    private void selectCars() {
+    	if (service == null) {
+    		return;
+    	}
+    	// Pick up any cars paired since the last search.
+    	carAddresses.clear();
+    	carAddresses.addAll(connections.scan(adapter));
+    	service.attach(adapter, carAddresses, fleetListener);
+    	
+    	final CarServer[] servers = fleet.getServers();
+    	final String[] addresses = new String[servers.length];
+    	String[] names = new String[servers.length];
+    	final boolean[] checked = new boolean[servers.length];
+    	for (int i = 0; i < servers.length; i++) {
+    		addresses[i] = servers[i].getAddress();
+    		Car100 car = servers[i].getCar();
+    		if (car != null && car.getRtt() >= 0) {
+    			names[i] = getString(R.string.select_cars_rtt, addresses[i],
+    					car.getRtt() / 1000000, car.getLinkQuality());
+    		} else {
+    			names[i] = addresses[i];
+    		}
+    		checked[i] = fleet.isTarget(addresses[i]);
+    	}
+    	new AlertDialog.Builder(this)
+    	.setTitle(R.string.select_cars_title)
+    	.setMultiChoiceItems(names, checked, new DialogInterface.OnMultiChoiceClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which, boolean isChecked) {
+				checked[which] = isChecked;
+			}
+		})
+    	.setPositiveButton(android.R.string.ok, new OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				List<String> target = new ArrayList<String>();
+				for (int i = 0; i < addresses.length; i++) {
+					if (checked[i]) {
+						target.add(addresses[i]);
+					}
+				}
+				if (fleet != null) {
+					fleet.setTarget(target);
+					setStatus(fleet.getTargetStatus());
+				}
+				dialog.dismiss();
+			}
+		})
+    	.create()
+    	.show();
+    }
+    
+    private File getOutputDir() {
+    	File dir = getExternalFilesDir(null);
+    	return (dir != null ? dir : getFilesDir());
+    }
+    
+    private void dumpMetrics() {
+    	StringBuilder sb = new StringBuilder();
+    	Metrics.dump(sb);
+    	Log.i(LOG_TAG, sb.toString());
+    	
+    	File file = new File(getOutputDir(), "metrics-" + System.currentTimeMillis() + ".txt");
+    	try {
+    		FileWriter writer = new FileWriter(file);
+    		try {
+    			writer.write(sb.toString());
+    		} finally {
+    			writer.close();
+    		}
+    		Toast.makeText(this, getString(R.string.metrics_dumped, file.getPath()), Toast.LENGTH_LONG).show();
+    	} catch (IOException e) {
+    		Log.w(LOG_TAG, "Could not save statistics.", e);
+    		Toast.makeText(this, R.string.metrics_dump_failed, Toast.LENGTH_LONG).show();
+    	}
+    }
+    
+    private void startRecording() {
+    	if (fleet == null) {
+    		return;
+    	}
+    	try {
+    		recorder = new ManeuverRecorder(new FileOutputStream(
+    				new File(getOutputDir(), getString(R.string.maneuver_file))));
+    		fleet.setRecorder(recorder);
+    		Toast.makeText(this, R.string.recording_started, Toast.LENGTH_SHORT).show();
+    	} catch (IOException e) {
+    		Log.w(LOG_TAG, "Could not start recording.", e);
+    		Toast.makeText(this, R.string.recording_failed, Toast.LENGTH_LONG).show();
+    	}
+    }
+    
+    private void stopRecording() {
+    	if (recorder == null) {
+    		return;
+    	}
+    	if (fleet != null) {
+    		fleet.setRecorder(null);
+    	}
+    	try {
+    		recorder.close();
+    		Toast.makeText(this, getString(R.string.recording_saved, recorder.getCount(),
+    				getString(R.string.maneuver_file)), Toast.LENGTH_LONG).show();
+    	} catch (IOException e) {
+    		Log.w(LOG_TAG, "Could not save recording.", e);
+    		Toast.makeText(this, R.string.recording_failed, Toast.LENGTH_LONG).show();
+    	}
+    	recorder = null;
+    }
+    
+    private void startReplay() {
+    	if (fleet == null) {
+    		return;
+    	}
+    	File file = new File(getOutputDir(), getString(R.string.maneuver_file));
+    	if (!file.exists()) {
+    		Toast.makeText(this, R.string.replay_missing, Toast.LENGTH_SHORT).show();
+    		return;
+    	}
+    	stopCalibration();
+    	// The replay drives the cars through the fleet, the joystick must keep out of the way.
+    	stopControl();
+    	float speed = Float.parseFloat(prefs.getString(getString(R.string.key_replay_speed),
+    			getString(R.string.replay_speed_default)));
+    	player = new ManeuverPlayer(file, fleet, speed,
+    			prefs.getBoolean(getString(R.string.key_replay_loop), false), replayListener);
+    }
+    
+    private void stopReplay() {
+    	if (player != null) {
+    		player.close();
+    		player = null;
+    	}
+    }
+    
+    private void startCalibration() {
+    	if (fleet == null) {
+    		return;
+    	}
+    	stopReplay();
+    	calibrationQueue.clear();
+    	for (CarServer server : fleet.getServers()) {
+    		if (fleet.isTarget(server.getAddress()) && server.getStatus() == Car100.STATUS_READY) {
+    			calibrationQueue.add(server);
+    		}
+    	}
+    	if (calibrationQueue.isEmpty()) {
+    		Toast.makeText(this, R.string.calibration_no_cars, Toast.LENGTH_SHORT).show();
+    		return;
+    	}
+    	// The calibrator drives the cars itself, the joystick must keep out of the way.
+    	stopControl();
+    	calibrateNext();
+    }
+    
+    /* Start calibrating the next car in the queue. Returns false if there are none left. */
+    private boolean calibrateNext() {
+    	if (calibrationQueue.isEmpty()) {
+    		return false;
+    	}
+    	CarServer server = calibrationQueue.remove(0);
+    	Toast.makeText(this, getString(R.string.calibration_started, server.getAddress()), Toast.LENGTH_SHORT).show();
+    	calibrator = new LinkCalibrator(server, calibrationListener);
+    	return true;
+    }
+    
+    private void stopCalibration() {
+    	calibrationQueue.clear();
+    	if (calibrator != null) {
+    		calibrator.close();
+    		calibrator = null;
+    	}
+    }
+    
+    private void startControl() {
+    	control = new ControlLoop(fleet, getResources().getInteger(R.integer.control_rate),
+    			getResources().getInteger(R.integer.watchdog_deadline),
+    			prefs.getBoolean(getString(R.string.key_proportional), false));
+    	if (bridge != null) {
+    		bridge.setControl(control);
+    	}
+    }
+    
+    private void stopControl() {
+    	if (control != null) {
+    		control.close();
+    		control = null;
+    	}
+    	if (bridge != null) {
+    		bridge.setControl(null);
+    	}
+    }
+    
+    private void startBridge() {
+    	if (!prefs.getBoolean(getString(R.string.key_bridge), false)) {
+    		return;
+    	}
+    	int port = getResources().getInteger(R.integer.bridge_port);
+    	String tokenKey = getString(R.string.key_bridge_token);
+    	byte[] token = ControlBridge.parseToken(prefs.getString(tokenKey, null));
+    	if (token == null) {
+    		token = ControlBridge.newToken();
+    		prefs.edit().putString(tokenKey, ControlBridge.formatToken(token)).commit();
+    	}
+    	try {
+    		InetAddress address = getBridgeAddress();
+    		bridge = new ControlBridge(fleet, address, port, getResources().getInteger(R.integer.bridge_rate), token);
+    		Log.i(LOG_TAG, "Control bridge listening on " + address.getHostAddress() + ":" + port);
+    	} catch (IOException e) {
+    		Log.w(LOG_TAG, "Could not start the control bridge.", e);
+    		Toast.makeText(this, getString(R.string.bridge_failed, port), Toast.LENGTH_LONG).show();
+    	}
+    }
+    
+    /* The Wi-Fi address, for other devices on the network, or the loopback address without Wi-Fi. */
+    private InetAddress getBridgeAddress() throws IOException {
+    	WifiManager wifi = (WifiManager)getSystemService(WIFI_SERVICE);
+    	int ip = (wifi != null && wifi.isWifiEnabled() ? wifi.getConnectionInfo().getIpAddress() : 0);
+    	if (ip == 0) {
+    		return InetAddress.getByName("127.0.0.1");
+    	}
+    	// WifiInfo reports the address in little-endian order.
+    	return InetAddress.getByAddress(new byte[] {
+    			(byte)ip, (byte)(ip >> 8), (byte)(ip >> 16), (byte)(ip >> 24) });
+    }
+
+    private void stopBridge() {
+    	if (bridge != null) {
+    		Log.i(LOG_TAG, "Control bridge accepted " + bridge.getAccepted() + " datagrams, dropped " +
+    				bridge.getStale() + " stale and " + bridge.getLimited() + " over the rate limit, turned away " +
+    				bridge.getUnauthorized() + " without the token.");
+    		bridge.close();
+    		bridge = null;
+    	}
+    }
+    
     public void resetUI() {
     	currGear = 1;
-    	((SeekBar)findViewById(R.id.gearBar)).setProgress(currGear);
-    	((TextView)findViewById(R.id.gearText)).setText(String.valueOf(currGear + 1));
+    	gearBar.setProgress(currGear);
+    	gearText.setText(String.valueOf(currGear + 1));
     }
+    
+    private final Runnable connectRunnable = new Runnable() {
+		@Override
+		public void run() {
+			connectCars();
+		}
+	};
+    
+    /* Marks the first frame after a start or resume, and only then starts connecting. */
+    private final ViewTreeObserver.OnPreDrawListener firstFrameListener = new ViewTreeObserver.OnPreDrawListener() {
+		@Override
+		public boolean onPreDraw() {
+			statusText.getViewTreeObserver().removeOnPreDrawListener(this);
+			if (startTime != 0) {
+				Log.i(LOG_TAG, "First frame after " + (Metrics.startupFrame(startTime) / 1000000) + " ms.");
+			}
+			handler.post(connectRunnable);
+			return true;
+		}
+	};
+    
+    /* Re-asserts a held stick or gamepad, which gives no new events, to keep the watchdog fed. */
+    private final Runnable holdRunnable = new Runnable() {
+		@Override
+		public void run() {
+			if (control != null && (stickHeld || (gamepad != null && gamepad.isHeld()))) {
+				control.keepAlive();
+			}
+			handler.postDelayed(this, holdInterval);
+		}
+	};
+    
+    private final Runnable resetUIRunnable = new Runnable() {
+		@Override
+		public void run() {
+			resetUI();
+		}
+	};
 	
 	// =========================================
 	// Event Listeners
 	// =========================================
     
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+		@Override
+		public void onServiceConnected(ComponentName name, IBinder binder) {
+			service = ((CarService.LocalBinder)binder).getService();
+			fleet = service.attach(adapter, carAddresses, fleetListener);
+			startBridge();
+			startControl();
+			setStatus(fleet.getTargetStatus());
+		}
+
+		@Override
+		public void onServiceDisconnected(ComponentName name) {
+			if (control != null) {
+				control.close();
+				control = null;
+			}
+			stopBridge();
+			fleet = null;
+			service = null;
+			setStatus(Car100.STATUS_NO_LINK);
+		}
+    };
+    
+    private final ManeuverPlayer.Listener replayListener = new ManeuverPlayer.Listener() {
+		@Override
+		public void onFinished(final ManeuverPlayer finished, final IOException e) {
+			handler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (e != null) {
+						Log.w(LOG_TAG, "Could not replay maneuver.", e);
+						Toast.makeText(Remote100Activity.this, R.string.replay_failed, Toast.LENGTH_LONG).show();
+					}
+					if (player == finished) {
+						player = null;
+					}
+					// Hand the cars back to the joystick, unless we're paused or driving them otherwise.
+					if (player == null && calibrator == null && control == null && fleet != null) {
+						startControl();
+					}
+				}
+			});
+		}
+    };
+    
+    private final LinkCalibrator.Listener calibrationListener = new LinkCalibrator.Listener() {
+		@Override
+		public void onStep(LinkCalibrator calibrator, LinkCalibrator.Step step) {
+			Log.i(LOG_TAG, calibrator.getServer().getAddress() + " " + step);
+		}
+		
+		@Override
+		public void onFinished(final LinkCalibrator finished, final int rate) {
+			handler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (calibrator != finished) {
+						// Stopped, keep what the car had.
+						return;
+					}
+					calibrator = null;
+					String address = finished.getServer().getAddress();
+					if (rate > 0) {
+						connections.putCommandRate(address, rate);
+						finished.getServer().setCommandRate(rate);
+						Toast.makeText(Remote100Activity.this, getString(R.string.calibration_done, address, rate),
+								Toast.LENGTH_LONG).show();
+					} else {
+						Toast.makeText(Remote100Activity.this, getString(R.string.calibration_failed, address),
+								Toast.LENGTH_LONG).show();
+					}
+					// Hand the cars back to the joystick, unless there are more to calibrate.
+					if (!calibrateNext() && player == null && control == null && fleet != null) {
+						startControl();
+					}
+				}
+			});
+		}
+    };
+    
+    /* Collects events from the I/O threads into at most one UI update per frame. */
+    private class FleetListener implements CarListener, Runnable {
+    	// Set while an update is posted to the UI thread.
+    	private final AtomicBoolean posted = new AtomicBoolean();
+    	
+    	// The time (SystemClock.uptimeMillis()) of the last update.
+    	private volatile long lastUpdate = 0;
+    	
+    	// The address of a car a command couldn't be delivered to since the last update, or null.
+    	private volatile String failed = null;
+    	
+		@Override
+		public void onStatusChanged(String address, byte status) {
+			Log.i(LOG_TAG, address + " status: " + status);
+			post();
+		}
+
+		@Override
+		public void onLinkLost(String address) {
+			Log.i(LOG_TAG, address + " lost");
+		}
+
+		@Override
+		public void onChargeChanged(String address, byte charge) {
+			Log.i(LOG_TAG, address + " charge: " + charge);
+		}
+
+		@Override
+		public void onCommandFailed(String address, IOException e) {
+			Log.w(LOG_TAG, address + " command failed", e);
+			failed = address;
+			post();
+		}
+		
+		@Override
+		public void onStopLate(String address, long latency) {
+			Log.w(LOG_TAG, address + " stop written " + (latency / 1000000) + " ms after request");
+		}
+		
+		@Override
+		public void run() {
+			posted.set(false);
+			lastUpdate = SystemClock.uptimeMillis();
+			if (fleet != null) {
+				setStatus(fleet.getTargetStatus());
+			}
+			String address = failed;
+			if (address != null) {
+				failed = null;
+				Toast.makeText(Remote100Activity.this, getString(R.string.command_failed, address),
+						Toast.LENGTH_SHORT).show();
+			}
+		}
+		
+		/* Drop any update not yet made, after the activity stops listening. */
+		public void cancel() {
+			handler.removeCallbacks(this);
+			posted.set(false);
+		}
+		
+		private void post() {
+			if (posted.compareAndSet(false, true)) {
+				long delay = lastUpdate + UPDATE_INTERVAL - SystemClock.uptimeMillis();
+				handler.postDelayed(this, Math.max(0, delay));
+			}
+		}
+    }
+    
     private class GearChangeListener implements OnSeekBarChangeListener {
 		@Override
 		public void onProgressChanged(SeekBar seekBar, int gear,
 				boolean fromUser) {
-			if (!fromUser || Car100.setGear((byte)(gear + 1))) {
-				currGear = gear;
-			} else {
-				seekBar.setProgress(currGear);
+			if (control != null) {
+				if (shiftTime != 0) {
+					control.setGear((byte)(gear + 1), shiftTime, Metrics.INPUT_GAMEPAD);
+				} else {
+					control.setGear((byte)(gear + 1));
+				}
 			}
-			((TextView)findViewById(R.id.gearText)).setText(String.valueOf(currGear + 1));
+			currGear = gear;
+			gearText.setText(String.valueOf(currGear + 1));
 		}
 
 		@Override
@@ -344,21 +1000,36 @@ public class Remote100Activity extends Activity {
     private class JoystickListener implements OnJoystickMovedListener {
 		@Override
 		public void onMoved(int x, int y) {
-			if (x < -5) {
-				Car100.setDir(Car100.DIR_LEFT);
-			} else if (x > 5) {
-				Car100.setDir(Car100.DIR_RIGHT);
-			} else {
-				Car100.setDir(Car100.DIR_STRAIGHT);
+			stickHeld = (x != 0 || y != 0);
+			if (control != null) {
+				control.setStick(x, y);
 			}
-			
-			if (y > 5) {
-				Car100.setAcc(Car100.ACC_FORWARD);
-			} else if (y < -5) {
-				Car100.setAcc(Car100.ACC_REVERSE);
-			} else {
-				Car100.setAcc(Car100.ACC_STOP);
+		}
+    }
+    
+    private class TiltListener implements TiltInput.Listener {
+		@Override
+		public void onTilt(int x, int y, long time) {
+			if (control != null) {
+				control.setStick(x, y, time, Metrics.INPUT_TILT);
+			}
+		}
+    }
+    
+    private class GamepadListener implements GamepadInput.Listener {
+		@Override
+		public void onStick(int x, int y, long time) {
+			if (control != null) {
+				control.setStick(x, y, time, Metrics.INPUT_GAMEPAD);
 			}
 		}
+		
+		@Override
+		public void onShift(int step, long time) {
+			// Through the gear bar, so that it shows the new gear too.
+			shiftTime = time;
+			gearBar.setProgress(Math.max(0, Math.min(gearBar.getMax(), currGear + step)));
+			shiftTime = 0;
+		}
     }
 }
\ No newline at end of file
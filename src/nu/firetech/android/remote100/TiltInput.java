@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100;
+
+import nu.firetech.android.remote100.backend.AxisFilter;
+import nu.firetech.android.remote100.backend.ControlLoop;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+
+/**
+ * Steers and accelerates by tilting the device, instead of the joystick.
+ * 
+ * The accelerometer is sampled at game rate, and the gravity it measures
+ * is turned into stick deflections: turning the device like a steering
+ * wheel steers, and tilting its top away from or towards the user drives
+ * forward or in reverse, relative to how it was held when started. The
+ * activity is locked to landscape, so the device y axis is the horizontal
+ * one. Both axes go through an AxisFilter and every sample is posted,
+ * with the time of the sensor event, to the ControlLoop, whose mailbox
+ * only keeps the latest. Nothing is allocated per event.
+ */
+/* package */ class TiltInput implements SensorEventListener {
+	// The gravity component (in m/s^2) giving full deflection, about 30 degrees of tilt.
+	private static final float FULL_TILT = SensorManager.GRAVITY_EARTH / 2;
+	
+	// The largest difference (in ns) between a sensor timestamp and System.nanoTime() to trust it.
+	private static final long MAX_CLOCK_SKEW = 1000 * 1000000L;
+	
+	public interface Listener {
+		/**
+		 * Called from the UI thread for every sensor event.
+		 * 
+		 * @param x Horizontal deflection, negative to the left.
+		 * @param y Vertical deflection, positive forward.
+		 * @param time The time (System.nanoTime()) of the sensor event.
+		 */
+		void onTilt(int x, int y, long time);
+	}
+	
+	private final SensorManager sensors;
+	private final Sensor accelerometer;
+	private final Listener listener;
+	
+	private final AxisFilter steering = new AxisFilter(0.3f, 0.1f, 0.05f, ControlLoop.MAX_DEFLECTION);
+	private final AxisFilter throttle = new AxisFilter(0.3f, 0.1f, 0.05f, ControlLoop.MAX_DEFLECTION);
+	
+	// The forward tilt the device was held at when started, or NaN until known.
+	private float rest = Float.NaN;
+	
+	public TiltInput(SensorManager sensors, Listener listener) {
+		this.sensors = sensors;
+		this.accelerometer = sensors.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+		this.listener = listener;
+	}
+	
+	/**
+	 * @return true if the device has an accelerometer.
+	 */
+	public boolean isAvailable() {
+		return accelerometer != null;
+	}
+	
+	/**
+	 * Start sampling, taking the current position as the rest position.
+	 */
+	public void start() {
+		steering.reset();
+		throttle.reset();
+		rest = Float.NaN;
+		if (accelerometer != null) {
+			sensors.registerListener(this, accelerometer, SensorManager.SENSOR_DELAY_GAME);
+		}
+	}
+	
+	public void stop() {
+		sensors.unregisterListener(this);
+	}
+	
+	@Override
+	public void onSensorChanged(SensorEvent event) {
+		long now = System.nanoTime();
+		float[] values = event.values;
+		if (Float.isNaN(rest)) {
+			rest = values[2];
+		}
+		int x = steering.filter(values[1] / FULL_TILT);
+		int y = throttle.filter((values[2] - rest) / FULL_TILT);
+		
+		// The event timestamp uses the monotonic clock on most devices, but not all.
+		long time = event.timestamp;
+		if (Math.abs(now - time) > MAX_CLOCK_SKEW) {
+			time = now;
+		}
+		listener.onTilt(x, y, time);
+	}
+	
+	@Override
+	public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+}
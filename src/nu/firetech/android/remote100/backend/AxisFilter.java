@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+/**
+ * Turns a noisy analog reading, e.g. a tilt angle, into a stick deflection.
+ * 
+ * Each sample goes through three stages:
+ * 
+ * 1. Low-pass - an exponential moving average, smoothing out sensor noise
+ *    and hand tremor.
+ * 2. Deadband - readings close to the rest position give no deflection at
+ *    all, so the car stays put while the device is held still.
+ * 3. Hysteresis - once in the deadband, the reading must go that much
+ *    further out to leave it again, so a reading at its edge doesn't make
+ *    the output flicker.
+ * 
+ * The output is in the same range as the joystick, so ControlLoop can make
+ * the same decisions from it. Filtering only does arithmetic on fields, so
+ * it's safe to run for every sensor event.
+ */
+public class AxisFilter {
+	// =========================================
+	// Private Members
+	// =========================================
+
+	// The weight of a new sample in the average, in the range (0, 1].
+	private final float mSmoothing;
+
+	// The deadband and hysteresis, as shares of a full reading.
+	private final float mDeadband;
+	private final float mHysteresis;
+
+	// The output for a full reading.
+	private final int mRange;
+
+	// The average so far, and whether it's outside the deadband.
+	private float mAverage = 0;
+	private boolean mActive = false;
+	private boolean mPrimed = false;
+
+
+	// =========================================
+	// Public Methods
+	// =========================================
+
+	/**
+	 * @param smoothing The weight of a new sample in the average, in the range (0, 1], 1 for no smoothing.
+	 * @param deadband The share of a full reading giving no output.
+	 * @param hysteresis How much further out than the deadband a reading must go to give output again.
+	 * @param range The output for a full reading, e.g. ControlLoop.MAX_DEFLECTION.
+	 */
+	public AxisFilter(float smoothing, float deadband, float hysteresis, int range) {
+		if (!(smoothing > 0 && smoothing <= 1) || deadband < 0 || hysteresis < 0 || range <= 0) {
+			throw new IllegalArgumentException("Invalid filter parameters");
+		}
+		mSmoothing = smoothing;
+		mDeadband = deadband;
+		mHysteresis = hysteresis;
+		mRange = range;
+	}
+
+	/**
+	 * Filter a sample.
+	 * 
+	 * @param value The reading, 1 or -1 being full deflection either way.
+	 * @return The deflection, in the range [-range, range].
+	 */
+	public int filter(float value) {
+		if (mPrimed) {
+			mAverage += mSmoothing * (value - mAverage);
+		} else {
+			mAverage = value;
+			mPrimed = true;
+		}
+
+		float magnitude = Math.abs(mAverage);
+		if (mActive) {
+			mActive = (magnitude > mDeadband);
+		} else {
+			mActive = (magnitude > mDeadband + mHysteresis);
+		}
+		if (!mActive) {
+			return 0;
+		}
+		int output = Math.round(Math.min(magnitude, 1f) * mRange);
+		return (mAverage > 0 ? output : -output);
+	}
+
+	/**
+	 * Forget all earlier samples.
+	 */
+	public void reset() {
+		mAverage = 0;
+		mActive = false;
+		mPrimed = false;
+	}
+}
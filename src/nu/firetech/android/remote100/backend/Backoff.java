@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.util.Random;
+
+/**
+ * Delays between connection attempts.
+ * 
+ * The first attempt after a reset is made almost right away, since a lost
+ * link is often back within moments. Further delays grow roughly threefold
+ * up to a cap, and each one is picked at random between the minimum and
+ * that bound, so that several cars losing their links together don't keep
+ * retrying in lockstep. Given a seeded Random, the delays repeat exactly,
+ * e.g. for runs on a VirtualClock.
+ */
+public class Backoff {
+	// =========================================
+	// Private Members
+	// =========================================
+
+	private final long mMin;
+	private final long mMax;
+	private final Random mRandom;
+
+	// The previous delay, or 0 if reset since.
+	private long mLast = 0;
+
+
+	// =========================================
+	// Public Methods
+	// =========================================
+
+	/**
+	 * @param min The shortest delay, in ms.
+	 * @param max The longest delay, in ms.
+	 */
+	public Backoff(long min, long max) {
+		this(min, max, new Random());
+	}
+
+	/**
+	 * @param min The shortest delay, in ms.
+	 * @param max The longest delay, in ms.
+	 * @param random Where to pick the delays from.
+	 */
+	public Backoff(long min, long max, Random random) {
+		if (min <= 0 || max < min) {
+			throw new IllegalArgumentException("Invalid delays: " + min + ", " + max);
+		}
+		mMin = min;
+		mMax = max;
+		mRandom = random;
+	}
+
+	/**
+	 * @return The delay (in ms) before the next attempt.
+	 */
+	public synchronized long next() {
+		long bound = (mLast == 0 ? 2 * mMin : mLast * 3);
+		bound = Math.min(mMax, bound);
+		mLast = mMin + (long)(mRandom.nextDouble() * (bound - mMin));
+		return mLast;
+	}
+
+	/**
+	 * Start over from the shortest delay, after a successful attempt.
+	 */
+	public synchronized void reset() {
+		mLast = 0;
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+/**
+ * Link to a real car, using the Bluetooth serial port profile.
+ * 
+ * Looking up the serial port channel (SDP) is a large part of the time it
+ * takes to connect. With a ChannelCache, the channel found by the last
+ * successful lookup is tried directly first, and the lookup is only made
+ * again if that fails.
+ */
+public class BluetoothTransport implements CarTransport {
+	private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805f9b34fb");
+	
+	/**
+	 * Remembers the RFCOMM channel of each car between connections.
+	 */
+	public interface ChannelCache {
+		/**
+		 * @param address The address of a car.
+		 * @return The channel of the last successful connection, or -1 if unknown.
+		 */
+		int getChannel(String address);
+		
+		/**
+		 * @param address The address of a car.
+		 * @param channel The channel to use, or -1 to forget it.
+		 */
+		void putChannel(String address, int channel);
+	}
+	
+	// Hidden API to connect to a channel directly, or null if not available.
+	private static final Method CREATE_RFCOMM_SOCKET = findCreateRfcommSocket();
+	// Hidden field holding the channel of a socket, or null if not available.
+	private static final Field SOCKET_PORT = findSocketPort();
+	
+	private final BluetoothAdapter adapter;
+	private final String address;
+	private final ChannelCache cache;
+	private BluetoothDevice car;
+	private BluetoothSocket socket;
+	
+	/**
+	 * @param adapter The Bluetooth adapter to connect through.
+	 * @param address The address of the car.
+	 * @param cache Where to remember the channel of the car, or null.
+	 */
+	public BluetoothTransport(BluetoothAdapter adapter, String address, ChannelCache cache) {
+		this.adapter = adapter;
+		this.address = address;
+		this.cache = cache;
+	}
+	
+	@Override
+	public void connect() throws IOException {
+		if (car == null) {
+			car = adapter.getRemoteDevice(address);
+		}
+		// Discovery slows down connecting a lot.
+		adapter.cancelDiscovery();
+		
+		int channel = (cache != null ? cache.getChannel(address) : -1);
+		if (channel > 0) {
+			socket = createSocket(car, channel);
+			if (socket != null) {
+				try {
+					socket.connect();
+					return;
+				} catch (IOException e) {
+					socket.close();
+					cache.putChannel(address, -1);
+				}
+			}
+		}
+		
+		socket = car.createRfcommSocketToServiceRecord(SPP_UUID);
+		socket.connect();
+		if (cache != null) {
+			channel = getChannel(socket);
+			if (channel > 0) {
+				cache.putChannel(address, channel);
+			}
+		}
+	}
+	
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return socket.getInputStream();
+	}
+	
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return socket.getOutputStream();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (socket != null) {
+			socket.close();
+		}
+	}
+	
+	@Override
+	public String getAddress() {
+		return address;
+	}
+	
+	/* Create a socket for a known channel, or null if not possible. */
+	private static BluetoothSocket createSocket(BluetoothDevice car, int channel) {
+		if (CREATE_RFCOMM_SOCKET == null) {
+			return null;
+		}
+		try {
+			return (BluetoothSocket)CREATE_RFCOMM_SOCKET.invoke(car, channel);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+	
+	/* Find the channel a connected socket uses, or -1 if not possible. */
+	private static int getChannel(BluetoothSocket socket) {
+		if (SOCKET_PORT == null) {
+			return -1;
+		}
+		try {
+			return SOCKET_PORT.getInt(socket);
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+	
+	private static Method findCreateRfcommSocket() {
+		try {
+			return BluetoothDevice.class.getMethod("createRfcommSocket", int.class);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+	
+	private static Field findSocketPort() {
+		try {
+			Field field = BluetoothSocket.class.getDeclaredField("mPort");
+			field.setAccessible(true);
+			return field;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
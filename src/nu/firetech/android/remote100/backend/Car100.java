@@ -30,41 +30,24 @@ package nu.firetech.android.remote100.backend;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-
-import android.bluetooth.BluetoothSocket;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * A connection to one car.
+ * 
+ * Input from the car is read by a reader thread as soon as it arrives,
+ * while commands are written by a CommandScheduler on the shared IoEngine.
+ * Any number of cars can be connected at the same time, see CarFleet.
+ */
 public class Car100 {
 	// =========================================
 	// Private Constants
 	// =========================================
 
-	// The input which says that the car is charging.
-	private final String CAR_CHARGING		= "Charging";
-	// The input which says that the car is in driving mode.
-	private final String CAR_SPEED			= "Speed=2";
-	// The input which says that the car is fully charged.
-	private final String CAR_CHARGE_FULL	= "Ready";
-
-	// The response to the car's output.
-	private final String OK = "OK";
-
-	// Car's commands.
-	private final String FORWARD_PRESSED	= "+CKEV: u,1";
-	private final String BACK_PRESSED		= "+CKEV: d,1";
-	private final String SPEED3_PRESSED		= "+CKEV: #,1";
-	private final String SPEED2_PRESSED		= "+CKEV: 0,1";
-	private final String SPEED1_PRESSED		= "+CKEV: *,1";
-	private final String STOP_PRESSED		= "+CKEV: :J,1";
-	private final String LEFT_PRESSED		= "+CKEV: 2,1";
-	private final String LEFT_RELEASED		= "+CKEV: 2,0";
-	private final String RIGHT_PRESSED		= "+CKEV: 3,1";
-	private final String RIGHT_RELEASED		= "+CKEV: 3,0";
-	private final String NO_PRESSED			= "+CKEV: e,1";
-	private final String NO_RELEASED		= "+CKEV: e,0";
-
-	// Carriage return and line feed.
-	private final byte[] CRLF = {13, 10};
+	// Size of the buffer the reader thread reads input into.
+	private static final int READ_BUFFER_SIZE = 256;
 
 
 	// =========================================
@@ -88,42 +71,113 @@ public class Car100 {
 	public static final byte DIR_STRAIGHT	= 0;
 	public static final byte DIR_RIGHT		= 1;
 
+	// Possible charge states, see CarListener.onChargeChanged().
+	public static final byte CHARGE_NONE		= 0;
+	public static final byte CHARGE_CHARGING	= 1;
+	public static final byte CHARGE_FULL		= 2;
+
 
 	// =========================================
 	// Private Members
 	// =========================================
 
-	// The current instance of this class.
-	private static Car100 instance = null;
+	// The link to the car.
+	private final CarTransport mTransport;
+
+	// Who to tell about events.
+	private final CopyOnWriteArrayList<CarListener> mListeners = new CopyOnWriteArrayList<CarListener>();
+
+	// The thread reading input from the car.
+	private final Thread mReader;
+
+	// The parser for input from the car.
+	private final MessageParser mParser = new MessageParser(new MessageParser.Listener() {
+		@Override
+		public void onMessage(int message) {
+			mHandleMessage(message);
+		}
+	});
+
+	// The scheduler writing commands to the car.
+	private final CommandScheduler mScheduler;
+
+	// What to time things by.
+	private final Clock mClock;
+
+	// Checks that the link is alive and measures its round-trip time.
+	private final Heartbeat mHeartbeat;
+
+	// Where to record the controls written to the car, or null.
+	private volatile ManeuverRecorder mRecorder;
 
-	// The BluetoothSocket.
-	private BluetoothSocket mSocket;
+	// The periodic heartbeat tick.
+	private final ScheduledFuture<?> mHeartbeatTick;
 
-	// The current status of the car.
-	private byte mCurrStatus = STATUS_NO_LINK;
+	// Lock used to signal status changes to waiting threads.
+	private final Object mStatusLock = new Object();
 
-	// The last time (System.currentTimeMillis()) we got or sent data to the car.
-	private long mLastData;
+	// The current state of the car, see CarState.
+	private final AtomicReference<CarState> mState =
+			new AtomicReference<CarState>(CarState.INITIAL.withStatus(STATUS_CONNECTED));
 
-	// The current gear in the car (1, 2 or 3).
-	private byte mCurrGear;
+	// Set when we are closing the link ourselves.
+	private volatile boolean mClosing = false;
 
-	// The current acceleration of the car (ACC_REVERSE, ACC_STOP or ACC_FORWARD).
-	private byte mCurrAcc;
+	// The last time (Clock.nanoTime()) we got data from the car.
+	private volatile long mLastInput;
 
-	// The current direction of the car (DIR_LEFT, DIR_STRAIGHT or DIR_RIGHT).
-	private byte mCurrDir;
+	// The same time by System.nanoTime(), which Metrics compares with the
+	// time the UI shows the status (only touched by the reader).
+	private long mLastReceived;
 
 
 	// =========================================
 	// Public Methods
 	// =========================================
 
+	/**
+	 * Connect to a car.
+	 * 
+	 * Blocks until the link is up.
+	 * 
+	 * @param transport The link to the car.
+	 * @param engine The engine to do the I/O work on.
+	 * @param listener Who to tell about events from the start, or null.
+	 * @return The connected car.
+	 */
+	public static Car100 connect(CarTransport transport, IoEngine engine, CarListener listener) throws IOException {
+		transport.connect();
+		try {
+			return new Car100(transport, engine, listener);
+		} catch (IOException e) {
+			transport.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Start telling a listener about events from this car.
+	 * 
+	 * @param listener The listener to add.
+	 */
+	public void addListener(CarListener listener) {
+		mListeners.addIfAbsent(listener);
+	}
+
+	/**
+	 * Stop telling a listener about events from this car.
+	 * 
+	 * @param listener The listener to remove.
+	 */
+	public void removeListener(CarListener listener) {
+		mListeners.remove(listener);
+	}
+
 	/**
 	 * Get car status.
 	 * 
-	 * Will check for any new input and return the latest status update
-	 * available. Run this method often. ;)
+	 * Input from the car is handled by a separate reader thread as soon as it
+	 * arrives, so this method only returns the latest status update.
 	 * 
 	 * The return value will be one of:
 	 * * STATUS_NO_LINK - Default status, will be set on I/O errors.
@@ -133,8 +187,44 @@ public class Car100 {
 	 * 
 	 * @return The car's current status, expressed as mentioned above.
 	 */
-	public static byte getStatus() throws IOException {
-		return (instance != null ? instance.mGetStatus() : STATUS_NO_LINK);
+	public byte getStatus() {
+		return mState.get().getStatus();
+	}
+
+	/**
+	 * @return A consistent snapshot of the car's status and controls.
+	 */
+	public CarState getState() {
+		return mState.get();
+	}
+
+	/**
+	 * Wait for the car status to change.
+	 * 
+	 * Blocks until the status differs from the given one or the calling
+	 * thread is interrupted. The same values as for getStatus() are returned.
+	 * 
+	 * @param status The last status seen by the caller.
+	 * @return The car's current status.
+	 */
+	public byte awaitStatusChange(byte status) {
+		synchronized (mStatusLock) {
+			while (getStatus() == status) {
+				try {
+					mStatusLock.wait();
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+		return getStatus();
+	}
+
+	/**
+	 * @return A string identifying the car, see CarTransport.getAddress().
+	 */
+	public String getAddress() {
+		return mTransport.getAddress();
 	}
 
 	/**
@@ -143,21 +233,18 @@ public class Car100 {
 	 * Gear should be in the range [1, 3].
 	 * 
 	 * @param gear Desired car gear, in the range [1, 3]
-	 * @return true if setting was successful, false otherwise.
+	 * @return true if the setting was queued for the car, false otherwise.
 	 */
-	public static boolean setGear(byte gear) {
-		if (instance == null) {
-			return false;
-		}
-
-		try {
-			instance.mSetGear(gear);
-		} catch (IOException e) {
-			instance.mCurrStatus = STATUS_NO_LINK;
-			return false;
+	public boolean setGear(byte gear) {
+		if (gear < 1 || gear > 3) {
+			throw new IllegalArgumentException("Unknown gear: " + gear);
 		}
-
-		return true;
+		CarState old, state;
+		do {
+			old = mState.get();
+			state = old.withGear(gear);
+		} while (state != old && !mSwap(old, state));
+		return mApplied(old, state);
 	}
 
 	/**
@@ -166,21 +253,18 @@ public class Car100 {
 	 * Use ACC_REVERSE, ACC_STOP or ACC_FORWARD as input.
 	 * 
 	 * @param acc One of ACC_REVERSE, ACC_STOP or ACC_FORWARD.
-	 * @return true if setting was successful, false otherwise.
+	 * @return true if the setting was queued for the car, false otherwise.
 	 */
-	public static boolean setAcc(byte acc) {
-		if (instance == null) {
-			return false;
+	public boolean setAcc(byte acc) {
+		if (acc < ACC_REVERSE || acc > ACC_FORWARD) {
+			throw new IllegalArgumentException("Unknown acceleration: " + acc);
 		}
-
-		try {
-			instance.mSetAcc(acc);
-		} catch (IOException e) {
-			instance.mCurrStatus = STATUS_NO_LINK;
-			return false;
-		}
-
-		return true;
+		CarState old, state;
+		do {
+			old = mState.get();
+			state = old.withAcc(acc, mClock.nanoTime());
+		} while (state != old && !mSwap(old, state));
+		return mApplied(old, state);
 	}
 
 	/**
@@ -189,21 +273,120 @@ public class Car100 {
 	 * Use DIR_LEFT, DIR_STRAIGHT or DIR_RIGHT as input.
 	 * 
 	 * @param dir One of DIR_LEFT, DIR_STRAIGHT or DIR_RIGHT.
-	 * @return true if setting was successful, false otherwise.
+	 * @return true if the setting was queued for the car, false otherwise.
 	 */
-	public static boolean setDir(byte dir) {
-		if (instance == null) {
-			return false;
+	public boolean setDir(byte dir) {
+		if (dir < DIR_LEFT || dir > DIR_RIGHT) {
+			throw new IllegalArgumentException("Unknown direction: " + dir);
 		}
+		CarState old, state;
+		do {
+			old = mState.get();
+			state = old.withDir(dir);
+		} while (state != old && !mSwap(old, state));
+		return mApplied(old, state);
+	}
 
-		try {
-			instance.mSetDir(dir);
-		} catch (IOException e) {
-			instance.mCurrStatus = STATUS_NO_LINK;
-			return false;
+	/**
+	 * @return The time (Clock.nanoTime()) input was last received from the car, or 0.
+	 */
+	public long getLastInput() {
+		return mLastInput;
+	}
+
+	/**
+	 * Set how fast a dead link must be noticed while driving.
+	 * 
+	 * Only enforced once the car has answered a heartbeat probe, since until
+	 * then there is nothing telling a dead link from a car that doesn't answer.
+	 * 
+	 * @param budget The time (in ms), at least Heartbeat.MIN_BUDGET.
+	 */
+	public void setDeadLinkBudget(int budget) {
+		mHeartbeat.setBudget(budget);
+	}
+
+	/**
+	 * Record the controls actually written to the car, starting with those
+	 * currently in use, see ManeuverRecorder.
+	 * 
+	 * @param recorder Where to record them, or null to stop recording.
+	 */
+	public void setRecorder(ManeuverRecorder recorder) {
+		mRecorder = recorder;
+		if (recorder != null) {
+			int state = mScheduler.getCommitted();
+			recorder.record(ManeuverRecorder.unpackDir(state), ManeuverRecorder.unpackAcc(state),
+					ManeuverRecorder.unpackGear(state));
 		}
+	}
 
-		return true;
+	/**
+	 * Limit how many commands per second are sent to the car, see LinkCalibrator.
+	 * 
+	 * Steering, acceleration and gear changes coming faster than this are
+	 * merged, only the latest being sent. Stops are never held back.
+	 * 
+	 * @param rate The most commands per second, or 0 for no limit.
+	 */
+	public void setCommandRate(int rate) {
+		mScheduler.setCommandRate(rate);
+	}
+
+	/**
+	 * @return The smoothed round-trip time (in ns) of the link, or -1 if unknown.
+	 */
+	public long getRtt() {
+		return mHeartbeat.getRtt();
+	}
+
+	/**
+	 * @return The variance (in ns) of the round-trip time, or -1 if unknown.
+	 */
+	public long getRttVariance() {
+		return mHeartbeat.getRttVariance();
+	}
+
+	/**
+	 * @return The share (in percent) of heartbeat probes answered lately, or -1 if unknown.
+	 */
+	public int getLinkQuality() {
+		return mHeartbeat.getQuality();
+	}
+
+	/**
+	 * @return The longest time (in ns) it has taken to get a STOP written to the car.
+	 */
+	public long getStopLatencyMax() {
+		return mScheduler.getStopLatencyMax();
+	}
+
+	/**
+	 * @return The number of STOPs that took longer than the allowed bound to write.
+	 */
+	public int getStopViolations() {
+		return mScheduler.getStopViolations();
+	}
+
+	/**
+	 * @return The time each write to the link has taken.
+	 */
+	public LatencyHistogram getWriteTimes() {
+		return mScheduler.getWriteTimes();
+	}
+
+	/**
+	 * @return The number of writes that blocked, see CommandScheduler.BLOCKED_WRITE.
+	 */
+	public int getBlockedWrites() {
+		return mScheduler.getBlockedWrites();
+	}
+
+	/**
+	 * @return The number of commands (not answers or probes) written to the car.
+	 */
+	public int getCommandCount() {
+		return mScheduler.getCommandCount();
 	}
 
 	/**
@@ -214,190 +397,252 @@ public class Car100 {
 	 * 
 	 * @return true if closing was successful, false otherwise.
 	 */
-	public static boolean close() {
-		if (instance == null) {
-			return false;
-		}
-
-		try {
-			instance.mClose();
-		} catch (IOException e) {
-			instance.mCurrStatus = STATUS_NO_LINK;
-			return false;
-		}
+	public boolean close() {
+		requestClose();
+		return awaitClose(mClock.nanoTime() + CommandScheduler.STOP_LATENCY_BOUND);
+	}
 
-		instance = null;
+	/**
+	 * Start closing the connection to the car, without waiting, see close().
+	 * 
+	 * Closing many cars this way, and then waiting for all of them, takes no
+	 * longer than closing one.
+	 */
+	public void requestClose() {
+		mClosing = true;
+		mScheduler.requestClose();
+	}
 
-		return true;
+	/**
+	 * Finish closing the connection to the car, see requestClose().
+	 * 
+	 * @param deadline The time (Clock.nanoTime()) to stop waiting for the car to be told at.
+	 * @return true if closing was successful, false otherwise.
+	 */
+	public boolean awaitClose(long deadline) {
+		boolean closed = mScheduler.awaitClose(deadline);
+		mFail();
+		return closed;
 	}
 
 	// =========================================
 	// Helper Methods
 	// =========================================
 
-	private Car100(BluetoothSocket socket) throws IOException {
-		this.mSocket = socket;
-		this.mCurrStatus = STATUS_CONNECTED;
-		this.mLastData = System.currentTimeMillis();
-		mReset();
-		mGetStatus();
-	}
-
-	/* Connect to car. */
-	/* package */ static void connect(BluetoothSocket socket) throws IOException {
-		close(); //Close any previous instance.
-		try {
-			socket.connect();
-			instance = new Car100(socket);
-		} catch (IOException e) {
-			instance = null;
-			throw e;
+	private Car100(CarTransport transport, IoEngine engine, CarListener listener) throws IOException {
+		this.mTransport = transport;
+		if (listener != null) {
+			mListeners.add(listener);
 		}
-	}
+		mClock = engine.getClock();
+		mHeartbeat = new Heartbeat(mClock, new Heartbeat.Listener() {
+			@Override
+			public void sendProbe() {
+				mScheduler.probe();
+			}
 
-	/* Reset parameters. */
-	private void mReset() {
-		mCurrDir = DIR_STRAIGHT;
-		mCurrGear = 2;
-		mCurrAcc = ACC_STOP;
-	}
+			@Override
+			public void onProbeLost() {
+				mScheduler.probeLost();
+			}
 
-	/* Check if car has sent any new status and return current or new status. */
-	private byte mGetStatus() throws IOException {
-		if (mCurrStatus == STATUS_NO_LINK) {
-			return STATUS_NO_LINK;
-		}
+			@Override
+			public void onDead(long silence) {
+				mFail();
+			}
+		});
+		mScheduler = new CommandScheduler(engine, mState, transport.getOutputStream(), new CommandScheduler.Listener() {
+			@Override
+			public void onWriteFailed(IOException e) {
+				// Not if the link was already given up on, e.g. by mStopTimedOut().
+				if (!mClosing && getStatus() != STATUS_NO_LINK) {
+					for (CarListener l : mListeners) {
+						l.onCommandFailed(getAddress(), e);
+					}
+				}
+				mFail();
+			}
 
-		byte oldStatus = mCurrStatus;
+			@Override
+			public void onStopLate(long latency) {
+				for (CarListener l : mListeners) {
+					l.onStopLate(getAddress(), latency);
+				}
+			}
 
-		try {
-			InputStream is = mSocket.getInputStream();
-			int availableBytes = is.available();
-			if (availableBytes <= 0 && (System.currentTimeMillis() - mLastData) > 10000) {
-				// Check if the stream still is alive.
-				mSend(null);
+			@Override
+			public void onCommitted(byte dir, byte acc, byte gear) {
+				ManeuverRecorder recorder = mRecorder;
+				if (recorder != null) {
+					recorder.record(dir, acc, gear);
+				}
 			}
-			while (availableBytes > 0) {
-				byte[] byteBuffer = new byte[availableBytes];
-				int readBytes = is.read(byteBuffer);
-				mLastData = System.currentTimeMillis();
-				if (readBytes == -1) {
-					throw new IOException("EOF reached");
+		});
+		// Before the tick is scheduled, so that nothing is left running if this fails.
+		InputStream input = transport.getInputStream();
+		// On the watchdog thread, so that it runs even while writes are blocked.
+		mHeartbeatTick = engine.watch(new Runnable() {
+			@Override
+			public void run() {
+				byte status = getStatus();
+				if (status == STATUS_NO_LINK) {
+					return;
 				}
-				String str = new String(byteBuffer);
-
-				// Set the car status.
-				if (str.indexOf(CAR_SPEED) != -1) {
-					mCurrStatus = STATUS_READY;
-				} else if (str.indexOf(CAR_CHARGING) != -1) {
-					mCurrStatus = STATUS_CHARGING;
-				} else if (str.indexOf(CAR_CHARGE_FULL) != -1) {
-					mCurrStatus = STATUS_CHARGE_FULL;
+				if (mScheduler.isStopOverdue()) {
+					mWriteTimedOut("Stop not written within " + (CommandScheduler.STOP_TIMEOUT / 1000000) + " ms");
+				} else if (mScheduler.isWriteStalled(mWriteTimeout())) {
+					mWriteTimedOut("Write blocked for over " + (mWriteTimeout() / 1000000) + " ms");
+				} else {
+					mHeartbeat.tick(status, mLastInput);
 				}
+			}
+		}, Heartbeat.TICK);
+		mReader = new Reader(input);
+		mReader.start();
+	}
 
-				// Answer with OK.
-				mSend(OK);
+	/* Try to replace the state, counting failures as contention. */
+	private boolean mSwap(CarState old, CarState state) {
+		if (mState.compareAndSet(old, state)) {
+			return true;
+		}
+		Metrics.stateContended();
+		return false;
+	}
 
-				// Any more input?
-				availableBytes = is.available();
-			}
-		} catch (IOException e) {
-			mCurrStatus = STATUS_NO_LINK;
-			throw e;
+	/* Finish a control change, returning true if the car is connected. */
+	private boolean mApplied(CarState old, CarState state) {
+		if (state != old) {
+			mScheduler.wake();
 		}
+		return state.getStatus() != STATUS_NO_LINK;
+	}
 
-		if (oldStatus != mCurrStatus) {
-			mReset();
+	/* Update the status and tell anyone interested. Returns false if it didn't change. */
+	private boolean mSetStatus(byte status) {
+		CarState old, state;
+		do {
+			old = mState.get();
+			if (old.getStatus() == STATUS_NO_LINK) {
+				// A lost link stays lost.
+				return false;
+			}
+			state = old.withStatus(status);
+		} while (state != old && !mSwap(old, state));
+		if (state == old) {
+			return false;
 		}
 
-		return mCurrStatus;
-	}
-
-	/* Set the gear of the car. */
-	private void mSetGear(byte gear) throws IOException {
-		if (mCurrGear != gear) {
-			switch (gear) {
-			case 1:
-				mSend(SPEED1_PRESSED);
-				break;
-			case 2:
-				mSend(SPEED2_PRESSED);
-				break;
-			case 3:
-				mSend(SPEED3_PRESSED);
-				break;
-			default:
-				throw new IllegalArgumentException("Unknown gear: " + gear);
+		mScheduler.wake();
+		synchronized (mStatusLock) {
+			mStatusLock.notifyAll();
+		}
+		String address = getAddress();
+		for (CarListener l : mListeners) {
+			l.onStatusChanged(address, status);
+			if (state.getCharge() != old.getCharge()) {
+				l.onChargeChanged(address, state.getCharge());
 			}
-			mCurrGear = gear;
 		}
+		return true;
 	}
 
-	/* Set the acceleration of the car. */
-	private void mSetAcc(byte acc) throws IOException {
-		if (mCurrAcc != acc) {
-			switch (acc) {
-			case ACC_STOP:
-				mSend(STOP_PRESSED);
-				break;
-			case ACC_FORWARD:
-				mSend(FORWARD_PRESSED);
-				break;
-			case ACC_REVERSE:
-				mSend(BACK_PRESSED);
-				break;
-			default:
-				throw new IllegalArgumentException("Unknown acceleration: " + acc);
+	/* Handle a complete line of input from the car. */
+	private void mHandleMessage(int message) {
+		if (message == MessageParser.MSG_REPLY) {
+			// An answer to a probe or a key event, which must not be answered itself.
+			if (mScheduler.onReply()) {
+				mHeartbeat.onReply();
 			}
-			mCurrAcc = acc;
+			return;
 		}
+
+		// Set the car status.
+		byte current = getStatus();
+		byte status;
+		switch (message) {
+		case MessageParser.MSG_SPEED:
+			status = STATUS_READY;
+			break;
+		case MessageParser.MSG_CHARGING:
+			status = STATUS_CHARGING;
+			break;
+		case MessageParser.MSG_CHARGE_FULL:
+			status = STATUS_CHARGE_FULL;
+			break;
+		default:
+			status = current;
+		}
+		if (status != current) {
+			Metrics.statusReceived(mLastReceived);
+			mSetStatus(status);
+		}
+
+		// Answer with OK.
+		mScheduler.answer();
 	}
 
-	/* Set the direction (steering) of the car. */
-	private void mSetDir(byte dir) throws IOException {
-		if (mCurrDir != dir) {
-			// Release old direction (if necessary)
-			switch (mCurrDir) {
-			case DIR_LEFT:
-				mSend(LEFT_RELEASED);
-				break;
-			case DIR_RIGHT:
-				mSend(RIGHT_RELEASED);
-				break;
-			}
-			// Press new direction (if necessary)
-			switch (dir) {
-			case DIR_LEFT:
-				mSend(LEFT_PRESSED);
-				break;
-			case DIR_RIGHT:
-				mSend(RIGHT_PRESSED);
-				break;
-			case DIR_STRAIGHT:
-				break;
-			default:
-				throw new IllegalArgumentException("Unknown direction: " + dir);
+	/*
+	 * The longest time (in ns) a write may block. A blocked write holds one
+	 * of the few IoEngine threads, holding up the probes of other cars, so
+	 * it must give way well before their heartbeats would give up on them.
+	 */
+	private long mWriteTimeout() {
+		return mHeartbeat.getBudget() / 4;
+	}
+
+	/* A write has blocked for too long, give up on the link. */
+	private void mWriteTimedOut(String message) {
+		if (!mClosing) {
+			IOException e = new IOException(message);
+			for (CarListener l : mListeners) {
+				l.onCommandFailed(getAddress(), e);
 			}
-			mCurrDir = dir;
 		}
+		mFail();
 	}
 
-	/* Tell the car we've stopped playing and close the socket. */
-	private void mClose() throws IOException {
-		mSend(NO_PRESSED);
-		mSend(NO_RELEASED);
-		mCurrStatus = STATUS_NO_LINK;
-		mSocket.close();
+	/* Give up on the link, closing it and stopping all work for it. */
+	private void mFail() {
+		mHeartbeatTick.cancel(false);
+		try {
+			mTransport.close();
+		} catch (IOException e) {}
+		if (mSetStatus(STATUS_NO_LINK) && !mClosing) {
+			for (CarListener l : mListeners) {
+				l.onLinkLost(getAddress());
+			}
+		}
 	}
 
-	/* Write and flush the specified string to the socket. */
-	private synchronized void mSend(String data) throws IOException {
-		OutputStream os = mSocket.getOutputStream();
-		os.write(CRLF);
-		if (data != null) {
-			os.write(data.getBytes());
-			os.write(CRLF);
+	/* Blocks on the socket input and parses each chunk as soon as it arrives. */
+	private class Reader extends Thread {
+		private final InputStream mInput;
+
+		public Reader(InputStream input) {
+			super("Car100 reader " + mTransport.getAddress());
+			setDaemon(true);
+			mInput = input;
+		}
+
+		@Override
+		public void run() {
+			byte[] byteBuffer = new byte[READ_BUFFER_SIZE];
+			try {
+				while (getStatus() != STATUS_NO_LINK) {
+					int readBytes = mInput.read(byteBuffer);
+					if (readBytes == -1) {
+						throw new IOException("EOF reached");
+					}
+					mLastInput = mClock.nanoTime();
+					mLastReceived = System.nanoTime();
+					Metrics.bytesReceived(readBytes);
+					mParser.feed(byteBuffer, 0, readBytes);
+				}
+			} catch (IOException e) {
+				// Socket closed or link lost.
+			}
+			mFail();
 		}
-		mLastData = System.currentTimeMillis();
 	}
 }
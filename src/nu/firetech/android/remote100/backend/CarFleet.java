@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A set of cars, controlled together.
+ * 
+ * Every car gets its own CarServer, while all of them share one IoEngine.
+ * Control input is sent to the targeted cars only: one car, a group or all
+ * of them (the default). Cars leaving the target are stopped, so that no
+ * car is left driving without anyone controlling it.
+ */
+public class CarFleet {
+	// =========================================
+	// Private Members
+	// =========================================
+
+	// The engine doing the I/O work for all cars.
+	private final IoEngine mEngine;
+
+	// Who to tell about events from any car.
+	private final CopyOnWriteArrayList<CarListener> mListeners = new CopyOnWriteArrayList<CarListener>();
+
+	// Passes events from the servers on to mListeners.
+	private final CarListener mDispatcher = new CarListener() {
+		@Override
+		public void onStatusChanged(String address, byte status) {
+			mPickRecorded();
+			for (CarListener l : mListeners) {
+				l.onStatusChanged(address, status);
+			}
+		}
+
+		@Override
+		public void onLinkLost(String address) {
+			for (CarListener l : mListeners) {
+				l.onLinkLost(address);
+			}
+		}
+
+		@Override
+		public void onChargeChanged(String address, byte charge) {
+			for (CarListener l : mListeners) {
+				l.onChargeChanged(address, charge);
+			}
+		}
+
+		@Override
+		public void onCommandFailed(String address, IOException e) {
+			for (CarListener l : mListeners) {
+				l.onCommandFailed(address, e);
+			}
+		}
+
+		@Override
+		public void onStopLate(String address, long latency) {
+			for (CarListener l : mListeners) {
+				l.onStopLate(address, latency);
+			}
+		}
+	};
+
+	// All cars, replaced (never modified) when a car is added.
+	private volatile CarServer[] mServers = new CarServer[0];
+
+	// Whether each car in mServers is targeted, replaced along with it.
+	private volatile boolean[] mTargeted = new boolean[0];
+
+	// The dead-link budget (in ms) of every car.
+	private int mDeadLinkBudget = Heartbeat.DEFAULT_BUDGET;
+
+	// Where to record the controls written to the targeted cars, or null.
+	private volatile ManeuverRecorder mRecorder;
+
+	// Guards picking the car to record, which the servers' threads also do.
+	private final Object mRecorderLock = new Object();
+
+
+	// =========================================
+	// Public Methods
+	// =========================================
+
+	/**
+	 * @param ioThreads The number of threads doing the I/O work for all cars.
+	 */
+	public CarFleet(int ioThreads) {
+		this(ioThreads, null);
+	}
+
+	/**
+	 * @param ioThreads The number of threads doing the I/O work for all cars.
+	 * @param clock The clock to time the links by, or null for real time, see IoEngine.
+	 */
+	public CarFleet(int ioThreads, Clock clock) {
+		mEngine = new IoEngine(ioThreads, clock);
+	}
+
+	/**
+	 * @return The clock the links are timed by.
+	 */
+	public Clock getClock() {
+		return mEngine.getClock();
+	}
+
+	/**
+	 * Start telling a listener about events from any car in the fleet.
+	 * 
+	 * @param listener The listener to add.
+	 */
+	public void addListener(CarListener listener) {
+		mListeners.addIfAbsent(listener);
+	}
+
+	/**
+	 * Stop telling a listener about events.
+	 * 
+	 * @param listener The listener to remove.
+	 */
+	public void removeListener(CarListener listener) {
+		mListeners.remove(listener);
+	}
+
+	/**
+	 * Add a car to the fleet and start connecting to it. New cars are targeted.
+	 * 
+	 * @param transport The link to the car.
+	 * @return The server connecting to the car.
+	 */
+	public synchronized CarServer add(CarTransport transport) {
+		CarServer[] servers = new CarServer[mServers.length + 1];
+		boolean[] targeted = new boolean[servers.length];
+		System.arraycopy(mServers, 0, servers, 0, mServers.length);
+		System.arraycopy(mTargeted, 0, targeted, 0, mTargeted.length);
+		servers[mServers.length] = new CarServer(transport, mEngine, mDispatcher);
+		servers[mServers.length].setDeadLinkBudget(mDeadLinkBudget);
+		targeted[mServers.length] = true;
+		mTargeted = targeted;
+		mServers = servers;
+		mPickRecorded();
+		return servers[servers.length - 1];
+	}
+
+	/**
+	 * Set how fast a dead link must be noticed, see Car100.setDeadLinkBudget().
+	 * 
+	 * @param budget The time (in ms), for every car in the fleet.
+	 */
+	public synchronized void setDeadLinkBudget(int budget) {
+		mDeadLinkBudget = budget;
+		CarServer[] servers = mServers;
+		for (int i = 0; i < servers.length; i++) {
+			servers[i].setDeadLinkBudget(budget);
+		}
+	}
+
+	/**
+	 * Record the controls written to the targeted cars, see ManeuverRecorder.
+	 * 
+	 * This is done once for the fleet, whatever the number of cars, by
+	 * recording what is written to one of them (the first targeted car that
+	 * is ready), and starts with the controls currently in use.
+	 * 
+	 * @param recorder Where to record them, or null to stop recording.
+	 */
+	public void setRecorder(ManeuverRecorder recorder) {
+		mRecorder = recorder;
+		mPickRecorded();
+	}
+
+	/**
+	 * @param address The address of a car.
+	 * @return true if the car is in the fleet.
+	 */
+	public boolean contains(String address) {
+		CarServer[] servers = mServers;
+		for (int i = 0; i < servers.length; i++) {
+			if (servers[i].getAddress().equals(address)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return The servers of all cars in the fleet.
+	 */
+	public CarServer[] getServers() {
+		return mServers.clone();
+	}
+
+	/**
+	 * Select which cars control input goes to. Cars no longer targeted are stopped.
+	 * 
+	 * @param addresses The addresses of the cars to target, or null to target all.
+	 */
+	public synchronized void setTarget(Collection<String> addresses) {
+		CarServer[] servers = mServers;
+		boolean[] targeted = new boolean[servers.length];
+		for (int i = 0; i < servers.length; i++) {
+			targeted[i] = (addresses == null || addresses.contains(servers[i].getAddress()));
+			if (!targeted[i]) {
+				Car100 car = servers[i].getCar();
+				if (car != null) {
+					car.setAcc(Car100.ACC_STOP);
+					car.setDir(Car100.DIR_STRAIGHT);
+				}
+			}
+		}
+		mTargeted = targeted;
+		mPickRecorded();
+	}
+
+	/**
+	 * @param address The address of a car.
+	 * @return true if control input goes to the car.
+	 */
+	public boolean isTarget(String address) {
+		CarServer[] servers = mServers;
+		boolean[] targeted = mTargeted;
+		for (int i = 0; i < servers.length; i++) {
+			if (servers[i].getAddress().equals(address)) {
+				return targeted[i];
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the status of the targeted cars.
+	 * 
+	 * This is the lowest status of any targeted car, so that e.g.
+	 * STATUS_READY means that all targeted cars are ready.
+	 * 
+	 * @return The status, see Car100.getStatus().
+	 */
+	public byte getTargetStatus() {
+		CarServer[] servers = mServers;
+		boolean[] targeted = mTargeted;
+		byte status = Car100.STATUS_READY;
+		boolean any = false;
+		for (int i = 0; i < servers.length; i++) {
+			if (targeted[i]) {
+				any = true;
+				status = (byte)Math.min(status, servers[i].getStatus());
+			}
+		}
+		return (any ? status : Car100.STATUS_NO_LINK);
+	}
+
+	/**
+	 * Set the gear of the targeted cars, see Car100.setGear().
+	 */
+	public void setGear(byte gear) {
+		CarServer[] servers = mServers;
+		boolean[] targeted = mTargeted;
+		for (int i = 0; i < servers.length; i++) {
+			Car100 car;
+			if (targeted[i] && (car = servers[i].getCar()) != null) {
+				car.setGear(gear);
+			}
+		}
+	}
+
+	/**
+	 * Set the acceleration of the targeted cars, see Car100.setAcc().
+	 */
+	public void setAcc(byte acc) {
+		CarServer[] servers = mServers;
+		boolean[] targeted = mTargeted;
+		for (int i = 0; i < servers.length; i++) {
+			Car100 car;
+			if (targeted[i] && (car = servers[i].getCar()) != null) {
+				car.setAcc(acc);
+			}
+		}
+	}
+
+	/**
+	 * Set the direction of the targeted cars, see Car100.setDir().
+	 */
+	public void setDir(byte dir) {
+		CarServer[] servers = mServers;
+		boolean[] targeted = mTargeted;
+		for (int i = 0; i < servers.length; i++) {
+			Car100 car;
+			if (targeted[i] && (car = servers[i].getCar()) != null) {
+				car.setDir(dir);
+			}
+		}
+	}
+
+	/**
+	 * Stop all cars, targeted or not, and straighten their steering.
+	 */
+	public void stopAll() {
+		CarServer[] servers = mServers;
+		for (int i = 0; i < servers.length; i++) {
+			Car100 car = servers[i].getCar();
+			if (car != null) {
+				car.setAcc(Car100.ACC_STOP);
+				car.setDir(Car100.DIR_STRAIGHT);
+			}
+		}
+	}
+
+	/**
+	 * @return The last time (Clock.nanoTime()) input was received from any targeted car, or 0.
+	 */
+	public long getLastInput() {
+		CarServer[] servers = mServers;
+		boolean[] targeted = mTargeted;
+		long last = 0;
+		for (int i = 0; i < servers.length; i++) {
+			Car100 car;
+			if (targeted[i] && (car = servers[i].getCar()) != null) {
+				last = Math.max(last, car.getLastInput());
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * Get how long a command to the targeted cars may take to have an effect.
+	 * 
+	 * This is the highest smoothed round-trip time plus four times its
+	 * variance of any targeted car, like a TCP retransmission timeout.
+	 * 
+	 * @return The delay (in ns), or -1 if no targeted car has measured it yet.
+	 */
+	public long getLinkDelay() {
+		CarServer[] servers = mServers;
+		boolean[] targeted = mTargeted;
+		long delay = -1;
+		for (int i = 0; i < servers.length; i++) {
+			Car100 car;
+			if (targeted[i] && (car = servers[i].getCar()) != null && car.getRtt() >= 0) {
+				delay = Math.max(delay, car.getRtt() + 4 * car.getRttVariance());
+			}
+		}
+		return delay;
+	}
+
+	/**
+	 * Get how many commands per second all targeted cars can take.
+	 * 
+	 * This is the lowest command rate of any targeted car, see
+	 * CarServer.getCommandRate().
+	 * 
+	 * @return The most commands per second, or 0 if no targeted car is limited.
+	 */
+	public int getCommandRate() {
+		CarServer[] servers = mServers;
+		boolean[] targeted = mTargeted;
+		int rate = 0;
+		for (int i = 0; i < servers.length; i++) {
+			int limit = servers[i].getCommandRate();
+			if (targeted[i] && limit > 0 && (rate == 0 || limit < rate)) {
+				rate = limit;
+			}
+		}
+		return rate;
+	}
+
+	/**
+	 * Disconnect all cars and stop the I/O engine.
+	 * 
+	 * All cars are told to quit before waiting for any of them, so this
+	 * takes no longer than closing one car.
+	 */
+	public void close() {
+		CarServer[] servers = mServers;
+		for (int i = 0; i < servers.length; i++) {
+			servers[i].requestClose();
+		}
+		long deadline = mEngine.getClock().nanoTime() + CommandScheduler.STOP_LATENCY_BOUND;
+		for (int i = 0; i < servers.length; i++) {
+			servers[i].awaitClose(deadline);
+		}
+		mEngine.shutdown();
+	}
+
+
+	// =========================================
+	// Helper Methods
+	// =========================================
+
+	/* Attach the recorder, if any, to the first targeted car that is ready (or else the first targeted), detaching it from the others. */
+	private void mPickRecorded() {
+		synchronized (mRecorderLock) {
+			ManeuverRecorder recorder = mRecorder;
+			CarServer[] servers = mServers;
+			boolean[] targeted = mTargeted;
+			int picked = -1;
+			for (int i = 0; i < servers.length; i++) {
+				if (!targeted[i]) {
+					continue;
+				}
+				if (servers[i].getStatus() == Car100.STATUS_READY) {
+					picked = i;
+					break;
+				}
+				if (picked < 0) {
+					picked = i;
+				}
+			}
+			for (int i = 0; i < servers.length; i++) {
+				servers[i].setRecorder(i == picked ? recorder : null);
+			}
+		}
+	}
+}
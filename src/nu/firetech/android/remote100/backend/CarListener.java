@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.io.IOException;
+
+/**
+ * Told about what happens to a car.
+ * 
+ * Listeners are called from the I/O thread that noticed the event, never
+ * from the UI thread, and must return quickly. Each car is identified by
+ * its address (see CarTransport.getAddress()), which stays the same across
+ * reconnections.
+ */
+public interface CarListener {
+	/**
+	 * The status of a car changed.
+	 * 
+	 * @param address The address of the car.
+	 * @param status The new status, see Car100.getStatus().
+	 */
+	void onStatusChanged(String address, byte status);
+
+	/**
+	 * The link to a car was lost, without us closing it.
+	 * 
+	 * @param address The address of the car.
+	 */
+	void onLinkLost(String address);
+
+	/**
+	 * A car was put on or taken off its charger, or finished charging.
+	 * 
+	 * @param address The address of the car.
+	 * @param charge One of Car100.CHARGE_*.
+	 */
+	void onChargeChanged(String address, byte charge);
+
+	/**
+	 * A command couldn't be delivered to a car. The link is lost right after.
+	 * 
+	 * @param address The address of the car.
+	 * @param e The reason.
+	 */
+	void onCommandFailed(String address, IOException e);
+
+	/**
+	 * A STOP reached a car, but later than it should have. The link is kept.
+	 * 
+	 * @param address The address of the car.
+	 * @param latency The time (in ns) from the stop being requested until it was written.
+	 */
+	void onStopLate(String address, long latency);
+}
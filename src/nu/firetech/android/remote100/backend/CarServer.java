@@ -21,90 +21,277 @@
 package nu.firetech.android.remote100.backend;
 
 import java.io.IOException;
-import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
 
-import nu.firetech.android.remote100.Remote100Activity;
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.util.Log;
-
-public class CarServer extends Thread {
-	private static final String LOG_TAG = "[Remote100] CarServer";
-	private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805f9b34fb");
+/**
+ * Keeps one car connected.
+ * 
+ * Connection attempts are made on the IoEngine connector, and whenever the
+ * link is lost a new attempt is scheduled after a Backoff delay, which is
+ * short right after losing a working link and grows while attempts keep
+ * failing. No thread is kept around per car for this.
+ */
+public class CarServer {
+	// The range (in ms) of the delays between connection attempts, see Backoff.
+	public static final long MIN_RETRY_DELAY = 250;
+	public static final long MAX_RETRY_DELAY = 10000;
 	
-	private boolean run = true;
+	private volatile boolean run = true;
+	private boolean connected = false;
 	
-	private Remote100Activity activity;
-	private BluetoothAdapter adapter;
-	private String carAddress;
+	private final CarTransport transport;
+	private final IoEngine engine;
+	private final CarListener listener;
+	private volatile Car100 car;
+	private volatile byte status = Car100.STATUS_NO_LINK;
+	private final Backoff backoff;
+	private volatile int deadLinkBudget = Heartbeat.DEFAULT_BUDGET;
+	private volatile int commandRate = 0;
+	private volatile ManeuverRecorder recorder;
 	
-	public CarServer(Remote100Activity act, BluetoothAdapter adapter, String carAddress) {
-		this.activity = act;
-		this.adapter = adapter;
-		this.carAddress = carAddress;
-		this.start();
-	}
+	// The time (Clock.nanoTime()) a working link was lost, or 0.
+	private long lost = 0;
 	
-	public void run() {
-		while (run) {
+	// Set once the current car has reported a status change (guarded by this).
+	private boolean reported = false;
+	
+	private final Runnable connectTask = new Runnable() {
+		@Override
+		public void run() {
+			connect();
+		}
+	};
+	
+	private final Runnable retryTask = new Runnable() {
+		@Override
+		public void run() {
 			try {
-				setStatus(Car100.STATUS_NO_LINK);
-				
-				Log.i(LOG_TAG, "Connecting to car...");
-				BluetoothDevice car = adapter.getRemoteDevice(carAddress);
-				Car100.connect(car.createRfcommSocketToServiceRecord(SPP_UUID));
-				
-				byte status = Car100.getStatus();
-				if (status != Car100.STATUS_NO_LINK) {
-					Log.i(LOG_TAG, "Connected.");
-				}
-				
-				// Wait for current status. (After connection we get a burst of input).
-				while (status == Car100.STATUS_CONNECTED && run) {
-					simpleSleep(100);
-					status = Car100.getStatus();
-					setStatus(status);
-				}
-				
-				// Keep checking and updating status
-				while (status != Car100.STATUS_NO_LINK && run) {
-					simpleSleep(1000);
-					status = Car100.getStatus();
-					setStatus(status);
-				}
-				
-				if (run) {
-					Log.i(LOG_TAG, "Connection lost.");
-				}
-				
-			} catch (IOException e) {
-				setStatus(Car100.STATUS_NO_LINK);
-				Log.i(LOG_TAG, "Connection lost.", e);
+				engine.connect(connectTask);
+			} catch (RejectedExecutionException e) {
+				// The engine is shutting down.
 			}
-			if (run) {
-				simpleSleep(2500);
+		}
+	};
+	
+	private final CarListener carListener = new CarListener() {
+		@Override
+		public void onStatusChanged(String address, byte status) {
+			// A car that has lost its link never changes status again, so
+			// this is always about the current car.
+			synchronized (CarServer.this) {
+				reported = true;
+				setStatus(status);
+			}
+			if (status == Car100.STATUS_NO_LINK && run) {
+				retry();
+			}
+		}
+		
+		@Override
+		public void onLinkLost(String address) {
+			listener.onLinkLost(address);
+		}
+		
+		@Override
+		public void onChargeChanged(String address, byte charge) {
+			listener.onChargeChanged(address, charge);
+		}
+		
+		@Override
+		public void onCommandFailed(String address, IOException e) {
+			listener.onCommandFailed(address, e);
+		}
+		
+		@Override
+		public void onStopLate(String address, long latency) {
+			listener.onStopLate(address, latency);
+		}
+	};
+	
+	/**
+	 * @param transport The link to the car.
+	 * @param engine The engine to do the I/O work on.
+	 * @param listener Who to tell about events from the car, whichever connection they come from.
+	 */
+	public CarServer(CarTransport transport, IoEngine engine, CarListener listener) {
+		this(transport, engine, listener, new Backoff(MIN_RETRY_DELAY, MAX_RETRY_DELAY));
+	}
+	
+	/**
+	 * @param backoff The delays between connection attempts, e.g. seeded for runs that repeat exactly.
+	 */
+	/* package */ CarServer(CarTransport transport, IoEngine engine, CarListener listener, Backoff backoff) {
+		this.transport = transport;
+		this.engine = engine;
+		this.listener = listener;
+		this.backoff = backoff;
+		engine.connect(connectTask);
+	}
+	
+	/**
+	 * @return A string identifying the car, see CarTransport.getAddress().
+	 */
+	public String getAddress() {
+		return transport.getAddress();
+	}
+	
+	/**
+	 * @return The connected car, or null if not connected.
+	 */
+	public Car100 getCar() {
+		Car100 c = car;
+		return (c != null && c.getStatus() != Car100.STATUS_NO_LINK ? c : null);
+	}
+	
+	/**
+	 * Set how fast a dead link must be noticed, see Car100.setDeadLinkBudget().
+	 * 
+	 * @param budget The time (in ms).
+	 */
+	public void setDeadLinkBudget(int budget) {
+		deadLinkBudget = budget;
+		Car100 c = car;
+		if (c != null) {
+			c.setDeadLinkBudget(budget);
+		}
+	}
+	
+	/**
+	 * Record the controls written to the car, see Car100.setRecorder().
+	 * 
+	 * @param recorder Where to record them, or null to stop recording.
+	 */
+	public void setRecorder(ManeuverRecorder recorder) {
+		if (this.recorder == recorder) {
+			return;
+		}
+		this.recorder = recorder;
+		Car100 c = car;
+		if (c != null) {
+			c.setRecorder(recorder);
+		}
+	}
+	
+	/**
+	 * Limit how many commands per second are sent to the car, see Car100.setCommandRate().
+	 * 
+	 * @param rate The most commands per second, or 0 for no limit.
+	 */
+	public void setCommandRate(int rate) {
+		commandRate = rate;
+		Car100 c = car;
+		if (c != null) {
+			c.setCommandRate(rate);
+		}
+	}
+	
+	/**
+	 * @return The most commands per second sent to the car, or 0 for no limit.
+	 */
+	public int getCommandRate() {
+		return commandRate;
+	}
+	
+	/**
+	 * @return The status of the car, see Car100.getStatus().
+	 */
+	public byte getStatus() {
+		return status;
+	}
+	
+	public void close() {
+		requestClose();
+		awaitClose(engine.getClock().nanoTime() + CommandScheduler.STOP_LATENCY_BOUND);
+	}
+	
+	/**
+	 * Stop connecting, and start closing the connection, see Car100.requestClose().
+	 */
+	public void requestClose() {
+		synchronized (this) {
+			if (!run) {
+				return;
 			}
+			run = false;
+		}
+		Car100 c = car;
+		if (c != null) {
+			c.requestClose();
 		}
 	}
 	
-	private void setStatus(final byte status) {
-		activity.runOnUiThread(new Runnable() {
-			@Override
-			public void run() {
-				activity.setStatus(status);
+	/**
+	 * Finish closing the connection, see Car100.awaitClose().
+	 * 
+	 * @param deadline The time (Clock.nanoTime()) to stop waiting for the car to be told at.
+	 */
+	public void awaitClose(long deadline) {
+		Car100 c = car;
+		if (c != null) {
+			c.awaitClose(deadline);
+		}
+	}
+	
+	private void connect() {
+		if (!run) {
+			return;
+		}
+		synchronized (this) {
+			reported = false;
+		}
+		try {
+			Car100 c = Car100.connect(transport, engine, carListener);
+			c.setDeadLinkBudget(deadLinkBudget);
+			c.setCommandRate(commandRate);
+			c.setRecorder(recorder);
+			car = c;
+			if (!run) {
+				c.close();
+				return;
+			}
+			if (connected) {
+				Metrics.reconnected();
 			}
-		});
+			connected = true;
+			backoff.reset();
+			setConnectedStatus(c);
+		} catch (IOException e) {
+			setStatus(Car100.STATUS_NO_LINK);
+			retry();
+		}
 	}
 	
-	private void simpleSleep(long time) {
+	private void retry() {
 		try {
-			Thread.sleep(time);
-		} catch (InterruptedException e1) {}
+			engine.schedule(retryTask, backoff.next());
+		} catch (RejectedExecutionException e) {
+			// The engine is shutting down.
+		}
 	}
 	
-	public void close() {
-		run = false;
-		Car100.close();
-		Log.i(LOG_TAG, "Stopped.");
+	/*
+	 * Show the status of a newly connected car, unless its reader has
+	 * already reported a newer one (e.g. NO_LINK, which must not be
+	 * overwritten by the READY it replaced).
+	 */
+	private synchronized void setConnectedStatus(Car100 c) {
+		if (!reported) {
+			// The car updates its status before reporting it, so under the
+			// lock this is at least as new as anything reported later.
+			setStatus(c.getStatus());
+		}
+	}
+	
+	private synchronized void setStatus(byte status) {
+		if (this.status != status) {
+			if (status == Car100.STATUS_NO_LINK && this.status == Car100.STATUS_READY) {
+				lost = engine.getClock().nanoTime();
+			} else if (status == Car100.STATUS_READY && lost != 0) {
+				Metrics.linkRestored(engine.getClock().nanoTime() - lost);
+				lost = 0;
+			}
+			this.status = status;
+			listener.onStatusChanged(getAddress(), status);
+		}
 	}
 }
@@ -0,0 +1,457 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Simulates the car side of the CAR-100 protocol over TCP.
+ * 
+ * Each connection gets the current status line (Charging, Ready or
+ * Speed=2) and is expected to answer every line with OK. Key events
+ * (+CKEV) are decoded into the state the car would be in, and heartbeat
+ * probes (AT) are answered with OK. To exercise
+ * the phone side, the simulator can add latency and jitter to everything
+ * it sends and receives, deliver its output in small random chunks, and
+ * drop connections after a while.
+ * 
+ * Run it stand-alone with:
+ *   java nu.firetech.android.remote100.backend.CarSimulator [options]
+ * and connect to it using a SocketTransport.
+ */
+public class CarSimulator extends Thread {
+	// =========================================
+	// Public Constants
+	// =========================================
+
+	// Possible status lines.
+	public static final String STATUS_CHARGING		= "Charging";
+	public static final String STATUS_CHARGE_FULL	= "Ready";
+	public static final String STATUS_READY			= "Speed=2";
+
+
+	// =========================================
+	// Private Constants
+	// =========================================
+
+	// How often (in ms) sessions check if it's time to drop the connection.
+	private static final int DISCONNECT_CHECK_INTERVAL = 100;
+
+
+	// =========================================
+	// Private Members
+	// =========================================
+
+	private volatile boolean run = true;
+
+	private final ServerSocket server;
+	private final List<Session> sessions = new ArrayList<Session>();
+	private final Random random = new Random();
+
+	private volatile String status = STATUS_READY;
+	private volatile int latency = 0;
+	private volatile int jitter = 0;
+	private volatile int chunkSize = 0;
+	private volatile int disconnectAfter = 0;
+	private volatile boolean verbose = false;
+	private volatile boolean echo = true;
+	private volatile boolean mute = false;
+
+	// The state of the car, as set by the key events received.
+	private volatile byte dir = Car100.DIR_STRAIGHT;
+	private volatile byte acc = Car100.ACC_STOP;
+	private volatile byte gear = 2;
+	private volatile int keyEvents = 0;
+	private volatile int answers = 0;
+
+
+	// =========================================
+	// Public Methods
+	// =========================================
+
+	/**
+	 * Create and start a new simulator.
+	 * 
+	 * @param port The TCP port to listen on, or 0 for any free port.
+	 */
+	public CarSimulator(int port) throws IOException {
+		super("Car simulator");
+		setDaemon(true);
+		server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(new InetSocketAddress("127.0.0.1", port));
+		this.start();
+	}
+
+	/**
+	 * @return The TCP port the simulator listens on.
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Change the status of the car and send it to all connections.
+	 * 
+	 * @param status One of the STATUS_* constants.
+	 */
+	public void setStatus(String status) {
+		this.status = status;
+		synchronized (sessions) {
+			for (Session s : sessions) {
+				s.sendStatus();
+			}
+		}
+	}
+
+	/**
+	 * @param latency Delay (in ms) added to everything sent and received.
+	 */
+	public void setLatency(int latency) {
+		this.latency = latency;
+	}
+
+	/**
+	 * @param jitter Max random delay (in ms) added on top of the latency.
+	 */
+	public void setJitter(int jitter) {
+		this.jitter = jitter;
+	}
+
+	/**
+	 * @param chunkSize Max number of bytes per write of output (each write gets a random size up to this), or 0 for whole lines.
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * @param disconnectAfter Time (in ms) after which connections are dropped, or 0 to never drop them.
+	 */
+	public void setDisconnectAfter(int disconnectAfter) {
+		this.disconnectAfter = disconnectAfter;
+	}
+
+	/**
+	 * @param echo false to ignore heartbeat probes, like a car that doesn't answer them.
+	 */
+	public void setEcho(boolean echo) {
+		this.echo = echo;
+	}
+
+	/**
+	 * Stop sending and answering anything while keeping connections open,
+	 * as if the link died without the sockets noticing.
+	 * 
+	 * @param mute true to go silent, false to resume.
+	 */
+	public void setMute(boolean mute) {
+		this.mute = mute;
+	}
+
+	/**
+	 * @param verbose true to print everything received.
+	 */
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Drop all current connections, as if the car went out of range.
+	 */
+	public void disconnectAll() {
+		synchronized (sessions) {
+			for (Session s : sessions) {
+				s.close();
+			}
+		}
+	}
+
+	public byte getDir() {
+		return dir;
+	}
+
+	public byte getAcc() {
+		return acc;
+	}
+
+	public byte getGear() {
+		return gear;
+	}
+
+	/**
+	 * @return The number of key events received.
+	 */
+	public int getKeyEvents() {
+		return keyEvents;
+	}
+
+	/**
+	 * @return The number of OK answers received.
+	 */
+	public int getAnswers() {
+		return answers;
+	}
+
+	public void run() {
+		while (run) {
+			try {
+				Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				Session s = new Session(socket);
+				synchronized (sessions) {
+					sessions.add(s);
+				}
+				s.start();
+			} catch (IOException e) {
+				if (run) {
+					log("Accept failed: " + e);
+				}
+			}
+		}
+	}
+
+	public void close() {
+		run = false;
+		try {
+			server.close();
+		} catch (IOException e) {}
+		disconnectAll();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = 10100;
+		String status = STATUS_READY;
+		int latency = 0, jitter = 0, chunkSize = 0, disconnectAfter = 0;
+		boolean verbose = false, echo = true;
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("-p")) {
+				port = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-s")) {
+				status = args[++i];
+			} else if (arg.equals("-l")) {
+				latency = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-j")) {
+				jitter = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-c")) {
+				chunkSize = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-d")) {
+				disconnectAfter = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-n")) {
+				echo = false;
+			} else if (arg.equals("-v")) {
+				verbose = true;
+			} else {
+				System.err.println("Usage: CarSimulator [-p port] [-s Charging|Ready|Speed=2]" +
+						" [-l latency ms] [-j jitter ms] [-c chunk size] [-d disconnect after ms] [-n] [-v]");
+				System.exit(1);
+			}
+		}
+		CarSimulator sim = new CarSimulator(port);
+		sim.setStatus(status);
+		sim.setLatency(latency);
+		sim.setJitter(jitter);
+		sim.setChunkSize(chunkSize);
+		sim.setDisconnectAfter(disconnectAfter);
+		sim.setEcho(echo);
+		sim.setVerbose(verbose);
+		System.out.println("Simulating a CAR-100 on port " + sim.getPort());
+		sim.join();
+	}
+
+
+	// =========================================
+	// Helper Methods
+	// =========================================
+
+	/* Sleep for the configured latency and jitter. */
+	private void delay() {
+		int time = latency;
+		if (jitter > 0) {
+			synchronized (random) {
+				time += random.nextInt(jitter + 1);
+			}
+		}
+		if (time > 0) {
+			try {
+				Thread.sleep(time);
+			} catch (InterruptedException e) {}
+		}
+	}
+
+	/* Decode a key event, e.g. "+CKEV: 2,1". */
+	private void handleKey(String key, boolean pressed) {
+		keyEvents++;
+		if (key.equals("u") && pressed) {
+			acc = Car100.ACC_FORWARD;
+		} else if (key.equals("d") && pressed) {
+			acc = Car100.ACC_REVERSE;
+		} else if (key.equals(":J") && pressed) {
+			acc = Car100.ACC_STOP;
+		} else if (key.equals("2")) {
+			dir = (pressed ? Car100.DIR_LEFT : Car100.DIR_STRAIGHT);
+		} else if (key.equals("3")) {
+			dir = (pressed ? Car100.DIR_RIGHT : Car100.DIR_STRAIGHT);
+		} else if (key.equals("*") && pressed) {
+			gear = 1;
+		} else if (key.equals("0") && pressed) {
+			gear = 2;
+		} else if (key.equals("#") && pressed) {
+			gear = 3;
+		} else if (key.equals("e") && !pressed) {
+			// NO released, the phone is done with us.
+			acc = Car100.ACC_STOP;
+			dir = Car100.DIR_STRAIGHT;
+		}
+	}
+
+	private void log(String msg) {
+		if (verbose) {
+			System.out.println("[" + System.currentTimeMillis() + "] " + msg);
+		}
+	}
+
+	/* One connection to the simulator. */
+	private class Session extends Thread {
+		private final Socket socket;
+		private final long started = System.currentTimeMillis();
+
+		public Session(Socket socket) {
+			super("Car simulator session");
+			setDaemon(true);
+			this.socket = socket;
+		}
+
+		public void run() {
+			log("Connected: " + socket.getRemoteSocketAddress());
+			sendStatus();
+			try {
+				socket.setSoTimeout(DISCONNECT_CHECK_INTERVAL);
+				InputStream is = socket.getInputStream();
+				StringBuilder line = new StringBuilder();
+				while (run) {
+					int limit = disconnectAfter;
+					if (limit > 0 && System.currentTimeMillis() - started > limit) {
+						log("Dropping connection");
+						break;
+					}
+					int b;
+					try {
+						b = is.read();
+					} catch (SocketTimeoutException e) {
+						continue;
+					}
+					if (b == -1) {
+						break;
+					} else if (b == '\r' || b == '\n') {
+						if (line.length() > 0) {
+							delay();
+							handleLine(line.toString());
+							line.setLength(0);
+						}
+					} else {
+						line.append((char)b);
+					}
+				}
+			} catch (IOException e) {
+				// Connection closed.
+			}
+			close();
+			synchronized (sessions) {
+				sessions.remove(this);
+			}
+			log("Disconnected");
+		}
+
+		/* Handle a line of input from the phone. */
+		private void handleLine(String line) {
+			log("< " + line);
+			if (mute) {
+				return;
+			}
+			if (line.equals("OK")) {
+				answers++;
+			} else if (line.equals("AT")) {
+				if (echo) {
+					send("OK");
+				}
+			} else if (line.startsWith("+CKEV: ")) {
+				int comma = line.lastIndexOf(',');
+				if (comma > 7) {
+					handleKey(line.substring(7, comma), line.endsWith("1"));
+				}
+			}
+		}
+
+		/* Send the current status line. */
+		public void sendStatus() {
+			send(status);
+		}
+
+		/* Send a line, respecting latency, jitter and chunk size. */
+		private synchronized void send(String line) {
+			if (mute) {
+				return;
+			}
+			delay();
+			byte[] data = ("\r\n" + line + "\r\n").getBytes();
+			try {
+				OutputStream os = socket.getOutputStream();
+				int chunk = chunkSize;
+				if (chunk <= 0) {
+					os.write(data);
+				} else {
+					int pos = 0;
+					while (pos < data.length) {
+						int size;
+						synchronized (random) {
+							size = Math.min(1 + random.nextInt(chunk), data.length - pos);
+						}
+						os.write(data, pos, size);
+						os.flush();
+						pos += size;
+						Thread.yield();
+					}
+				}
+				os.flush();
+				log("> " + line);
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		public void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+/**
+ * An immutable snapshot of everything known about a car.
+ * 
+ * Each Car100 keeps its current state in an AtomicReference, and every
+ * change (new control input as well as a new status from the car) is made
+ * by building a new snapshot from the current one and swapping it in with
+ * compare-and-set. Readers thus always see a consistent state without
+ * taking any lock, and writers never block each other.
+ * 
+ * The with*() methods return the snapshot itself if nothing would change,
+ * so that repeating the same input allocates nothing.
+ */
+public final class CarState {
+	// =========================================
+	// Public Constants
+	// =========================================
+
+	// The state of a car before it's connected.
+	public static final CarState INITIAL = new CarState(Car100.STATUS_NO_LINK, (byte)-1,
+			Car100.DIR_STRAIGHT, Car100.ACC_STOP, (byte)2, 0, 0);
+
+
+	// =========================================
+	// Private Members
+	// =========================================
+
+	private final byte mStatus;
+	private final byte mCharge;
+	private final byte mDir;
+	private final byte mAcc;
+	private final byte mGear;
+
+	// Incremented every time the car resets its controls.
+	private final int mEpoch;
+
+	// The time (Clock.nanoTime()) the car was asked to stop, if mAcc is ACC_STOP.
+	private final long mStopRequested;
+
+
+	// =========================================
+	// Public Methods
+	// =========================================
+
+	private CarState(byte status, byte charge, byte dir, byte acc, byte gear, int epoch, long stopRequested) {
+		mStatus = status;
+		mCharge = charge;
+		mDir = dir;
+		mAcc = acc;
+		mGear = gear;
+		mEpoch = epoch;
+		mStopRequested = stopRequested;
+	}
+
+	/**
+	 * @return The status of the car, see Car100.getStatus().
+	 */
+	public byte getStatus() {
+		return mStatus;
+	}
+
+	/**
+	 * @return One of Car100.CHARGE_*, or -1 if not known yet.
+	 */
+	public byte getCharge() {
+		return mCharge;
+	}
+
+	/**
+	 * @return The direction the car should steer in.
+	 */
+	public byte getDir() {
+		return mDir;
+	}
+
+	/**
+	 * @return The acceleration the car should have.
+	 */
+	public byte getAcc() {
+		return mAcc;
+	}
+
+	/**
+	 * @return The gear the car should be in.
+	 */
+	public byte getGear() {
+		return mGear;
+	}
+
+	/**
+	 * @return A number that changes every time the car resets its controls.
+	 */
+	public int getEpoch() {
+		return mEpoch;
+	}
+
+	/**
+	 * @return The time (Clock.nanoTime()) the car was asked to stop, or 0 if it's not stopping.
+	 */
+	public long getStopRequested() {
+		return mStopRequested;
+	}
+
+	/**
+	 * A new status resets the controls, as the car does when its status changes.
+	 * 
+	 * @param status The new status.
+	 * @return The state with the given status.
+	 */
+	public CarState withStatus(byte status) {
+		if (status == mStatus) {
+			return this;
+		}
+		byte charge;
+		switch (status) {
+		case Car100.STATUS_CHARGING:
+			charge = Car100.CHARGE_CHARGING;
+			break;
+		case Car100.STATUS_CHARGE_FULL:
+			charge = Car100.CHARGE_FULL;
+			break;
+		case Car100.STATUS_READY:
+			charge = Car100.CHARGE_NONE;
+			break;
+		default:
+			charge = mCharge;
+		}
+		return new CarState(status, charge, Car100.DIR_STRAIGHT, Car100.ACC_STOP, (byte)2, mEpoch + 1, 0);
+	}
+
+	public CarState withDir(byte dir) {
+		if (dir == mDir) {
+			return this;
+		}
+		return new CarState(mStatus, mCharge, dir, mAcc, mGear, mEpoch, mStopRequested);
+	}
+
+	/**
+	 * @param acc The new acceleration.
+	 * @param now The current time (Clock.nanoTime()), remembered if stopping.
+	 */
+	public CarState withAcc(byte acc, long now) {
+		if (acc == mAcc) {
+			return this;
+		}
+		long stopRequested = (acc == Car100.ACC_STOP ? now : 0);
+		return new CarState(mStatus, mCharge, mDir, acc, mGear, mEpoch, stopRequested);
+	}
+
+	public CarState withGear(byte gear) {
+		if (gear == mGear) {
+			return this;
+		}
+		return new CarState(mStatus, mCharge, mDir, mAcc, gear, mEpoch, mStopRequested);
+	}
+
+	@Override
+	public String toString() {
+		return "CarState[status=" + mStatus + ", charge=" + mCharge + ", dir=" + mDir +
+				", acc=" + mAcc + ", gear=" + mGear + ", epoch=" + mEpoch + "]";
+	}
+}
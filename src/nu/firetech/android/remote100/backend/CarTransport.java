@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A byte stream link to a car.
+ * 
+ * Car100 only talks to the car through this interface, so the protocol
+ * code doesn't care whether the other end is a real car over Bluetooth or
+ * a CarSimulator over TCP.
+ */
+public interface CarTransport {
+	/**
+	 * Open the link. Blocks until connected.
+	 */
+	void connect() throws IOException;
+
+	/**
+	 * @return The stream of input from the car.
+	 */
+	InputStream getInputStream() throws IOException;
+
+	/**
+	 * @return The stream of output to the car.
+	 */
+	OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * Close the link. Any blocked reads or writes will fail.
+	 */
+	void close() throws IOException;
+
+	/**
+	 * @return A string identifying the car at the other end.
+	 */
+	String getAddress();
+}
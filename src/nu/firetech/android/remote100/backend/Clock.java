@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * The time source and timer used by the backend.
+ * 
+ * Everything timing the link to the cars (heartbeat probes and dead-link
+ * detection, reconnect delays, stop latency and command rate limits) asks
+ * the IoEngine's clock for the time and schedules its timers through it,
+ * instead of calling System.nanoTime() or sleeping. A RealClock makes that
+ * real time; a VirtualClock makes it time that only moves when told to,
+ * so the same logic can run much faster than real time and repeat exactly.
+ * 
+ * Times are in nanoseconds, and like System.nanoTime() only differences
+ * between them mean anything.
+ */
+public interface Clock {
+	/**
+	 * @return The current time (in ns).
+	 */
+	long nanoTime();
+
+	/**
+	 * Run a short, non-blocking task after a delay.
+	 * 
+	 * @param task The task to run.
+	 * @param delay The delay (in ns).
+	 * @return The pending run, for cancelling it.
+	 */
+	ScheduledFuture<?> schedule(Runnable task, long delay);
+
+	/**
+	 * Run a short, non-blocking task repeatedly.
+	 * 
+	 * @param task The task to run.
+	 * @param period The time (in ns) from the end of one run to the start of the next.
+	 * @return The pending runs, for cancelling them.
+	 */
+	ScheduledFuture<?> repeat(Runnable task, long period);
+}
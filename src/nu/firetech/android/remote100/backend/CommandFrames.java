@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Parts of this file were inspired by CarConnection.java, obtained from
+ * the BluetoothCar example Midlet found in the Sony Ericsson SDK for the
+ * Java ME platform, version 2.5.0.6.
+ * 
+ * 		/Joakim Andersson, 2011-11-11
+ */
+
+package nu.firetech.android.remote100.backend;
+
+/**
+ * Pre-encoded frames for everything we send to the car.
+ * 
+ * Every command is wrapped in CRLF as the car expects. Frames for complete
+ * state transitions (such as releasing one direction and pressing another)
+ * are concatenated up front, so that each transition can be sent with a
+ * single write, ending up in a single RFCOMM packet.
+ */
+/* package */ final class CommandFrames {
+	// =========================================
+	// Private Constants
+	// =========================================
+
+	// The response to the car's output.
+	private static final String OK = "OK";
+
+	// An empty command, which the car should answer.
+	private static final String AT = "AT";
+
+	// Car's commands.
+	private static final String FORWARD_PRESSED	= "+CKEV: u,1";
+	private static final String BACK_PRESSED	= "+CKEV: d,1";
+	private static final String SPEED3_PRESSED	= "+CKEV: #,1";
+	private static final String SPEED2_PRESSED	= "+CKEV: 0,1";
+	private static final String SPEED1_PRESSED	= "+CKEV: *,1";
+	private static final String STOP_PRESSED	= "+CKEV: :J,1";
+	private static final String LEFT_PRESSED	= "+CKEV: 2,1";
+	private static final String LEFT_RELEASED	= "+CKEV: 2,0";
+	private static final String RIGHT_PRESSED	= "+CKEV: 3,1";
+	private static final String RIGHT_RELEASED	= "+CKEV: 3,0";
+	private static final String NO_PRESSED		= "+CKEV: e,1";
+	private static final String NO_RELEASED		= "+CKEV: e,0";
+
+	// Carriage return and line feed.
+	private static final byte CR = 13;
+	private static final byte LF = 10;
+
+
+	// =========================================
+	// Public Constants
+	// =========================================
+
+	// A probe, used to check that the link is still alive, see Heartbeat.
+	public static final byte[] PROBE		= frame(AT);
+
+	// The answer to each line of input from the car.
+	public static final byte[] ANSWER_OK	= frame(OK);
+
+	// Accelerations, indexed by ACC_* + 1.
+	public static final byte[][] ACC = {
+		frame(BACK_PRESSED),
+		frame(STOP_PRESSED),
+		frame(FORWARD_PRESSED),
+	};
+
+	// Gears, indexed by gear - 1.
+	public static final byte[][] GEAR = {
+		frame(SPEED1_PRESSED),
+		frame(SPEED2_PRESSED),
+		frame(SPEED3_PRESSED),
+	};
+
+	// Direction transitions, indexed by [old DIR_* + 1][new DIR_* + 1].
+	public static final byte[][][] DIR = {
+		{ // From DIR_LEFT
+			null,
+			frame(LEFT_RELEASED),
+			frame(LEFT_RELEASED, RIGHT_PRESSED),
+		},
+		{ // From DIR_STRAIGHT
+			frame(LEFT_PRESSED),
+			null,
+			frame(RIGHT_PRESSED),
+		},
+		{ // From DIR_RIGHT
+			frame(RIGHT_RELEASED, LEFT_PRESSED),
+			frame(RIGHT_RELEASED),
+			null,
+		},
+	};
+
+	// Tell the car we've stopped playing (press and release the NO button).
+	public static final byte[] CLOSE	= frame(NO_PRESSED, NO_RELEASED);
+
+
+	// =========================================
+	// Helper Methods
+	// =========================================
+
+	private CommandFrames() {}
+
+	/**
+	 * @return The number of commands in a frame.
+	 */
+	public static int countCommands(byte[] frame) {
+		// Each command is wrapped in two CRLFs.
+		int count = 0;
+		for (int i = 0; i < frame.length; i++) {
+			if (frame[i] == LF) {
+				count++;
+			}
+		}
+		return count / 2;
+	}
+
+	/* Encode the given commands, each wrapped in CRLF, into one frame. */
+	private static byte[] frame(String... commands) {
+		int length = 0;
+		for (String command : commands) {
+			length += command.length() + 4;
+		}
+		byte[] frame = new byte[length];
+		int pos = 0;
+		for (String command : commands) {
+			frame[pos++] = CR;
+			frame[pos++] = LF;
+			for (int i = 0; i < command.length(); i++) {
+				frame[pos++] = (byte)command.charAt(i);
+			}
+			frame[pos++] = CR;
+			frame[pos++] = LF;
+		}
+		return frame;
+	}
+}
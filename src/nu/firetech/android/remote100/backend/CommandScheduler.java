@@ -0,0 +1,647 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Writes commands to the car from the I/O engine, in priority order.
+ * 
+ * Callers only update the CarState they want the car to be in and wake the
+ * scheduler; it then runs as a task on the IoEngine pool (never more than
+ * one at a time per car), compares a snapshot of that state to what it has
+ * actually sent and picks the next frame from the highest priority lane
+ * with pending work:
+ * 
+ * 1. Safety - STOP and the close sequence.
+ * 2. Protocol - OK answers to the car and heartbeat probes.
+ * 3. Motion - steering, forward and reverse.
+ * 4. Gear - gear changes.
+ * 
+ * A STOP can thus at most wait for the one frame that is already being
+ * written. The time from a stop being requested until it has been written
+ * is measured, and a stop written later than STOP_LATENCY_BOUND is
+ * counted and reported as late. A link is only given up on if a write
+ * fails, blocks a stop for longer than STOP_TIMEOUT (see isStopOverdue())
+ * or blocks for too long at all (see isWriteStalled()), which bounds how
+ * long a stalled link can hold an IoEngine thread.
+ * 
+ * The car answers probes, and possibly key events, with OK or ERROR in the
+ * order they were written, so the scheduler also keeps count of the replies
+ * owed, see onReply(): a reply only answers the probe in flight once every
+ * request written before it has been answered. Key events are only counted
+ * once the car has shown that it answers them, by sending more replies than
+ * there have been probes.
+ * 
+ * The motion and gear lanes can be held to a command rate, e.g. the one
+ * LinkCalibrator found the link to sustain. Since only the latest state is
+ * sent, input arriving faster than that is merged rather than queued up;
+ * safety and protocol frames are never held.
+ */
+/* package */ class CommandScheduler implements Runnable {
+	// =========================================
+	// Public Constants
+	// =========================================
+
+	// The longest time (in ns) a STOP may take to be written.
+	public static final long STOP_LATENCY_BOUND = 200 * 1000000L;
+
+	// The longest time (in ns) a STOP may wait for a blocked write before the link is given up on.
+	public static final long STOP_TIMEOUT = 1000 * 1000000L;
+
+	// A write taking longer than this (in ns) has blocked on a full link.
+	public static final long BLOCKED_WRITE = 5 * 1000000L;
+
+
+	// =========================================
+	// Public Interfaces
+	// =========================================
+
+	/**
+	 * Receives notifications about the writes made by the scheduler.
+	 */
+	public interface Listener {
+		/**
+		 * Called if writing fails. The scheduler stops after this.
+		 * 
+		 * @param e The reason for the failure.
+		 */
+		void onWriteFailed(IOException e);
+
+		/**
+		 * Called when a stop has been written, but later than STOP_LATENCY_BOUND.
+		 * 
+		 * @param latency The time (in ns) from the stop being requested until it was written.
+		 */
+		void onStopLate(long latency);
+
+		/**
+		 * Called when the car has been told to use other controls, i.e. a
+		 * command frame has been written or the car has reset its controls.
+		 */
+		void onCommitted(byte dir, byte acc, byte gear);
+	}
+
+
+	// =========================================
+	// Private Members
+	// =========================================
+
+	private volatile boolean run = true;
+
+	// The engine to run on.
+	private final IoEngine mEngine;
+
+	// What to time things by, the engine's clock.
+	private final Clock mClock;
+
+	// Set while the scheduler is queued or running on the engine.
+	private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+	// Where to write the frames.
+	private final OutputStream mOutput;
+
+	// Who to tell about writes.
+	private final Listener mListener;
+
+	// The state we want the car to be in.
+	private final AtomicReference<CarState> mState;
+
+	// The state the car has been told to be in (only touched while scheduled).
+	private byte mSentDir;
+	private byte mSentAcc;
+	private byte mSentGear;
+
+	// mSent* packed by ManeuverRecorder.pack(), for other threads.
+	private volatile int mCommitted;
+
+	// The epoch of the state mSent* belong to, see CarState.getEpoch().
+	private int mSentEpoch;
+
+	// The time (Clock.nanoTime()) of the last STOP accounted for.
+	private volatile long mStopHandled;
+
+	// The time (Clock.nanoTime()) the write in progress started, or 0.
+	private volatile long mWriteStarted;
+
+	// Number of OK answers waiting to be sent.
+	private final AtomicInteger mPendingAnswers = new AtomicInteger();
+
+	// Set when a probe should be sent.
+	private volatile boolean mProbe;
+
+	// Guards the reply accounting below, which the reader thread also updates.
+	private final Object mReplyLock = new Object();
+
+	// The number of requests written that the car is expected to answer, and of those settled.
+	private long mRequests;
+	private long mSettled;
+
+	// The request number of the probe in flight, or 0.
+	private long mProbeRequest;
+
+	// The number of probes written, and of replies received, ever.
+	private long mProbesWritten;
+	private long mRepliesReceived;
+
+	// Set once the car has shown that it answers key events too.
+	private boolean mCommandsAnswered;
+
+	// The shortest time (in ns) between two motion or gear frames, or 0 for no limit.
+	private volatile long mMinInterval;
+
+	// The time (Clock.nanoTime()) the last command frame was written (only touched while scheduled).
+	private long mLastCommand;
+
+	// How long (in ns) a held frame has left to wait, or 0 (only touched while scheduled).
+	private long mHeldFor;
+
+	// Runs the scheduler again once a held frame may be written.
+	private final Runnable mReleaseTask = new Runnable() {
+		@Override
+		public void run() {
+			mWake();
+		}
+	};
+
+	// Set when the close sequence should be sent, cleared when it has been.
+	private volatile boolean mCloseRequested;
+	private volatile boolean mClosed;
+
+	// Stop latency statistics.
+	private volatile int mStopCount;
+	private volatile long mStopLatencyMax;
+	private volatile long mStopLatencyTotal;
+	private volatile int mStopViolations;
+
+	// Write statistics.
+	private final LatencyHistogram mWriteTimes = new LatencyHistogram("Write call");
+	private volatile int mBlockedWrites;
+	private volatile int mCommandCount;
+
+
+	// =========================================
+	// Public Methods
+	// =========================================
+
+	/**
+	 * Create a new scheduler.
+	 * 
+	 * @param engine The engine to run on.
+	 * @param state The state we want the car to be in.
+	 * @param output The stream to write frames to.
+	 * @param listener Who to tell about writes.
+	 */
+	public CommandScheduler(IoEngine engine, AtomicReference<CarState> state, OutputStream output, Listener listener) {
+		mEngine = engine;
+		mClock = engine.getClock();
+		mState = state;
+		mOutput = output;
+		mListener = listener;
+		mSentReset(state.get());
+	}
+
+	/**
+	 * Tell the scheduler that the state has changed.
+	 */
+	public void wake() {
+		mWake();
+	}
+
+	/**
+	 * Queue an OK answer to a line of input from the car.
+	 */
+	public void answer() {
+		mPendingAnswers.incrementAndGet();
+		mWake();
+	}
+
+	/**
+	 * Queue a probe, to check that the link is still alive.
+	 */
+	public void probe() {
+		mProbe = true;
+		mWake();
+	}
+
+	/**
+	 * Account for an OK or ERROR from the car. Called from the reader thread.
+	 * 
+	 * @return true if it answers the probe in flight, i.e. every request written before the probe has been answered.
+	 */
+	public boolean onReply() {
+		synchronized (mReplyLock) {
+			mRepliesReceived++;
+			if (!mCommandsAnswered && mRepliesReceived > mProbesWritten) {
+				// Each probe is answered at most once, so key events are answered
+				// too. Count them from now on, after settling what is owed so far.
+				mCommandsAnswered = true;
+				mSettled = mRequests;
+				mProbeRequest = 0;
+				return false;
+			}
+			if (mSettled < mRequests) {
+				mSettled++;
+			}
+			if (mProbeRequest != 0 && mSettled == mProbeRequest) {
+				mProbeRequest = 0;
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Give up on the answer to the probe in flight, and on those owed for everything written before it.
+	 */
+	public void probeLost() {
+		synchronized (mReplyLock) {
+			if (mProbeRequest != 0) {
+				mSettled = Math.max(mSettled, mProbeRequest);
+				mProbeRequest = 0;
+			}
+		}
+	}
+
+	/**
+	 * Hold the motion and gear lanes to a command rate.
+	 * 
+	 * @param rate The most command frames per second to write, or 0 for no limit.
+	 */
+	public void setCommandRate(int rate) {
+		mMinInterval = (rate > 0 ? 1000000000L / rate : 0);
+		mWake();
+	}
+
+	/**
+	 * Send the close sequence and stop the scheduler.
+	 * 
+	 * Waits at most STOP_LATENCY_BOUND for the sequence to be written.
+	 * 
+	 * @return true if the close sequence was written, false otherwise.
+	 */
+	public boolean close() {
+		requestClose();
+		return awaitClose(mClock.nanoTime() + STOP_LATENCY_BOUND);
+	}
+
+	/**
+	 * Queue the close sequence, without waiting for it to be written.
+	 */
+	public void requestClose() {
+		if (run) {
+			mCloseRequested = true;
+			mWake();
+		}
+	}
+
+	/**
+	 * Wait for the close sequence queued by requestClose() to be written, and stop the scheduler.
+	 * 
+	 * @param deadline The time (Clock.nanoTime()) to give up waiting at.
+	 * @return true if the close sequence was written, false otherwise.
+	 */
+	public boolean awaitClose(long deadline) {
+		if (run) {
+			synchronized (this) {
+				long wait;
+				while (!mClosed && run && (wait = deadline - mClock.nanoTime()) > 0) {
+					try {
+						wait(wait / 1000000, (int)(wait % 1000000));
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+			}
+			run = false;
+		}
+		return mClosed;
+	}
+
+	/**
+	 * @return The number of stops written.
+	 */
+	public int getStopCount() {
+		return mStopCount;
+	}
+
+	/**
+	 * @return The average time (in ns) from request to write of a stop.
+	 */
+	public long getStopLatencyAverage() {
+		int count = mStopCount;
+		return (count > 0 ? mStopLatencyTotal / count : 0);
+	}
+
+	/**
+	 * @return The longest time (in ns) from request to write of a stop.
+	 */
+	public long getStopLatencyMax() {
+		return mStopLatencyMax;
+	}
+
+	/**
+	 * @return The controls the car has been told to use, packed by ManeuverRecorder.pack().
+	 */
+	public int getCommitted() {
+		return mCommitted;
+	}
+
+	/**
+	 * Check if a stop has waited longer than STOP_TIMEOUT for a write that
+	 * is still blocked, i.e. the link has timed out. Safe to call from any
+	 * thread.
+	 */
+	public boolean isStopOverdue() {
+		long started = mWriteStarted;
+		if (started == 0) {
+			return false;
+		}
+		CarState state = mState.get();
+		long requested = state.getStopRequested();
+		long now = mClock.nanoTime();
+		return state.getAcc() == Car100.ACC_STOP && requested != 0 && requested != mStopHandled &&
+				now - started > STOP_TIMEOUT && now - requested > STOP_TIMEOUT;
+	}
+
+	/**
+	 * Check if a write has been blocked for longer than a timeout, i.e. the
+	 * link has stalled. Safe to call from any thread.
+	 * 
+	 * @param timeout The longest time (in ns) a write may block.
+	 */
+	public boolean isWriteStalled(long timeout) {
+		long started = mWriteStarted;
+		return started != 0 && mClock.nanoTime() - started > timeout;
+	}
+
+	/**
+	 * @return The number of stops that took longer than STOP_LATENCY_BOUND.
+	 */
+	public int getStopViolations() {
+		return mStopViolations;
+	}
+
+	/**
+	 * @return The time each write to the link has taken.
+	 */
+	public LatencyHistogram getWriteTimes() {
+		return mWriteTimes;
+	}
+
+	/**
+	 * @return The number of writes that took longer than BLOCKED_WRITE.
+	 */
+	public int getBlockedWrites() {
+		return mBlockedWrites;
+	}
+
+	/**
+	 * @return The number of command frames (controls, not answers or probes) written.
+	 */
+	public int getCommandCount() {
+		return mCommandCount;
+	}
+
+	public void run() {
+		try {
+			while (run && mWriteNext()) {}
+		} catch (IOException e) {
+			synchronized (this) {
+				run = false;
+				notifyAll();
+			}
+			mListener.onWriteFailed(e);
+		}
+		long held = mHeldFor;
+		mHeldFor = 0;
+		mScheduled.set(false);
+		if (!run) {
+			return;
+		}
+		if (held > 0) {
+			try {
+				mClock.schedule(mReleaseTask, held);
+			} catch (RejectedExecutionException e) {
+				// The engine is shutting down.
+			}
+			if (mHasUrgentWork()) {
+				mWake();
+			}
+		} else if (mHasWork()) {
+			mWake();
+		}
+	}
+
+
+	// =========================================
+	// Helper Methods
+	// =========================================
+
+	/* Queue the scheduler on the engine, unless it's already queued or running. */
+	private void mWake() {
+		if (run && mScheduled.compareAndSet(false, true)) {
+			try {
+				mEngine.execute(this);
+			} catch (RejectedExecutionException e) {
+				// The engine is shutting down.
+				mScheduled.set(false);
+			}
+		}
+	}
+
+	/* Check if there is anything left to write. */
+	private boolean mHasWork() {
+		return mHasUrgentWork() || mHasCommand(mState.get());
+	}
+
+	/* Check if there is anything left to write that is never held. */
+	private boolean mHasUrgentWork() {
+		CarState state = mState.get();
+		return mCloseRequested || mPendingAnswers.get() > 0 || mProbe || state.getEpoch() != mSentEpoch ||
+				(state.getAcc() == Car100.ACC_STOP && mSentAcc != Car100.ACC_STOP);
+	}
+
+	/* Check if the state has controls the car hasn't been told about. */
+	private boolean mHasCommand(CarState state) {
+		return state.getDir() != mSentDir || state.getAcc() != mSentAcc || state.getGear() != mSentGear;
+	}
+
+	/* Check if a motion or gear frame has to wait for the command rate, and for how long. */
+	private boolean mHeld(CarState state) {
+		long interval = mMinInterval;
+		if (interval <= 0 || !mHasCommand(state)) {
+			return false;
+		}
+		long wait = mLastCommand + interval - mClock.nanoTime();
+		if (wait <= 0) {
+			return false;
+		}
+		mHeldFor = wait;
+		return true;
+	}
+
+	/* The car has reset its controls to those in the given state. */
+	private void mSentReset(CarState state) {
+		mSentEpoch = state.getEpoch();
+		mSentDir = state.getDir();
+		mSentAcc = state.getAcc();
+		mSentGear = state.getGear();
+		mCommit();
+	}
+
+	/* Tell the listener about the controls the car has now been told to use. */
+	private void mCommit() {
+		mCommitted = ManeuverRecorder.pack(mSentDir, mSentAcc, mSentGear);
+		mListener.onCommitted(mSentDir, mSentAcc, mSentGear);
+	}
+
+	/* Write the next frame, by priority. Returns false if there was nothing to write. */
+	private boolean mWriteNext() throws IOException {
+		CarState state = mState.get();
+		if (state.getEpoch() != mSentEpoch) {
+			mSentReset(CarState.INITIAL);
+			mSentEpoch = state.getEpoch();
+		}
+
+		// Safety lane.
+		if (mCloseRequested) {
+			mWriteCommand(CommandFrames.CLOSE);
+			synchronized (this) {
+				mClosed = true;
+				run = false;
+				notifyAll();
+			}
+			return true;
+		}
+		if (state.getAcc() == Car100.ACC_STOP && mSentAcc != Car100.ACC_STOP) {
+			mWriteCommand(CommandFrames.ACC[Car100.ACC_STOP + 1]);
+			mSentAcc = Car100.ACC_STOP;
+			mCommit();
+			mStopWritten(state.getStopRequested());
+			return true;
+		}
+
+		// Protocol lane.
+		if (mPendingAnswers.get() > 0) {
+			mPendingAnswers.decrementAndGet();
+			mWrite(CommandFrames.ANSWER_OK);
+			Metrics.protocolWritten(CommandFrames.ANSWER_OK.length);
+			return true;
+		}
+		if (mProbe) {
+			mProbe = false;
+			// Before writing, the answer may arrive before write() returns.
+			synchronized (mReplyLock) {
+				mProbesWritten++;
+				mProbeRequest = ++mRequests;
+			}
+			mWrite(CommandFrames.PROBE);
+			Metrics.probeWritten(CommandFrames.PROBE.length);
+			return true;
+		}
+
+		// Held back to the command rate, if any.
+		if (mHeld(state)) {
+			return false;
+		}
+
+		// Motion lane.
+		byte dir = state.getDir();
+		if (dir != mSentDir) {
+			mWriteCommand(CommandFrames.DIR[mSentDir + 1][dir + 1]);
+			mSentDir = dir;
+			mCommit();
+			return true;
+		}
+		byte acc = state.getAcc();
+		if (acc != mSentAcc) {
+			mWriteCommand(CommandFrames.ACC[acc + 1]);
+			mSentAcc = acc;
+			mCommit();
+			return true;
+		}
+
+		// Gear lane.
+		byte gear = state.getGear();
+		if (gear != mSentGear) {
+			mWriteCommand(CommandFrames.GEAR[gear - 1]);
+			mSentGear = gear;
+			mCommit();
+			return true;
+		}
+
+		return false;
+	}
+
+	/* Update the stop latency statistics, and enforce the bound. */
+	private void mStopWritten(long requested) {
+		if (requested == 0 || requested == mStopHandled) {
+			return;
+		}
+		mStopHandled = requested;
+		long latency = mClock.nanoTime() - requested;
+		mStopCount++;
+		mStopLatencyTotal += latency;
+		if (latency > mStopLatencyMax) {
+			mStopLatencyMax = latency;
+		}
+		if (latency > STOP_LATENCY_BOUND) {
+			mStopViolations++;
+			Metrics.stopLate();
+			mListener.onStopLate(latency);
+		}
+	}
+
+	/* Write a command frame to the car, and account for it. */
+	private void mWriteCommand(byte[] frame) throws IOException {
+		synchronized (mReplyLock) {
+			if (mCommandsAnswered) {
+				mRequests += CommandFrames.countCommands(frame);
+			}
+		}
+		mWrite(frame);
+		mLastCommand = mClock.nanoTime();
+		mCommandCount++;
+		Metrics.commandWritten(frame.length);
+	}
+
+	/* Write a frame to the car, timing the write. */
+	private void mWrite(byte[] frame) throws IOException {
+		long start = mClock.nanoTime();
+		mWriteStarted = start;
+		try {
+			mOutput.write(frame);
+		} finally {
+			mWriteStarted = 0;
+		}
+		long time = mClock.nanoTime() - start;
+		mWriteTimes.record(time);
+		if (time > BLOCKED_WRITE) {
+			mBlockedWrites++;
+		}
+	}
+}
@@ -0,0 +1,658 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Lets other machines on the network drive the cars, like the joystick does.
+ * 
+ * A single thread serves both sides of the bridge with a non-blocking
+ * Selector, on the same port number of one local address (the loopback or
+ * Wi-Fi address, never all of them). Clients prove that they may drive by
+ * presenting a shared token of TOKEN_SIZE bytes, see newToken():
+ * 
+ * * UDP - control datagrams of CONTROL_SIZE bytes: a version byte
+ *   (VERSION), the token, a sequence number (4 bytes, big-endian), the
+ *   gear (1-3, or 0 to keep it), then acceleration and direction as signed
+ *   bytes in the range [-100, 100], with positive meaning forward and
+ *   right. Datagrams without the right token are dropped first. Only the
+ *   latest datagram from a client counts, anything with a sequence number
+ *   not above the last one seen is dropped, as is anything beyond the
+ *   per-client rate limit. Accepted datagrams are posted to the ControlLoop
+ *   as a stick position and gear, so they take the same path as touch
+ *   input, including the Watchdog. Clients must thus keep sending, more
+ *   often than the watchdog deadline, for the car to keep moving.
+ * * TCP - a status stream. A client must first send the token, within
+ *   HANDSHAKE_TIMEOUT, or it is disconnected. It is then sent the status
+ *   of every car, then every event as it happens. Each event is a frame of a
+ *   type byte (EVENT_*), a value byte (the status or charge, 0 otherwise),
+ *   the length of the car address and the address. A client too slow to
+ *   keep up with its stream is disconnected rather than waited for.
+ * 
+ * Events arrive from the I/O threads through a queue, so nothing ever
+ * blocks on a client.
+ */
+public class ControlBridge extends Thread {
+	// =========================================
+	// Public Constants
+	// =========================================
+
+	// The version byte of control datagrams.
+	public static final byte VERSION = 2;
+
+	// The size of the shared token.
+	public static final int TOKEN_SIZE = 16;
+
+	// The size of a control datagram.
+	public static final int CONTROL_SIZE = 8 + TOKEN_SIZE;
+
+	// Event types in the status stream.
+	public static final byte EVENT_STATUS	= 'S';
+	public static final byte EVENT_CHARGE	= 'C';
+	public static final byte EVENT_LOST		= 'L';
+	public static final byte EVENT_FAILED	= 'F';
+
+
+	// =========================================
+	// Private Constants
+	// =========================================
+
+	// The largest value of acceleration and direction in a datagram.
+	private static final int FULL = 100;
+
+	// The status stream buffered per client before it's considered too slow.
+	private static final int CLIENT_BUFFER_SIZE = 4096;
+
+	// How far back a sequence number must jump to be taken as a restarted client.
+	private static final int RESTART_GAP = 1 << 16;
+
+	// How long (in ns) a control client is remembered without sending anything.
+	private static final long CLIENT_TIMEOUT = 10 * 1000000000L;
+
+	// The longest time (in ms) the selector waits before checking for idle clients.
+	private static final long SELECT_TIMEOUT = 1000;
+
+	// How long (in ns) a status client may take to send the token.
+	private static final long HANDSHAKE_TIMEOUT = 5 * 1000000000L;
+
+
+	// =========================================
+	// Private Members
+	// =========================================
+
+	private volatile boolean run = true;
+
+	// The cars, for the status stream.
+	private final CarFleet mFleet;
+
+	// Where to post control input, or null to ignore it.
+	private volatile ControlLoop mControl;
+
+	// The number of datagrams per second each client may send.
+	private final int mRate;
+
+	// The token clients must present.
+	private final byte[] mToken;
+
+	// The token of the datagram being handled (only used by the bridge thread).
+	private final byte[] mPresented = new byte[TOKEN_SIZE];
+
+	private final Selector mSelector;
+	private final DatagramChannel mDatagrams;
+	private final ServerSocketChannel mServer;
+
+	// The buffer datagrams are received into (only used by the bridge thread).
+	private final ByteBuffer mReceived = ByteBuffer.allocate(CONTROL_SIZE + 1);
+
+	// The known control clients (only used by the bridge thread).
+	private final Map<SocketAddress, ControlClient> mClients = new HashMap<SocketAddress, ControlClient>();
+
+	// Events not yet sent to the subscribers.
+	private final ConcurrentLinkedQueue<byte[]> mEvents = new ConcurrentLinkedQueue<byte[]>();
+
+	// Statistics.
+	private volatile long mAccepted;
+	private volatile long mStale;
+	private volatile long mLimited;
+	private volatile long mMalformed;
+	private volatile long mUnauthorized;
+	private volatile int mSubscribers;
+
+	private final CarListener mFleetListener = new CarListener() {
+		@Override
+		public void onStatusChanged(String address, byte status) {
+			mPost(EVENT_STATUS, status, address);
+		}
+
+		@Override
+		public void onLinkLost(String address) {
+			mPost(EVENT_LOST, (byte)0, address);
+		}
+
+		@Override
+		public void onChargeChanged(String address, byte charge) {
+			mPost(EVENT_CHARGE, charge, address);
+		}
+
+		@Override
+		public void onCommandFailed(String address, IOException e) {
+			mPost(EVENT_FAILED, (byte)0, address);
+		}
+
+		@Override
+		public void onStopLate(String address, long latency) {
+			// The link is kept, nothing the client has to act on.
+		}
+	};
+
+
+	// =========================================
+	// Public Methods
+	// =========================================
+
+	/**
+	 * Create and start a new bridge.
+	 * 
+	 * @param fleet The cars to report the status of.
+	 * @param address The local address to listen on, e.g. the loopback or Wi-Fi address, not the wildcard.
+	 * @param port The UDP and TCP port to listen on, or 0 for any free port.
+	 * @param rate The number of control datagrams per second each client may send.
+	 * @param token The token clients must present, TOKEN_SIZE bytes.
+	 */
+	public ControlBridge(CarFleet fleet, InetAddress address, int port, int rate, byte[] token) throws IOException {
+		super("Control bridge");
+		if (rate <= 0) {
+			throw new IllegalArgumentException("Invalid rate: " + rate);
+		}
+		if (address == null || address.isAnyLocalAddress()) {
+			throw new IllegalArgumentException("Invalid address: " + address);
+		}
+		if (token == null || token.length != TOKEN_SIZE) {
+			throw new IllegalArgumentException("Invalid token");
+		}
+		setDaemon(true);
+		mFleet = fleet;
+		mRate = rate;
+		mToken = token.clone();
+		mSelector = Selector.open();
+		mServer = ServerSocketChannel.open();
+		mDatagrams = DatagramChannel.open();
+		try {
+			mServer.socket().setReuseAddress(true);
+			mServer.socket().bind(new InetSocketAddress(address, port));
+			mServer.configureBlocking(false);
+			mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+			mDatagrams.socket().bind(new InetSocketAddress(address, mServer.socket().getLocalPort()));
+			mDatagrams.configureBlocking(false);
+			mDatagrams.register(mSelector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			mCloseChannels();
+			throw e;
+		}
+		fleet.addListener(mFleetListener);
+		this.start();
+	}
+
+	/**
+	 * Set where to post control input, e.g. when the control loop is replaced.
+	 * 
+	 * @param control The control loop, or null to ignore control input.
+	 */
+	public void setControl(ControlLoop control) {
+		mControl = control;
+	}
+
+	/**
+	 * @return The port the bridge listens on.
+	 */
+	public int getPort() {
+		return mServer.socket().getLocalPort();
+	}
+
+	/**
+	 * @return The number of control datagrams posted to the control loop.
+	 */
+	public long getAccepted() {
+		return mAccepted;
+	}
+
+	/**
+	 * @return The number of control datagrams dropped as older than one already seen.
+	 */
+	public long getStale() {
+		return mStale;
+	}
+
+	/**
+	 * @return The number of control datagrams dropped by the rate limit.
+	 */
+	public long getLimited() {
+		return mLimited;
+	}
+
+	/**
+	 * @return The number of datagrams dropped as not being control datagrams.
+	 */
+	public long getMalformed() {
+		return mMalformed;
+	}
+
+	/**
+	 * @return The number of datagrams and status clients turned away for not presenting the token.
+	 */
+	public long getUnauthorized() {
+		return mUnauthorized;
+	}
+
+	/**
+	 * @return The number of clients connected to the status stream, having presented the token.
+	 */
+	public int getSubscribers() {
+		return mSubscribers;
+	}
+
+	public void run() {
+		long lastSweep = System.nanoTime();
+		long lastHandshakeSweep = lastSweep;
+		while (run) {
+			try {
+				mSelector.select(SELECT_TIMEOUT);
+			} catch (IOException e) {
+				break;
+			}
+			Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				try {
+					if (!key.isValid()) {
+						continue;
+					} else if (key.channel() == mDatagrams) {
+						mReceiveControl();
+					} else if (key.isAcceptable()) {
+						mAccept();
+					} else if (key.isReadable()) {
+						mDiscardInput(key);
+					} else if (key.isWritable()) {
+						mFlush(key);
+					}
+				} catch (IOException e) {
+					if (key.channel() != mDatagrams && key.channel() != mServer) {
+						mDisconnect(key);
+					}
+				}
+			}
+			mSendEvents();
+
+			long now = System.nanoTime();
+			if (now - lastHandshakeSweep > SELECT_TIMEOUT * 1000000L) {
+				lastHandshakeSweep = now;
+				for (SelectionKey key : mSelector.keys()) {
+					Subscriber subscriber = (Subscriber)key.attachment();
+					if (subscriber != null && !subscriber.mAuthenticated &&
+							now - subscriber.mConnected > HANDSHAKE_TIMEOUT) {
+						mUnauthorized++;
+						mDisconnect(key);
+					}
+				}
+			}
+			if (now - lastSweep > CLIENT_TIMEOUT) {
+				lastSweep = now;
+				Iterator<ControlClient> clients = mClients.values().iterator();
+				while (clients.hasNext()) {
+					if (now - clients.next().mLastSeen > CLIENT_TIMEOUT) {
+						clients.remove();
+					}
+				}
+			}
+		}
+		for (SelectionKey key : mSelector.keys()) {
+			if (key.attachment() != null) {
+				mDisconnect(key);
+			}
+		}
+		mCloseChannels();
+	}
+
+	/**
+	 * Stop the bridge, and disconnect all clients.
+	 */
+	public void close() {
+		run = false;
+		mFleet.removeListener(mFleetListener);
+		mSelector.wakeup();
+	}
+
+	/**
+	 * @return A new random token, for clients to present.
+	 */
+	public static byte[] newToken() {
+		byte[] token = new byte[TOKEN_SIZE];
+		new SecureRandom().nextBytes(token);
+		return token;
+	}
+
+	/**
+	 * @return The token as hexadecimal digits, e.g. to show or store it.
+	 */
+	public static String formatToken(byte[] token) {
+		StringBuilder sb = new StringBuilder(token.length * 2);
+		for (int i = 0; i < token.length; i++) {
+			sb.append(Character.forDigit((token[i] >> 4) & 0x0F, 16))
+			.append(Character.forDigit(token[i] & 0x0F, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param hex A token as hexadecimal digits, see formatToken().
+	 * @return The token, or null if it isn't one.
+	 */
+	public static byte[] parseToken(String hex) {
+		if (hex == null || hex.length() != TOKEN_SIZE * 2) {
+			return null;
+		}
+		byte[] token = new byte[TOKEN_SIZE];
+		for (int i = 0; i < TOKEN_SIZE; i++) {
+			int high = Character.digit(hex.charAt(2 * i), 16);
+			int low = Character.digit(hex.charAt(2 * i + 1), 16);
+			if (high < 0 || low < 0) {
+				return null;
+			}
+			token[i] = (byte)((high << 4) | low);
+		}
+		return token;
+	}
+
+
+	// =========================================
+	// Helper Methods
+	// =========================================
+
+	/* Handle all waiting control datagrams. */
+	private void mReceiveControl() throws IOException {
+		SocketAddress from;
+		while ((from = mDatagrams.receive(mReceived)) != null) {
+			mReceived.flip();
+			try {
+				mHandleControl(from, mReceived);
+			} finally {
+				mReceived.clear();
+			}
+		}
+	}
+
+	/* Check a control datagram against the client's history, and post it if it's the latest. */
+	private void mHandleControl(SocketAddress from, ByteBuffer data) {
+		if (data.remaining() != CONTROL_SIZE || data.get() != VERSION) {
+			mMalformed++;
+			return;
+		}
+		data.get(mPresented);
+		if (!mIsToken(mPresented)) {
+			mUnauthorized++;
+			return;
+		}
+		int seq = data.getInt();
+		byte gear = data.get();
+		int acc = data.get();
+		int dir = data.get();
+		if (gear < 0 || gear > 3 || Math.abs(acc) > FULL || Math.abs(dir) > FULL) {
+			mMalformed++;
+			return;
+		}
+
+		long now = System.nanoTime();
+		ControlClient client = mClients.get(from);
+		if (client == null) {
+			client = new ControlClient(now, seq - 1);
+			mClients.put(from, client);
+		}
+		client.mLastSeen = now;
+		// A jump back by more than RESTART_GAP is taken as the client starting over.
+		if (seq - client.mLastSeq <= 0 && client.mLastSeq - seq < RESTART_GAP) {
+			mStale++;
+			return;
+		}
+		client.mLastSeq = seq;
+		if (!client.mTake(now, mRate)) {
+			mLimited++;
+			return;
+		}
+
+		ControlLoop control = mControl;
+		if (control != null) {
+			if (gear != 0) {
+				control.setGear(gear, now, Metrics.INPUT_NETWORK);
+			}
+			control.setStick(dir * ControlLoop.MAX_DEFLECTION / FULL, acc * ControlLoop.MAX_DEFLECTION / FULL,
+					now, Metrics.INPUT_NETWORK);
+			mAccepted++;
+		}
+	}
+
+	/* Accept a new status client, which must present the token before it's sent anything. */
+	private void mAccept() throws IOException {
+		SocketChannel channel;
+		while ((channel = mServer.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			channel.register(mSelector, SelectionKey.OP_READ, new Subscriber(System.nanoTime()));
+		}
+	}
+
+	/* Read the token from a new subscriber, then read and ignore anything it sends, noticing when it disconnects. */
+	private void mDiscardInput(SelectionKey key) throws IOException {
+		Subscriber subscriber = (Subscriber)key.attachment();
+		SocketChannel channel = (SocketChannel)key.channel();
+		if (!subscriber.mAuthenticated) {
+			if (channel.read(subscriber.mHandshake) < 0) {
+				mDisconnect(key);
+				return;
+			}
+			if (subscriber.mHandshake.hasRemaining()) {
+				return;
+			}
+			if (!mIsToken(subscriber.mHandshake.array())) {
+				mUnauthorized++;
+				mDisconnect(key);
+				return;
+			}
+			subscriber.mAuthenticated = true;
+			mSubscribers++;
+			CarServer[] servers = mFleet.getServers();
+			for (int i = 0; i < servers.length && key.isValid(); i++) {
+				mQueue(key, mFrame(EVENT_STATUS, servers[i].getStatus(), servers[i].getAddress()));
+			}
+			if (!key.isValid()) {
+				return;
+			}
+		}
+		ByteBuffer buffer = subscriber.mIn;
+		int read;
+		do {
+			buffer.clear();
+			read = channel.read(buffer);
+		} while (read > 0);
+		if (read < 0) {
+			mDisconnect(key);
+		}
+	}
+
+	/* Compare a token to ours, taking the same time wherever they differ. */
+	private boolean mIsToken(byte[] token) {
+		int diff = 0;
+		for (int i = 0; i < TOKEN_SIZE; i++) {
+			diff |= token[i] ^ mToken[i];
+		}
+		return (diff == 0);
+	}
+
+	/* Send the queued events to every subscriber. */
+	private void mSendEvents() {
+		byte[] frame;
+		while ((frame = mEvents.poll()) != null) {
+			for (SelectionKey key : mSelector.keys()) {
+				Subscriber subscriber = (Subscriber)key.attachment();
+				if (key.isValid() && subscriber != null && subscriber.mAuthenticated) {
+					mQueue(key, frame);
+				}
+			}
+		}
+	}
+
+	/* Add a frame to a subscriber's buffer and try to send it, or disconnect a subscriber that can't keep up. */
+	private void mQueue(SelectionKey key, byte[] frame) {
+		ByteBuffer out = ((Subscriber)key.attachment()).mOut;
+		if (out.remaining() < frame.length) {
+			mDisconnect(key);
+			return;
+		}
+		out.put(frame);
+		try {
+			mFlush(key);
+		} catch (IOException e) {
+			mDisconnect(key);
+		}
+	}
+
+	/* Write as much as possible of a subscriber's buffer, waiting for OP_WRITE if it doesn't all fit. */
+	private void mFlush(SelectionKey key) throws IOException {
+		ByteBuffer out = ((Subscriber)key.attachment()).mOut;
+		out.flip();
+		try {
+			((SocketChannel)key.channel()).write(out);
+		} finally {
+			out.compact();
+		}
+		key.interestOps(out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+	}
+
+	private void mDisconnect(SelectionKey key) {
+		Subscriber subscriber = (Subscriber)key.attachment();
+		if (subscriber == null) {
+			return;
+		}
+		key.attach(null);
+		key.cancel();
+		if (subscriber.mAuthenticated) {
+			mSubscribers--;
+		}
+		try {
+			key.channel().close();
+		} catch (IOException e) {}
+	}
+
+	/* Queue an event for the bridge thread to send. */
+	private void mPost(byte type, byte value, String address) {
+		if (mSubscribers > 0) {
+			mEvents.add(mFrame(type, value, address));
+			mSelector.wakeup();
+		}
+	}
+
+	private static byte[] mFrame(byte type, byte value, String address) {
+		byte[] name = address.getBytes();
+		int length = Math.min(name.length, 255);
+		byte[] frame = new byte[3 + length];
+		frame[0] = type;
+		frame[1] = value;
+		frame[2] = (byte)length;
+		System.arraycopy(name, 0, frame, 3, length);
+		return frame;
+	}
+
+	private void mCloseChannels() {
+		try {
+			mDatagrams.close();
+		} catch (IOException e) {}
+		try {
+			mServer.close();
+		} catch (IOException e) {}
+		try {
+			mSelector.close();
+		} catch (IOException e) {}
+	}
+
+	/* What we know about a client sending control datagrams. */
+	private static class ControlClient {
+		// The time (System.nanoTime()) of the last datagram from the client.
+		private long mLastSeen;
+
+		// The highest sequence number seen.
+		private int mLastSeq;
+
+		// The number of datagrams the client may send right now, and when it was last topped up.
+		private double mTokens;
+		private long mRefilled;
+
+		public ControlClient(long now, int lastSeq) {
+			mLastSeen = now;
+			mLastSeq = lastSeq;
+			mRefilled = now;
+			mTokens = 1;
+		}
+
+		/* Take a token from the bucket, which holds at most a fifth of a second's worth. */
+		private boolean mTake(long now, int rate) {
+			double burst = Math.max(1, rate / 5.0);
+			mTokens = Math.min(burst, mTokens + (now - mRefilled) * rate / 1e9);
+			mRefilled = now;
+			if (mTokens < 1) {
+				return false;
+			}
+			mTokens--;
+			return true;
+		}
+	}
+
+	/* The state and buffers of a client connected to the status stream. */
+	private static class Subscriber {
+		// The time (System.nanoTime()) the client connected.
+		private final long mConnected;
+
+		// Set once the client has presented the token.
+		private boolean mAuthenticated = false;
+
+		private final ByteBuffer mHandshake = ByteBuffer.allocate(TOKEN_SIZE);
+		private final ByteBuffer mIn = ByteBuffer.allocate(256);
+		private final ByteBuffer mOut = ByteBuffer.allocate(CLIENT_BUFFER_SIZE);
+
+		public Subscriber(long connected) {
+			mConnected = connected;
+		}
+	}
+}
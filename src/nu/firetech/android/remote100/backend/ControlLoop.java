@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Applies the desired control state to the car at a fixed rate.
+ * 
+ * The UI posts joystick positions and gear changes to a single-slot mailbox,
+ * which never blocks and always holds only the latest state. The loop picks
+ * up that state on its own thread and turns it into Car100 commands, so
+ * blocking socket writes never happen on the UI thread and intermediate
+ * positions that have already been superseded are simply dropped.
+ * 
+ * By default a deflection beyond THRESHOLD gives full throttle or full lock.
+ * In proportional mode, the deflection beyond DEAD_ZONE is instead turned
+ * into a duty cycle for a PwmEngine, which modulates the keys of the car.
+ * 
+ * While the car is moving, a Watchdog makes sure that fresh input keeps
+ * arriving, i.e. that whatever posts it (typically the UI thread) is still
+ * alive. A source holding a position steady, which gives no new events,
+ * must re-assert it through keepAlive(). If nothing arrives in time the car
+ * is stopped, and kept stopped until input arrives again, but the posted
+ * state is left alone so that driving resumes where the user still holds
+ * the stick. Whether the link itself is alive is up to the Heartbeat.
+ */
+public class ControlLoop extends Thread {
+	// =========================================
+	// Public Constants
+	// =========================================
+
+	// The joystick deflection needed to start steering or accelerating.
+	public static final int THRESHOLD = 5;
+
+	// How far below THRESHOLD the deflection must fall to stop again.
+	public static final int HYSTERESIS = 2;
+
+	// The largest deflection the joystick reports.
+	public static final int MAX_DEFLECTION = 10;
+
+	// The deflection ignored in proportional mode.
+	public static final int DEAD_ZONE = THRESHOLD - HYSTERESIS;
+
+
+	// =========================================
+	// Private Members
+	// =========================================
+
+	private volatile boolean run = true;
+
+	// The time between two iterations of the loop, in ns.
+	private final long period;
+
+	// The latest desired state, packed by pack().
+	private final AtomicLong mailbox = new AtomicLong(pack(0, 0, (byte)2));
+
+	// The cars being controlled.
+	private final CarFleet fleet;
+
+	// Stops the car if input stops arriving.
+	private final Watchdog watchdog;
+
+	// Modulates the keys in proportional mode, or null.
+	private final PwmEngine pwm;
+
+	// Set when the watchdog has stopped the car, until there is fresh input.
+	private volatile boolean expired = false;
+
+	// The time (System.nanoTime()) the latest state was posted, and the kind of input (Metrics.INPUT_*) it came from.
+	private volatile long posted = 0;
+	private volatile int source = Metrics.INPUT_TOUCH;
+
+	// The direction, acceleration and gear currently decided on.
+	private byte dir = Car100.DIR_STRAIGHT;
+	private byte acc = Car100.ACC_STOP;
+	private byte gear = 2;
+
+	// The duty cycles currently decided on, in proportional mode.
+	private int accDuty = 0;
+	private int dirDuty = 0;
+
+	// The posting time of the last state handled by the loop.
+	private long handled = 0;
+
+
+	// =========================================
+	// Public Methods
+	// =========================================
+
+	/**
+	 * Create and start a new control loop.
+	 * 
+	 * @param fleet The cars to control.
+	 * @param rate The number of iterations per second.
+	 * @param deadline The longest time (in ms) the car may move without fresh input.
+	 */
+	public ControlLoop(CarFleet fleet, int rate, int deadline) {
+		this(fleet, rate, deadline, false);
+	}
+
+	/**
+	 * Create and start a new control loop.
+	 * 
+	 * @param fleet The cars to control.
+	 * @param rate The number of iterations per second.
+	 * @param deadline The longest time (in ms) the car may move without fresh input.
+	 * @param proportional true to give the controls proportional effect, see PwmEngine.
+	 */
+	public ControlLoop(CarFleet fleet, int rate, int deadline, boolean proportional) {
+		super("Control loop");
+		if (rate <= 0) {
+			throw new IllegalArgumentException("Invalid rate: " + rate);
+		}
+		this.fleet = fleet;
+		this.period = 1000000000L / rate;
+		this.pwm = (proportional ? new PwmEngine(fleet) : null);
+		this.watchdog = new Watchdog(deadline, new Watchdog.Listener() {
+			@Override
+			public void onExpired() {
+				// Make sure the loop doesn't start the car again.
+				expired = true;
+				if (pwm != null) {
+					pwm.setDuty(0, 0);
+				}
+				ControlLoop.this.fleet.stopAll();
+			}
+		});
+		this.start();
+	}
+
+	/**
+	 * Post a new joystick position, from the touch joystick.
+	 * 
+	 * @param x Horizontal deflection, negative to the left.
+	 * @param y Vertical deflection, positive forward.
+	 */
+	public void setStick(int x, int y) {
+		setStick(x, y, System.nanoTime(), Metrics.INPUT_TOUCH);
+	}
+
+	/**
+	 * Post a new joystick position, from input that may have happened earlier.
+	 * 
+	 * @param x Horizontal deflection, negative to the left.
+	 * @param y Vertical deflection, positive forward.
+	 * @param time The time (System.nanoTime()) of the input, e.g. of a sensor event.
+	 * @param source The kind of input, one of Metrics.INPUT_*.
+	 */
+	public void setStick(int x, int y, long time, int source) {
+		fresh();
+		postStick(x, y);
+		this.source = source;
+		posted = time;
+	}
+
+	/**
+	 * Post a new gear, from the touch controls.
+	 * 
+	 * @param gear Desired car gear, in the range [1, 3].
+	 */
+	public void setGear(byte gear) {
+		setGear(gear, System.nanoTime(), Metrics.INPUT_TOUCH);
+	}
+
+	/**
+	 * Post a new gear, from input that may have happened earlier.
+	 * 
+	 * @param gear Desired car gear, in the range [1, 3].
+	 * @param time The time (System.nanoTime()) of the input.
+	 * @param source The kind of input, one of Metrics.INPUT_*.
+	 */
+	public void setGear(byte gear, long time, int source) {
+		fresh();
+		long old, state;
+		do {
+			old = mailbox.get();
+			state = pack(unpackX(old), unpackY(old), gear);
+		} while (!mailbox.compareAndSet(old, state));
+		this.source = source;
+		posted = time;
+	}
+
+	/**
+	 * Re-assert the posted state, from a source holding it steady.
+	 * 
+	 * Call this more often than the watchdog deadline while a held stick
+	 * gives no new events, to show that the source is still alive.
+	 */
+	public void keepAlive() {
+		fresh();
+	}
+
+	/**
+	 * @return The watchdog stopping the car if input stops arriving.
+	 */
+	public Watchdog getWatchdog() {
+		return watchdog;
+	}
+
+	/**
+	 * @return The engine modulating the keys, or null if not in proportional mode.
+	 */
+	public PwmEngine getPwmEngine() {
+		return pwm;
+	}
+
+	public void run() {
+		long next = System.nanoTime();
+		while (run) {
+			long time = posted;
+			int source = this.source;
+			long state = mailbox.get();
+			if (expired) {
+				// Stopped by the watchdog, keep the gear only.
+				state = pack(0, 0, unpackGear(state));
+			}
+			if (pwm != null) {
+				applyProportional(time, source, state);
+			} else {
+				applyThreshold(time, source, state);
+			}
+
+			next += period;
+			long wait = next - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(this, wait);
+			} else if (-wait > period) {
+				// We fell behind, don't try to catch up.
+				next = System.nanoTime();
+			}
+		}
+		if (pwm != null) {
+			pwm.close();
+		}
+	}
+
+	public void close() {
+		run = false;
+		watchdog.close();
+		LockSupport.unpark(this);
+	}
+
+
+	// =========================================
+	// Helper Methods
+	// =========================================
+
+	/* Apply a state with on/off controls. */
+	private void applyThreshold(long time, int source, long state) {
+		byte newDir = decide(dir, unpackX(state), Car100.DIR_LEFT, Car100.DIR_STRAIGHT, Car100.DIR_RIGHT);
+		byte newAcc = decide(acc, unpackY(state), Car100.ACC_REVERSE, Car100.ACC_STOP, Car100.ACC_FORWARD);
+		byte newGear = unpackGear(state);
+		if (newDir != dir || newAcc != acc || newGear != gear) {
+			if (time != handled) {
+				Metrics.inputChanged(time, source);
+			}
+			dir = newDir;
+			acc = newAcc;
+			gear = newGear;
+		} else if (time != handled) {
+			Metrics.inputSuppressed();
+		}
+		handled = time;
+		watchdog.setArmed(dir != Car100.DIR_STRAIGHT || acc != Car100.ACC_STOP);
+
+		// Car100 ignores anything that doesn't change its state.
+		fleet.setGear(gear);
+		fleet.setDir(dir);
+		fleet.setAcc(acc);
+	}
+
+	/* Apply a state with proportional controls. */
+	private void applyProportional(long time, int source, long state) {
+		int newDir = duty(unpackX(state));
+		int newAcc = duty(unpackY(state));
+		byte newGear = unpackGear(state);
+		if (newDir != dirDuty || newAcc != accDuty || newGear != gear) {
+			if (time != handled) {
+				Metrics.inputChanged(time, source);
+			}
+			dirDuty = newDir;
+			accDuty = newAcc;
+			gear = newGear;
+		} else if (time != handled) {
+			Metrics.inputSuppressed();
+		}
+		handled = time;
+		watchdog.setArmed(dirDuty != 0 || accDuty != 0);
+
+		fleet.setGear(gear);
+		pwm.setDuty(accDuty, dirDuty);
+	}
+
+	/* There is fresh input, let the car move again if the watchdog stopped it. */
+	private void fresh() {
+		watchdog.feed();
+		expired = false;
+	}
+
+	/* Update the stick position in the mailbox. */
+	private void postStick(int x, int y) {
+		long old, state;
+		do {
+			old = mailbox.get();
+			state = pack(x, y, unpackGear(old));
+		} while (!mailbox.compareAndSet(old, state));
+	}
+
+	/* Map a deflection to a duty cycle, see PwmEngine.setDuty(). */
+	private static int duty(int value) {
+		int magnitude = Math.min(Math.abs(value), MAX_DEFLECTION) - DEAD_ZONE;
+		if (magnitude <= 0) {
+			return 0;
+		}
+		int duty = magnitude * PwmEngine.FULL / (MAX_DEFLECTION - DEAD_ZONE);
+		return (value > 0 ? duty : -duty);
+	}
+
+	/* Map a deflection to one of three values, with hysteresis around the thresholds. */
+	private static byte decide(byte current, int value, byte negative, byte center, byte positive) {
+		int release = THRESHOLD - HYSTERESIS;
+		if (value > THRESHOLD || (current == positive && value > release)) {
+			return positive;
+		} else if (value < -THRESHOLD || (current == negative && value < -release)) {
+			return negative;
+		}
+		return center;
+	}
+
+	private static long pack(int x, int y, byte gear) {
+		return (x & 0xFFFFL) | ((y & 0xFFFFL) << 16) | ((gear & 0xFFL) << 32);
+	}
+
+	private static int unpackX(long state) {
+		return (short)state;
+	}
+
+	private static int unpackY(long state) {
+		return (short)(state >>> 16);
+	}
+
+	private static byte unpackGear(long state) {
+		return (byte)(state >>> 32);
+	}
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+/**
+ * Checks that the link to a car is alive, and measures its round-trip time.
+ * 
+ * A probe (an empty AT command) is sent to the car at an interval that
+ * depends on what the car is doing: often while it can be driven, rarely
+ * while it's charging. Each reply gives a round-trip time sample, which is
+ * smoothed into an average and a variance, while the share of answered
+ * probes is tracked as the link quality.
+ * 
+ * Once the car has shown that it answers probes, a probe left unanswered
+ * with no other input arriving either means that the link is dead. While
+ * driving, the probe interval and timeout are derived from the dead-link
+ * budget so that this is noticed within the budget. A car that never
+ * answers is only probed as rarely as the old keepalive, and its link is
+ * only declared dead when a write fails.
+ */
+/* package */ class Heartbeat {
+	// =========================================
+	// Public Constants
+	// =========================================
+
+	// The time (in ms) between two calls to tick().
+	public static final long TICK = 25;
+
+	// The default time (in ms) within which a dead link is noticed while driving.
+	public static final int DEFAULT_BUDGET = 500;
+
+	// The shortest allowed budget (in ms).
+	public static final int MIN_BUDGET = 8 * (int)TICK;
+
+
+	// =========================================
+	// Private Constants
+	// =========================================
+
+	// Time (in ns) between probes while the car is connected but hasn't sent its status.
+	private static final long CONNECTED_INTERVAL = 1000 * 1000000L;
+
+	// Time (in ns) between probes while the car is charging.
+	private static final long IDLE_INTERVAL = 5000 * 1000000L;
+
+	// Time (in ns) between probes to a car that doesn't answer them.
+	private static final long SILENT_INTERVAL = 10000 * 1000000L;
+
+	// The number of unanswered probes after which a car is assumed never to answer.
+	private static final int SILENT_AFTER = 3;
+
+	// Weights (as shifts) of new samples in the moving averages.
+	private static final int RTT_SHIFT = 3;
+	private static final int RTTVAR_SHIFT = 2;
+	private static final float QUALITY_WEIGHT = 0.125f;
+
+
+	// =========================================
+	// Public Interfaces
+	// =========================================
+
+	/**
+	 * Does what the heartbeat decides.
+	 */
+	public interface Listener {
+		/**
+		 * Send a probe to the car.
+		 */
+		void sendProbe();
+
+		/**
+		 * The probe sent has timed out, so its answer will no longer be awaited.
+		 */
+		void onProbeLost();
+
+		/**
+		 * The link is dead.
+		 * 
+		 * @param silence The time (in ns) without any input from the car.
+		 */
+		void onDead(long silence);
+	}
+
+
+	// =========================================
+	// Private Members
+	// =========================================
+
+	// What to time things by.
+	private final Clock mClock;
+
+	// Who to tell what to do.
+	private final Listener mListener;
+
+	// The budget (in ns) for noticing a dead link while driving.
+	private volatile long mBudget = DEFAULT_BUDGET * 1000000L;
+
+	// The time (Clock.nanoTime()) of the outstanding probe, or 0.
+	private long mProbeSent = 0;
+
+	// The time (Clock.nanoTime()) of the last probe sent.
+	private long mLastProbe = 0;
+
+	// The number of probes answered, and unanswered in a row.
+	private int mAnswered = 0;
+	private int mMissed = 0;
+
+	// The smoothed round-trip time and its variance (in ns), or -1 if unknown.
+	private volatile long mRtt = -1;
+	private volatile long mRttVar = -1;
+
+	// The share (in percent) of answered probes, or -1 if unknown.
+	private volatile float mQuality = -1;
+
+
+	// =========================================
+	// Public Methods
+	// =========================================
+
+	/**
+	 * @param clock What to time things by.
+	 * @param listener Who to tell what to do.
+	 */
+	public Heartbeat(Clock clock, Listener listener) {
+		mClock = clock;
+		mListener = listener;
+	}
+
+	/**
+	 * @param budget The time (in ms) within which a dead link should be noticed while driving.
+	 */
+	public void setBudget(int budget) {
+		if (budget < MIN_BUDGET) {
+			throw new IllegalArgumentException("Budget too small: " + budget);
+		}
+		mBudget = budget * 1000000L;
+	}
+
+	/**
+	 * @return The longest time (in ns) a dead link may go unnoticed.
+	 */
+	public long getBudget() {
+		return mBudget;
+	}
+
+	/**
+	 * Send a probe or give up on the link, if it's time to. Called every TICK ms.
+	 * 
+	 * @param status The status of the car.
+	 * @param lastInput The time (Clock.nanoTime()) input was last received, or 0.
+	 */
+	public synchronized void tick(byte status, long lastInput) {
+		long now = mClock.nanoTime();
+		long interval = mInterval(status);
+
+		if (mProbeSent != 0) {
+			if (now - mProbeSent <= mTimeout(status, interval)) {
+				return;
+			}
+			long sent = mProbeSent;
+			mProbeSent = 0;
+			mMissed++;
+			mUpdateQuality(0);
+			mListener.onProbeLost();
+			if (mAnswered > 0 && (lastInput == 0 || lastInput - sent < 0)) {
+				mListener.onDead(lastInput != 0 ? now - lastInput : now - sent);
+				return;
+			}
+		}
+
+		if (now - mLastProbe >= interval || mLastProbe == 0) {
+			mProbeSent = mLastProbe = now;
+			mListener.sendProbe();
+		}
+	}
+
+	/**
+	 * The car has answered the probe sent, i.e. with the oldest reply owed
+	 * after every request written before the probe has been answered.
+	 */
+	public synchronized void onReply() {
+		if (mProbeSent == 0) {
+			// Late, or not an answer to us.
+			return;
+		}
+		long sample = mClock.nanoTime() - mProbeSent;
+		mProbeSent = 0;
+		mAnswered++;
+		mMissed = 0;
+		mUpdateQuality(100);
+		Metrics.probeAnswered(sample);
+
+		if (mRtt < 0) {
+			mRtt = sample;
+			mRttVar = sample / 2;
+		} else {
+			long error = sample - mRtt;
+			mRtt += error >> RTT_SHIFT;
+			mRttVar += (Math.abs(error) - mRttVar) >> RTTVAR_SHIFT;
+		}
+	}
+
+	/**
+	 * @return The smoothed round-trip time (in ns), or -1 if unknown.
+	 */
+	public long getRtt() {
+		return mRtt;
+	}
+
+	/**
+	 * @return The round-trip time variance (in ns), or -1 if unknown.
+	 */
+	public long getRttVariance() {
+		return mRttVar;
+	}
+
+	/**
+	 * @return The share (in percent) of probes answered lately, or -1 if unknown.
+	 */
+	public int getQuality() {
+		return Math.round(mQuality);
+	}
+
+
+	// =========================================
+	// Helper Methods
+	// =========================================
+
+	/* The time (in ns) between probes in the given status. */
+	private long mInterval(byte status) {
+		if (mAnswered == 0 && mMissed >= SILENT_AFTER) {
+			return SILENT_INTERVAL;
+		}
+		switch (status) {
+		case Car100.STATUS_READY:
+			return Math.max(TICK * 1000000L, mBudget / 4);
+		case Car100.STATUS_CHARGING:
+		case Car100.STATUS_CHARGE_FULL:
+			return IDLE_INTERVAL;
+		default:
+			return CONNECTED_INTERVAL;
+		}
+	}
+
+	/* The time (in ns) to wait for an answer to a probe. */
+	private long mTimeout(byte status, long interval) {
+		if (status == Car100.STATUS_READY && interval != SILENT_INTERVAL) {
+			// Sending, waiting and noticing must all fit in the budget.
+			return mBudget - interval - TICK * 1000000L;
+		}
+		return interval;
+	}
+
+	/* Add an answered (100) or missed (0) probe to the link quality. */
+	private void mUpdateQuality(float sample) {
+		float quality = mQuality;
+		mQuality = (quality < 0 ? sample : quality + (sample - quality) * QUALITY_WEIGHT);
+	}
+}
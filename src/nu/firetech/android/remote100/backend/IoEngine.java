@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads doing the I/O work for all cars.
+ * 
+ * Writes and reconnect timers for every car run on one small, fixed pool.
+ * Each car writes from at most one task at a time, but a write blocks while
+ * the link is full, so a stalled link holds a pool thread until the write
+ * returns. The checks that catch that (see watch()) run on a watchdog
+ * thread of their own, which never writes: a write blocked for longer than
+ * a quarter of the dead-link budget fails its link, which closes the socket
+ * and hands the thread back, so a stalled car can only hold up the STOPs
+ * and heartbeats of the other cars for a bounded time. Connection attempts
+ * block for seconds, so they get a thread of their own and are made one at
+ * a time (which is also what the Bluetooth stack prefers). The only per-car
+ * thread left is the reader, which spends its life blocked in the kernel
+ * waiting for input, since the streams of a Bluetooth socket can't be
+ * multiplexed.
+ * 
+ * Timers go through a Clock, which is real time unless another clock is
+ * given (e.g. a VirtualClock, to run the timing logic faster than real
+ * time). Given only a clock, the engine starts no threads at all and does
+ * all its work as timers on the clock, so that a VirtualClock drives
+ * everything from the thread calling advance(), and runs repeat exactly.
+ */
+public class IoEngine {
+	private final ScheduledThreadPoolExecutor pool;
+	private final ScheduledThreadPoolExecutor watchdog;
+	private final ExecutorService connector;
+	private final Clock clock;
+	private final Clock watchClock;
+	
+	/**
+	 * @param threads The number of threads to do the I/O work on.
+	 */
+	public IoEngine(int threads) {
+		this(threads, null);
+	}
+	
+	/**
+	 * @param threads The number of threads to do the I/O work on.
+	 * @param clock The clock to time things by, or null for a RealClock running timers on the I/O threads (and checks on the watchdog thread).
+	 */
+	public IoEngine(int threads, Clock clock) {
+		pool = new ScheduledThreadPoolExecutor(threads, new NamedThreadFactory("Car I/O"));
+		watchdog = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("Car I/O watchdog"));
+		connector = Executors.newSingleThreadExecutor(new NamedThreadFactory("Car connector"));
+		this.clock = (clock != null ? clock : new RealClock(pool));
+		watchClock = (clock != null ? clock : new RealClock(watchdog));
+	}
+	
+	/**
+	 * Do all the work as timers on a clock, on whatever thread drives it.
+	 * 
+	 * @param clock The clock to do the work on.
+	 */
+	public IoEngine(Clock clock) {
+		pool = null;
+		watchdog = null;
+		connector = null;
+		this.clock = clock;
+		watchClock = clock;
+	}
+	
+	/**
+	 * @return The clock to time things by.
+	 */
+	public Clock getClock() {
+		return clock;
+	}
+	
+	/**
+	 * Run a short, non-blocking task (such as writing a frame) as soon as possible.
+	 */
+	public void execute(Runnable task) {
+		if (pool == null) {
+			clock.schedule(task, 0);
+		} else {
+			pool.execute(task);
+		}
+	}
+	
+	/**
+	 * Run a short, non-blocking task after a delay.
+	 * 
+	 * @param delay The delay in ms.
+	 */
+	public ScheduledFuture<?> schedule(Runnable task, long delay) {
+		return clock.schedule(task, TimeUnit.MILLISECONDS.toNanos(delay));
+	}
+	
+	/**
+	 * Run a short, non-blocking task repeatedly.
+	 * 
+	 * @param period The time (in ms) between the runs.
+	 */
+	public ScheduledFuture<?> repeat(Runnable task, long period) {
+		return clock.repeat(task, TimeUnit.MILLISECONDS.toNanos(period));
+	}
+	
+	/**
+	 * Run a short, non-blocking check repeatedly on the watchdog thread, so
+	 * that it runs even while every I/O thread is held by a blocked write.
+	 * It must never write itself.
+	 * 
+	 * @param period The time (in ms) between the runs.
+	 */
+	public ScheduledFuture<?> watch(Runnable task, long period) {
+		return watchClock.repeat(task, TimeUnit.MILLISECONDS.toNanos(period));
+	}
+	
+	/**
+	 * Run a connection attempt, after any other attempts already queued.
+	 */
+	public void connect(Runnable task) {
+		if (connector == null) {
+			clock.schedule(task, 0);
+		} else {
+			connector.execute(task);
+		}
+	}
+	
+	/**
+	 * Stop all threads. Tasks not yet run are dropped.
+	 */
+	public void shutdown() {
+		if (pool != null) {
+			pool.shutdown();
+			watchdog.shutdown();
+			connector.shutdownNow();
+		}
+	}
+	
+	/* Creates named daemon threads. */
+	private static class NamedThreadFactory implements ThreadFactory {
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger();
+		
+		public NamedThreadFactory(String name) {
+			this.name = name;
+		}
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name + " " + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads the files written by a TrafficJournal, one record at a time.
+ * 
+ * Run it stand-alone with:
+ *   java nu.firetech.android.remote100.backend.JournalReader [options] file...
+ * to reproduce what happened on the links, in one of these modes:
+ * 
+ * * dump - print every record.
+ * * parse - feed the input from each car through a MessageParser, and
+ *   print the messages it finds.
+ * * replay - send the output to one car to a CarSimulator (or anything
+ *   else listening on TCP) with the original timing.
+ */
+public class JournalReader {
+	// =========================================
+	// Private Members
+	// =========================================
+
+	private final DataInputStream mInput;
+
+	// The wall clock time and nanoTime() the file was started at.
+	private final long mWallClock;
+	private final long mNanoTime;
+
+	// The addresses of the sources named so far, by source.
+	private final String[] mSources = new String[256];
+
+	// The current record.
+	private long mTime;
+	private int mType;
+	private int mSource;
+	private int mLength;
+	private final byte[] mPayload = new byte[TrafficJournal.MAX_PAYLOAD];
+
+
+	// =========================================
+	// Public Methods
+	// =========================================
+
+	/**
+	 * Start reading a journal file.
+	 * 
+	 * @param input The contents of the file.
+	 * @throws IOException If it isn't a journal file.
+	 */
+	public JournalReader(InputStream input) throws IOException {
+		mInput = new DataInputStream(new BufferedInputStream(input));
+		for (int i = 0; i < TrafficJournal.MAGIC.length; i++) {
+			if (mInput.read() != TrafficJournal.MAGIC[i]) {
+				throw new IOException("Not a traffic journal");
+			}
+		}
+		mWallClock = mInput.readLong();
+		mNanoTime = mInput.readLong();
+	}
+
+	/**
+	 * Move on to the next record.
+	 * 
+	 * @return false at the end of the file.
+	 */
+	public boolean next() throws IOException {
+		long time;
+		try {
+			time = mInput.readLong();
+		} catch (EOFException e) {
+			return false;
+		}
+		mTime = time;
+		mType = mInput.readUnsignedByte();
+		mSource = mInput.readUnsignedByte();
+		mLength = mInput.readUnsignedShort();
+		mInput.readFully(mPayload, 0, mLength);
+		if (mType == TrafficJournal.SOURCE) {
+			mSources[mSource] = new String(mPayload, 0, mLength);
+		}
+		return true;
+	}
+
+	/**
+	 * @return The time (System.nanoTime() of the recording device) of the record.
+	 */
+	public long getTime() {
+		return mTime;
+	}
+
+	/**
+	 * @return The wall clock time (in ms) of the record.
+	 */
+	public long getWallClock() {
+		return mWallClock + (mTime - mNanoTime) / 1000000;
+	}
+
+	/**
+	 * @return TrafficJournal.IN, OUT or SOURCE.
+	 */
+	public int getType() {
+		return mType;
+	}
+
+	public int getSource() {
+		return mSource;
+	}
+
+	/**
+	 * @return The address of the car the record is about, or null if it hasn't been named.
+	 */
+	public String getAddress() {
+		return mSources[mSource];
+	}
+
+	/**
+	 * @return The payload of the record, valid until the next call to next().
+	 */
+	public byte[] getPayload() {
+		return mPayload;
+	}
+
+	public int getLength() {
+		return mLength;
+	}
+
+	public void close() throws IOException {
+		mInput.close();
+	}
+
+	public static void main(String[] args) throws Exception {
+		String mode = "dump";
+		String host = "127.0.0.1";
+		int port = 10100;
+		float speed = 1;
+		String address = null;
+		List<String> files = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("-m")) {
+				mode = args[++i];
+			} else if (arg.equals("-h")) {
+				host = args[++i];
+			} else if (arg.equals("-p")) {
+				port = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-s")) {
+				speed = Float.parseFloat(args[++i]);
+			} else if (arg.equals("-a")) {
+				address = args[++i];
+			} else if (!arg.startsWith("-")) {
+				files.add(arg);
+			} else {
+				files.clear();
+				break;
+			}
+		}
+		if (files.isEmpty() || !(mode.equals("dump") || mode.equals("parse") || mode.equals("replay")) || !(speed > 0)) {
+			System.err.println("Usage: JournalReader [-m dump|parse|replay] [-h host] [-p port]" +
+					" [-s speed] [-a address] file...");
+			System.exit(1);
+		}
+
+		if (mode.equals("dump")) {
+			dump(files);
+		} else if (mode.equals("parse")) {
+			parse(files);
+		} else {
+			replay(files, host, port, speed, address);
+		}
+	}
+
+
+	// =========================================
+	// Helper Methods
+	// =========================================
+
+	/* Print every record. */
+	private static void dump(List<String> files) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (String file : files) {
+			JournalReader reader = new JournalReader(new FileInputStream(file));
+			try {
+				while (reader.next()) {
+					sb.setLength(0);
+					sb.append(reader.getWallClock()).append(' ');
+					switch (reader.getType()) {
+					case TrafficJournal.IN:
+						sb.append(reader.getAddress()).append(" < ");
+						break;
+					case TrafficJournal.OUT:
+						sb.append(reader.getAddress()).append(" > ");
+						break;
+					default:
+						sb.append("source ").append(reader.getSource()).append(" = ");
+						break;
+					}
+					escape(sb, reader.getPayload(), reader.getLength());
+					System.out.println(sb);
+				}
+			} finally {
+				reader.close();
+			}
+		}
+	}
+
+	/* Feed the input from each car through its own parser, and print the messages. */
+	private static void parse(List<String> files) throws IOException {
+		final String[] names = { "other", "charging", "speed", "charge full", "reply" };
+		Map<Integer, MessageParser> parsers = new HashMap<Integer, MessageParser>();
+		for (String file : files) {
+			final JournalReader reader = new JournalReader(new FileInputStream(file));
+			try {
+				while (reader.next()) {
+					if (reader.getType() != TrafficJournal.IN) {
+						continue;
+					}
+					MessageParser parser = parsers.get(reader.getSource());
+					if (parser == null) {
+						parser = new MessageParser(new MessageParser.Listener() {
+							@Override
+							public void onMessage(int message) {
+								System.out.println(reader.getWallClock() + " " + reader.getAddress() + ": " +
+										(message < names.length ? names[message] : String.valueOf(message)));
+							}
+						});
+						parsers.put(reader.getSource(), parser);
+					}
+					parser.feed(reader.getPayload(), 0, reader.getLength());
+				}
+			} finally {
+				reader.close();
+			}
+		}
+	}
+
+	/* Send the output to one car over TCP, with the original timing. */
+	private static void replay(List<String> files, String host, int port, float speed, String address) throws IOException {
+		SocketTransport transport = new SocketTransport(host, port);
+		transport.connect();
+		final InputStream input = transport.getInputStream();
+		Thread drain = new Thread("Journal replay drain") {
+			@Override
+			public void run() {
+				byte[] buffer = new byte[256];
+				try {
+					while (input.read(buffer) >= 0) {}
+				} catch (IOException e) {}
+			}
+		};
+		drain.setDaemon(true);
+		drain.start();
+
+		OutputStream output = transport.getOutputStream();
+		long start = System.nanoTime();
+		long first = 0;
+		int count = 0;
+		for (String file : files) {
+			JournalReader reader = new JournalReader(new FileInputStream(file));
+			try {
+				while (reader.next()) {
+					if (reader.getType() != TrafficJournal.OUT) {
+						continue;
+					}
+					if (address == null) {
+						address = reader.getAddress();
+					} else if (!address.equals(reader.getAddress())) {
+						continue;
+					}
+					if (count == 0) {
+						first = reader.getTime();
+					}
+					long due = start + (long)((reader.getTime() - first) / speed);
+					long wait;
+					while ((wait = due - System.nanoTime()) > 0) {
+						LockSupport.parkNanos(wait);
+					}
+					output.write(reader.getPayload(), 0, reader.getLength());
+					count++;
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		System.out.println("Replayed " + count + " frames to " + address + " in " +
+				((System.nanoTime() - start) / 1000000) + " ms");
+		transport.close();
+	}
+
+	/* Append bytes as text, escaping anything unprintable. */
+	private static void escape(StringBuilder sb, byte[] data, int length) {
+		for (int i = 0; i < length; i++) {
+			int b = data[i] & 0xFF;
+			if (b == '\r') {
+				sb.append("\\r");
+			} else if (b == '\n') {
+				sb.append("\\n");
+			} else if (b == '\\') {
+				sb.append("\\\\");
+			} else if (b >= 0x20 && b < 0x7F) {
+				sb.append((char)b);
+			} else {
+				sb.append(String.format("\\x%02x", b));
+			}
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Records all traffic over another transport in a TrafficJournal.
+ * 
+ * Car100 reads from the car in chunks and the CommandScheduler writes
+ * whole frames, so each read and write ends up as one journal record.
+ */
+public class JournalTransport implements CarTransport {
+	private final CarTransport transport;
+	private final TrafficJournal.Channel channel;
+	private InputStream input;
+	private OutputStream output;
+	
+	/**
+	 * @param transport The transport to record the traffic of.
+	 * @param journal Where to record it.
+	 */
+	public JournalTransport(CarTransport transport, TrafficJournal journal) {
+		this.transport = transport;
+		this.channel = journal.channel(transport.getAddress());
+	}
+	
+	@Override
+	public void connect() throws IOException {
+		transport.connect();
+		input = new FilterInputStream(transport.getInputStream()) {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return (read(b, 0, 1) == 1 ? b[0] & 0xFF : -1);
+			}
+			
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int read = in.read(b, off, len);
+				if (read > 0) {
+					channel.in(b, off, read);
+				}
+				return read;
+			}
+		};
+		output = new FilterOutputStream(transport.getOutputStream()) {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte)b }, 0, 1);
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				channel.out(b, off, len);
+			}
+		};
+	}
+	
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return input;
+	}
+	
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return output;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		transport.close();
+	}
+	
+	@Override
+	public String getAddress() {
+		return transport.getAddress();
+	}
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-bucket histogram of latencies.
+ * 
+ * Latencies are recorded with microsecond resolution below 8 us, and with
+ * four buckets per power of two above that, which keeps the error of any
+ * percentile below 25% across the whole range (up to about half an hour).
+ * Recording never allocates and never blocks, so it can be done from any
+ * thread in the hot paths.
+ * 
+ * To measure a period while others keep recording, take a snapshot() at
+ * its start and use the *Since() methods at its end, rather than reset().
+ */
+public class LatencyHistogram {
+	// =========================================
+	// Private Constants
+	// =========================================
+
+	// Buckets below this (in us) are one microsecond wide.
+	private static final int LINEAR_BUCKETS = 8;
+
+	// The number of buckets per power of two above LINEAR_BUCKETS.
+	private static final int SUB_BUCKETS = 4;
+
+	// The number of powers of two covered above LINEAR_BUCKETS.
+	private static final int RANGES = 28;
+
+	private static final int BUCKETS = LINEAR_BUCKETS + RANGES * SUB_BUCKETS;
+
+
+	// =========================================
+	// Private Members
+	// =========================================
+
+	private final String mName;
+	private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mMax = new AtomicLong();
+
+
+	// =========================================
+	// Public Methods
+	// =========================================
+
+	/**
+	 * @param name The name shown when formatting the histogram.
+	 */
+	public LatencyHistogram(String name) {
+		mName = name;
+	}
+
+	/**
+	 * Record a latency.
+	 * 
+	 * @param latency The latency in ns. Negative values are ignored.
+	 */
+	public void record(long latency) {
+		if (latency < 0) {
+			return;
+		}
+		mBuckets.incrementAndGet(bucket(latency / 1000));
+		mCount.incrementAndGet();
+		long max;
+		while (latency > (max = mMax.get()) && !mMax.compareAndSet(max, latency)) {}
+	}
+
+	/**
+	 * @return The number of latencies recorded.
+	 */
+	public long getCount() {
+		return mCount.get();
+	}
+
+	/**
+	 * @return The highest latency (in ns) recorded.
+	 */
+	public long getMax() {
+		return mMax.get();
+	}
+
+	/**
+	 * Get a percentile of the recorded latencies.
+	 * 
+	 * The result is the upper bound of the bucket holding the percentile,
+	 * but never more than the highest latency recorded.
+	 * 
+	 * @param percentile The percentile, in the range [0, 100].
+	 * @return The latency (in ns) below which the given percentage of the recorded latencies are.
+	 */
+	public long getPercentile(double percentile) {
+		long count = mCount.get();
+		if (count == 0) {
+			return 0;
+		}
+		long target = (long)Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += mBuckets.get(i);
+			if (seen >= target && seen > 0) {
+				return Math.min(upperBound(i) * 1000, getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Copy the bucket counts, to measure the latencies recorded after this.
+	 * 
+	 * @return The snapshot, for the *Since() methods.
+	 */
+	public long[] snapshot() {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = mBuckets.get(i);
+		}
+		return counts;
+	}
+
+	/**
+	 * @param snapshot A snapshot taken by snapshot().
+	 * @return The number of latencies recorded since the snapshot.
+	 */
+	public long getCountSince(long[] snapshot) {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += mBuckets.get(i) - snapshot[i];
+		}
+		return count;
+	}
+
+	/**
+	 * Get a percentile of the latencies recorded since a snapshot, see getPercentile().
+	 * 
+	 * @param snapshot A snapshot taken by snapshot().
+	 * @param percentile The percentile, in the range [0, 100].
+	 * @return The latency (in ns) below which the given percentage of those latencies are.
+	 */
+	public long getPercentileSince(long[] snapshot, double percentile) {
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = mBuckets.get(i) - snapshot[i];
+			count += counts[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long target = (long)Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= target && seen > 0) {
+				return Math.min(upperBound(i) * 1000, getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Get the highest latency recorded since a snapshot.
+	 * 
+	 * This is the upper bound of the highest bucket recorded to since, but
+	 * never more than the highest latency recorded at all.
+	 * 
+	 * @param snapshot A snapshot taken by snapshot().
+	 * @return The latency (in ns), or 0 if none has been recorded since.
+	 */
+	public long getMaxSince(long[] snapshot) {
+		for (int i = BUCKETS - 1; i >= 0; i--) {
+			if (mBuckets.get(i) > snapshot[i]) {
+				return Math.min(upperBound(i) * 1000, getMax());
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Forget all recorded latencies.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			mBuckets.set(i, 0);
+		}
+		mCount.set(0);
+		mMax.set(0);
+	}
+
+	/**
+	 * Append a one line summary (count, p50, p99 and max, in us).
+	 * 
+	 * @param sb Where to append the summary.
+	 */
+	public void format(StringBuilder sb) {
+		sb.append(mName)
+		.append(": n=").append(getCount())
+		.append(" p50=").append(getPercentile(50) / 1000)
+		.append(" p99=").append(getPercentile(99) / 1000)
+		.append(" max=").append(getMax() / 1000)
+		.append(" us");
+	}
+
+	/**
+	 * Append the count of every non-empty bucket, one per line, as
+	 * "upper bound (in us) &lt;tab&gt; count".
+	 * 
+	 * @param sb Where to append the buckets.
+	 */
+	public void formatBuckets(StringBuilder sb) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long n = mBuckets.get(i);
+			if (n > 0) {
+				sb.append(upperBound(i)).append('\t').append(n).append('\n');
+			}
+		}
+	}
+
+
+	// =========================================
+	// Helper Methods
+	// =========================================
+
+	/* Find the bucket for a latency in us. */
+	private static int bucket(long us) {
+		if (us < LINEAR_BUCKETS) {
+			return (int)us;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(us);
+		int range = exponent - 3;
+		if (range >= RANGES) {
+			return BUCKETS - 1;
+		}
+		int sub = (int)(us >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+		return LINEAR_BUCKETS + range * SUB_BUCKETS + sub;
+	}
+
+	/* The highest latency (in us) that falls in a bucket. */
+	private static long upperBound(int bucket) {
+		if (bucket < LINEAR_BUCKETS) {
+			return bucket;
+		}
+		int range = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS;
+		int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+		int exponent = range + 3;
+		long lower = (1L << exponent) + ((long)sub << (exponent - 2));
+		return lower + (1L << (exponent - 2)) - 1;
+	}
+}
@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures how many commands per second the link to a car can take.
+ * 
+ * The car is driven through a sweep of command rates, with two patterns of
+ * frames: steering press/release pairs and gear changes. Forward and
+ * reverse are never used, so the car stays where it is (but its wheels
+ * turn). Each rate is held for STEP_TIME, after which the step is checked:
+ * 
+ * * Every command asked for must have reached the wire, i.e. the scheduler
+ *   must not have had to merge any because the link was behind.
+ * * No write may have blocked, see CommandScheduler.BLOCKED_WRITE.
+ * * The status must have stayed ready, with the heartbeat probes answered
+ *   and the round-trip time not far from what it was before the sweep.
+ * 
+ * A pattern's sweep ends at the first rate failing this, and the next
+ * pattern starts once the car is ready again (which may take a reconnect,
+ * if the failure was bad enough to lose the link). The slowest
+ * pattern's last good rate, less some headroom, is the capacity of the link,
+ * to be given to CarServer.setCommandRate() for it. Like the Watchdog the
+ * thread runs at max priority and spins through the last part of each wait,
+ * so the commands are issued evenly.
+ * 
+ * Run it stand-alone with:
+ *   java nu.firetech.android.remote100.backend.LinkCalibrator [options]
+ * to calibrate against a CarSimulator, or anything else listening on TCP.
+ */
+public class LinkCalibrator extends Thread {
+	// =========================================
+	// Public Constants
+	// =========================================
+
+	// Frame patterns.
+	public static final int PATTERN_STEER	= 0;
+	public static final int PATTERN_GEAR	= 1;
+
+
+	// =========================================
+	// Private Constants
+	// =========================================
+
+	private static final String[] PATTERN_NAMES = { "steer", "gear" };
+
+	// The command rates (per second) tried, in order.
+	private static final int[] RATES = { 5, 10, 15, 20, 30, 40, 60, 80, 120, 160 };
+
+	// How long (in ns) each rate is held.
+	private static final long STEP_TIME = 2000 * 1000000L;
+
+	// How long (in ns) the link gets to catch up after each step.
+	private static final long SETTLE_TIME = 500 * 1000000L;
+
+	// How long (in ms) the car gets to be ready again after a failed step.
+	private static final long RECOVER_TIME = 10000;
+
+	// The share (in percent) of the heartbeat probes that must be answered.
+	private static final int MIN_QUALITY = 90;
+
+	// How much (in ns) the round-trip time may grow, on top of doubling.
+	private static final long RTT_MARGIN = 20 * 1000000L;
+
+	// The share (in percent) of the measured capacity to actually use.
+	private static final int HEADROOM = 80;
+
+	// How close to a command (in ns) we stop parking and start spinning.
+	private static final long SPIN_THRESHOLD = 200 * 1000L;
+
+
+	// =========================================
+	// Public Interfaces
+	// =========================================
+
+	/**
+	 * Told about the progress of the calibration.
+	 */
+	public interface Listener {
+		/**
+		 * Called from the calibrator thread when a step is done.
+		 * 
+		 * @param calibrator The calibrator.
+		 * @param step The outcome of the step.
+		 */
+		void onStep(LinkCalibrator calibrator, Step step);
+
+		/**
+		 * Called from the calibrator thread when the calibration is over.
+		 * 
+		 * @param calibrator The calibrator that finished.
+		 * @param rate The capacity found, see getRate(), or 0 if the calibration failed or was closed.
+		 */
+		void onFinished(LinkCalibrator calibrator, int rate);
+	}
+
+
+	// =========================================
+	// Public Classes
+	// =========================================
+
+	/**
+	 * The outcome of holding one command rate with one pattern.
+	 */
+	public static final class Step {
+		private final int mPattern;
+		private final int mRate;
+		private final int mIssued;
+		private final int mDelivered;
+		private final int mBlocked;
+		private final long mWriteTime;
+		private final long mWriteTimeMax;
+		private final boolean mStable;
+		private final long mRtt;
+		private final boolean mPassed;
+
+		private Step(int pattern, int rate, int issued, int delivered, int blocked,
+				long writeTime, long writeTimeMax, boolean stable, long rtt, boolean passed) {
+			mPattern = pattern;
+			mRate = rate;
+			mIssued = issued;
+			mDelivered = delivered;
+			mBlocked = blocked;
+			mWriteTime = writeTime;
+			mWriteTimeMax = writeTimeMax;
+			mStable = stable;
+			mRtt = rtt;
+			mPassed = passed;
+		}
+
+		/**
+		 * @return PATTERN_STEER or PATTERN_GEAR.
+		 */
+		public int getPattern() {
+			return mPattern;
+		}
+
+		/**
+		 * @return The command rate (per second) held.
+		 */
+		public int getRate() {
+			return mRate;
+		}
+
+		/**
+		 * @return The number of commands asked for.
+		 */
+		public int getIssued() {
+			return mIssued;
+		}
+
+		/**
+		 * @return The number of commands that reached the wire.
+		 */
+		public int getDelivered() {
+			return mDelivered;
+		}
+
+		/**
+		 * @return The number of writes that blocked.
+		 */
+		public int getBlocked() {
+			return mBlocked;
+		}
+
+		/**
+		 * @return The 99th percentile of the time (in ns) the writes took.
+		 */
+		public long getWriteTime() {
+			return mWriteTime;
+		}
+
+		/**
+		 * @return The longest time (in ns) a write took.
+		 */
+		public long getWriteTimeMax() {
+			return mWriteTimeMax;
+		}
+
+		/**
+		 * @return true if the car stayed ready and kept answering probes.
+		 */
+		public boolean isStable() {
+			return mStable;
+		}
+
+		/**
+		 * @return The round-trip time (in ns) at the end of the step, or -1 if unknown.
+		 */
+		public long getRtt() {
+			return mRtt;
+		}
+
+		/**
+		 * @return true if the link kept up with the rate.
+		 */
+		public boolean isPassed() {
+			return mPassed;
+		}
+
+		@Override
+		public String toString() {
+			return PATTERN_NAMES[mPattern] + " @ " + mRate + "/s: " +
+					mDelivered + "/" + mIssued + " delivered, " +
+					mBlocked + " blocked, write p99 " + (mWriteTime / 1000) + " us (max " + (mWriteTimeMax / 1000) + " us), " +
+					(mStable ? "stable" : "unstable") + ", RTT " + (mRtt >= 0 ? (mRtt / 1000000) + " ms" : "unknown") +
+					(mPassed ? "" : " - FAILED");
+		}
+	}
+
+
+	// =========================================
+	// Private Members
+	// =========================================
+
+	private volatile boolean run = true;
+
+	// The car to calibrate.
+	private final CarServer mServer;
+
+	// Who to tell about the progress, or null.
+	private final Listener mListener;
+
+	// The steps done so far.
+	private final List<Step> mSteps = new ArrayList<Step>();
+
+	// The capacity found, or 0.
+	private volatile int mRate;
+
+	// Status changes and link losses during the current step.
+	private volatile int mUpsets;
+
+	private final CarListener mCarListener = new CarListener() {
+		@Override
+		public void onStatusChanged(String address, byte status) {
+			mUpsets++;
+		}
+
+		@Override
+		public void onLinkLost(String address) {
+			mUpsets++;
+		}
+
+		@Override
+		public void onChargeChanged(String address, byte charge) {}
+
+		@Override
+		public void onCommandFailed(String address, IOException e) {
+			mUpsets++;
+		}
+
+		@Override
+		public void onStopLate(String address, long latency) {
+			// Stops held up by commands, the rate is too high.
+			mUpsets++;
+		}
+	};
+
+
+	// =========================================
+	// Public Methods
+	// =========================================
+
+	/**
+	 * Create and start a new calibrator.
+	 * 
+	 * Nothing else may control the car until the calibration is over.
+	 * 
+	 * @param server The car to calibrate. It should be ready to drive.
+	 * @param listener Who to tell about the progress, or null.
+	 */
+	public LinkCalibrator(CarServer server, Listener listener) {
+		super("Link calibrator");
+		setDaemon(true);
+		setPriority(Thread.MAX_PRIORITY);
+		mServer = server;
+		mListener = listener;
+		this.start();
+	}
+
+	/**
+	 * @return The car being calibrated.
+	 */
+	public CarServer getServer() {
+		return mServer;
+	}
+
+	/**
+	 * @return The most commands per second the link can safely take, or 0 if not known (yet).
+	 */
+	public int getRate() {
+		return mRate;
+	}
+
+	/**
+	 * @return The steps done so far.
+	 */
+	public List<Step> getSteps() {
+		synchronized (mSteps) {
+			return new ArrayList<Step>(mSteps);
+		}
+	}
+
+	public void run() {
+		int previousRate = mServer.getCommandRate();
+		mServer.setCommandRate(0);
+		int capacity = Integer.MAX_VALUE;
+		long rtt = -1;
+		for (int pattern = PATTERN_STEER; run && pattern <= PATTERN_GEAR && capacity > 0; pattern++) {
+			Car100 car = mAwaitReady();
+			if (car == null) {
+				capacity = 0;
+				break;
+			}
+			if (rtt < 0) {
+				rtt = car.getRtt();
+			}
+			car.addListener(mCarListener);
+			try {
+				car.setAcc(Car100.ACC_STOP);
+				capacity = Math.min(capacity, mSweep(car, pattern, rtt));
+			} finally {
+				car.setDir(Car100.DIR_STRAIGHT);
+				car.removeListener(mCarListener);
+			}
+		}
+		int rate = 0;
+		if (run && capacity > 0) {
+			rate = Math.max(capacity * HEADROOM / 100, 1);
+		}
+		mServer.setCommandRate(previousRate);
+		mRate = rate;
+		if (mListener != null) {
+			mListener.onFinished(this, rate);
+		}
+	}
+
+	/**
+	 * Stop the calibration.
+	 */
+	public void close() {
+		run = false;
+		LockSupport.unpark(this);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String host = "127.0.0.1";
+		int port = 10100;
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("-h")) {
+				host = args[++i];
+			} else if (arg.equals("-p")) {
+				port = Integer.parseInt(args[++i]);
+			} else {
+				System.err.println("Usage: LinkCalibrator [-h host] [-p port]");
+				System.exit(1);
+			}
+		}
+		CarFleet fleet = new CarFleet(1);
+		CarServer server = fleet.add(new SocketTransport(host, port));
+		while (server.getStatus() != Car100.STATUS_READY) {
+			Thread.sleep(100);
+		}
+		LinkCalibrator calibrator = new LinkCalibrator(server, new Listener() {
+			@Override
+			public void onStep(LinkCalibrator calibrator, Step step) {
+				System.out.println(step);
+			}
+
+			@Override
+			public void onFinished(LinkCalibrator calibrator, int rate) {}
+		});
+		calibrator.join();
+		System.out.println("Capacity: " + calibrator.getRate() + " commands/s");
+		fleet.close();
+	}
+
+
+	// =========================================
+	// Helper Methods
+	// =========================================
+
+	/* Wait for the car to be ready. Returns null if it isn't within RECOVER_TIME, or if closed. */
+	private Car100 mAwaitReady() {
+		long end = System.currentTimeMillis() + RECOVER_TIME;
+		while (run) {
+			Car100 car = mServer.getCar();
+			if (car != null && car.getStatus() == Car100.STATUS_READY) {
+				return car;
+			}
+			long wait = end - System.currentTimeMillis();
+			if (wait <= 0) {
+				break;
+			}
+			LockSupport.parkNanos(this, Math.min(wait, 100) * 1000000L);
+		}
+		return null;
+	}
+
+	/* Sweep the rates with a pattern. Returns the last rate passed, or 0. */
+	private int mSweep(Car100 car, int pattern, long rtt) {
+		int passed = 0;
+		for (int i = 0; run && i < RATES.length; i++) {
+			Step step = mStep(car, pattern, RATES[i], rtt);
+			if (!run) {
+				break;
+			}
+			synchronized (mSteps) {
+				mSteps.add(step);
+			}
+			if (mListener != null) {
+				mListener.onStep(this, step);
+			}
+			if (!step.isPassed()) {
+				break;
+			}
+			passed = step.getRate();
+		}
+		return passed;
+	}
+
+	/* Hold a rate with a pattern for STEP_TIME, and see how the link coped. */
+	private Step mStep(Car100 car, int pattern, int rate, long rtt) {
+		mUpsets = 0;
+		// Others may be recording, so measure the step from a snapshot.
+		LatencyHistogram writeTimes = car.getWriteTimes();
+		long[] writesBefore = writeTimes.snapshot();
+		int blocked = car.getBlockedWrites();
+		int commands = car.getCommandCount();
+
+		long interval = 1000000000L / rate;
+		long due = System.nanoTime();
+		long end = due + STEP_TIME;
+		int issued = 0;
+		while (run && due < end) {
+			mWaitUntil(due);
+			if (!run) {
+				break;
+			}
+			boolean queued;
+			if (pattern == PATTERN_STEER) {
+				queued = car.setDir(car.getState().getDir() == Car100.DIR_STRAIGHT ? Car100.DIR_LEFT : Car100.DIR_STRAIGHT);
+			} else {
+				queued = car.setGear((byte)(car.getState().getGear() % 3 + 1));
+			}
+			if (queued) {
+				issued++;
+			}
+			due += interval;
+		}
+		mWaitUntil(System.nanoTime() + SETTLE_TIME);
+
+		int delivered = car.getCommandCount() - commands;
+		blocked = car.getBlockedWrites() - blocked;
+		int quality = car.getLinkQuality();
+		long stepRtt = car.getRtt();
+		boolean stable = (mUpsets == 0 && car.getStatus() == Car100.STATUS_READY &&
+				(quality < 0 || quality >= MIN_QUALITY) &&
+				(rtt <= 0 || stepRtt <= rtt * 2 + RTT_MARGIN));
+		boolean passed = (stable && blocked == 0 && issued > 0 && delivered >= issued);
+		return new Step(pattern, rate, issued, delivered, blocked,
+				writeTimes.getPercentileSince(writesBefore, 99), writeTimes.getMaxSince(writesBefore),
+				stable, stepRtt, passed);
+	}
+
+	/* Wait until the given time (System.nanoTime()), or until closed. */
+	private void mWaitUntil(long due) {
+		long remaining = due - System.nanoTime();
+		while (run && remaining > SPIN_THRESHOLD) {
+			LockSupport.parkNanos(this, remaining - SPIN_THRESHOLD);
+			remaining = due - System.nanoTime();
+		}
+		while (run && remaining > 0) {
+			Thread.yield();
+			remaining = due - System.nanoTime();
+		}
+	}
+}
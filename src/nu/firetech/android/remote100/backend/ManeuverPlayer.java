@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a recording made by a ManeuverRecorder.
+ * 
+ * Each transition is applied to the targeted cars through the CarFleet at
+ * the time it was recorded, optionally sped up or slowed down, so it goes
+ * through the same command path as live control. The recording is streamed
+ * from disk one record at a time. Like the Watchdog, the thread runs at max
+ * priority and spins through the last part of each wait, to get the timing
+ * right down to the microsecond, and keeps track of how late it actually
+ * managed to apply each transition.
+ * 
+ * When looping, each pass takes at least MIN_PASS_TIME, so that a recording
+ * spanning no time doesn't have the player spin and reopen the file
+ * without pause. A recording without transitions can't be looped at all.
+ * 
+ * The cars are stopped when the replay ends, fails or is closed.
+ * 
+ * Run it stand-alone with:
+ *   java nu.firetech.android.remote100.backend.ManeuverPlayer [options] file
+ * to replay a recording to a CarSimulator, or anything else listening on TCP.
+ */
+public class ManeuverPlayer extends Thread {
+	// =========================================
+	// Private Constants
+	// =========================================
+
+	// How close to a transition (in ns) we stop parking and start spinning.
+	private static final long SPIN_THRESHOLD = 200 * 1000L;
+
+	// The shortest time (in ns) a pass over the recording may take when looping.
+	private static final long MIN_PASS_TIME = 100 * 1000000L;
+
+
+	// =========================================
+	// Public Interfaces
+	// =========================================
+
+	/**
+	 * Told when the replay is over.
+	 */
+	public interface Listener {
+		/**
+		 * Called from the player thread when the replay has ended.
+		 * 
+		 * @param player The player that finished.
+		 * @param e The reason the replay failed, or null if it ran to the end or was closed.
+		 */
+		void onFinished(ManeuverPlayer player, IOException e);
+	}
+
+
+	// =========================================
+	// Private Members
+	// =========================================
+
+	private volatile boolean run = true;
+
+	// The recording to replay.
+	private final File mFile;
+
+	// The cars to control.
+	private final CarFleet mFleet;
+
+	// The factor to divide recorded times by.
+	private final float mSpeed;
+
+	// Whether to start over at the end.
+	private final boolean mLoop;
+
+	// Who to tell when the replay is over, or null.
+	private final Listener mListener;
+
+	// Statistics.
+	private volatile int mCount;
+	private volatile long mLatenessMax;
+	private volatile long mLatenessTotal;
+
+
+	// =========================================
+	// Public Methods
+	// =========================================
+
+	/**
+	 * Create and start a new player.
+	 * 
+	 * @param file The recording to replay.
+	 * @param fleet The cars to control.
+	 * @param speed The speed to replay at, e.g. 2 for twice as fast as recorded.
+	 * @param loop true to start over from the beginning at the end.
+	 * @param listener Who to tell when the replay is over, or null.
+	 */
+	public ManeuverPlayer(File file, CarFleet fleet, float speed, boolean loop, Listener listener) {
+		super("Maneuver player");
+		if (!(speed > 0)) {
+			throw new IllegalArgumentException("Invalid speed: " + speed);
+		}
+		setDaemon(true);
+		setPriority(Thread.MAX_PRIORITY);
+		mFile = file;
+		mFleet = fleet;
+		mSpeed = speed;
+		mLoop = loop;
+		mListener = listener;
+		this.start();
+	}
+
+	/**
+	 * @return The number of transitions applied.
+	 */
+	public int getCount() {
+		return mCount;
+	}
+
+	/**
+	 * @return The longest time (in ns) from a transition being due until it was applied.
+	 */
+	public long getLatenessMax() {
+		return mLatenessMax;
+	}
+
+	/**
+	 * @return The average time (in ns) from a transition being due until it was applied.
+	 */
+	public long getLatenessAverage() {
+		int count = mCount;
+		return (count > 0 ? mLatenessTotal / count : 0);
+	}
+
+	public void run() {
+		IOException error = null;
+		try {
+			do {
+				long start = System.nanoTime();
+				int applied;
+				InputStream input = new BufferedInputStream(new FileInputStream(mFile));
+				try {
+					applied = mPlay(input);
+				} finally {
+					input.close();
+				}
+				if (mLoop && run) {
+					if (applied == 0) {
+						throw new IOException("Nothing to loop in: " + mFile);
+					}
+					mWaitUntil(start + MIN_PASS_TIME);
+				}
+			} while (run && mLoop);
+		} catch (IOException e) {
+			error = e;
+		}
+		mFleet.stopAll();
+		if (mListener != null) {
+			mListener.onFinished(this, error);
+		}
+	}
+
+	/**
+	 * Stop the replay, and with it the cars.
+	 */
+	public void close() {
+		run = false;
+		LockSupport.unpark(this);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String host = "127.0.0.1";
+		int port = 10100;
+		float speed = 1;
+		boolean loop = false;
+		String file = null;
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("-h")) {
+				host = args[++i];
+			} else if (arg.equals("-p")) {
+				port = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-s")) {
+				speed = Float.parseFloat(args[++i]);
+			} else if (arg.equals("-l")) {
+				loop = true;
+			} else if (file == null && !arg.startsWith("-")) {
+				file = arg;
+			} else {
+				file = null;
+				break;
+			}
+		}
+		if (file == null) {
+			System.err.println("Usage: ManeuverPlayer [-h host] [-p port] [-s speed] [-l] file");
+			System.exit(1);
+		}
+		CarFleet fleet = new CarFleet(1);
+		fleet.add(new SocketTransport(host, port));
+		while (fleet.getTargetStatus() != Car100.STATUS_READY) {
+			Thread.sleep(100);
+		}
+		ManeuverPlayer player = new ManeuverPlayer(new File(file), fleet, speed, loop, new Listener() {
+			@Override
+			public void onFinished(ManeuverPlayer player, IOException e) {
+				if (e != null) {
+					System.err.println("Replay failed: " + e);
+				}
+			}
+		});
+		player.join();
+		System.out.println("Replayed " + player.getCount() + " transitions, " +
+				(player.getLatenessAverage() / 1000) + " us late on average, " +
+				(player.getLatenessMax() / 1000) + " us at most.");
+		fleet.close();
+	}
+
+
+	// =========================================
+	// Helper Methods
+	// =========================================
+
+	/* Replay one pass of the recording, and return the number of transitions applied. */
+	private int mPlay(InputStream input) throws IOException {
+		byte[] magic = new byte[ManeuverRecorder.MAGIC.length];
+		for (int i = 0; i < magic.length; i++) {
+			if (input.read() != ManeuverRecorder.MAGIC[i]) {
+				throw new IOException("Not a maneuver recording: " + mFile);
+			}
+		}
+
+		long due = System.nanoTime();
+		int applied = 0;
+		int delta;
+		while (run && (delta = mReadDelta(input)) >= 0) {
+			int state = input.read();
+			if (state < 0) {
+				throw new EOFException("Truncated recording: " + mFile);
+			}
+			due += (long)(delta * 1000L / mSpeed);
+			long remaining = due - System.nanoTime();
+			while (run && remaining > SPIN_THRESHOLD) {
+				LockSupport.parkNanos(this, remaining - SPIN_THRESHOLD);
+				remaining = due - System.nanoTime();
+			}
+			while (run && remaining > 0) {
+				Thread.yield();
+				remaining = due - System.nanoTime();
+			}
+			if (!run) {
+				break;
+			}
+
+			mFleet.setGear(ManeuverRecorder.unpackGear(state));
+			mFleet.setDir(ManeuverRecorder.unpackDir(state));
+			mFleet.setAcc(ManeuverRecorder.unpackAcc(state));
+
+			long lateness = -remaining;
+			applied++;
+			mCount++;
+			mLatenessTotal += lateness;
+			if (lateness > mLatenessMax) {
+				mLatenessMax = lateness;
+			}
+		}
+		return applied;
+	}
+
+	/* Wait until a time (System.nanoTime()), or until closed. */
+	private void mWaitUntil(long time) {
+		long remaining;
+		while (run && (remaining = time - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(this, remaining);
+		}
+	}
+
+	/* Read the time (in us) before the next record, or -1 at the end of the recording. */
+	private int mReadDelta(InputStream input) throws IOException {
+		long delta = 0;
+		for (int shift = 0; ; shift += 7) {
+			int b = input.read();
+			if (b < 0) {
+				if (shift == 0) {
+					return -1;
+				}
+				throw new EOFException("Truncated recording: " + mFile);
+			}
+			if (shift > 28) {
+				throw new IOException("Corrupt recording: " + mFile);
+			}
+			delta |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return (int)Math.min(delta, Integer.MAX_VALUE);
+			}
+		}
+	}
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package nu.firetech.android.remote100.backend;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records the controls written to the cars, for replay with a ManeuverPlayer.
+ * 
+ * The controls are those actually written to one of the targeted cars of a
+ * CarFleet, once for the whole fleet, as reported by its CommandScheduler.
+ * Input merged or held back to the command rate, or dropped while the car
+ * wasn't ready, is thus not recorded, and neither are the in-between
+ * states of the separate calls setting direction, acceleration and gear.
+ * Repeats of the last state reported are dropped. Like the TrafficJournal,
+ * record() never waits for the disk: it only claims a slot in a ring
+ * buffer allocated up front, without taking a lock, and stores the time
+ * and state there. If the buffer is full the transition is dropped and
+ * counted instead. A flusher thread empties the buffer to the output every
+ * FLUSH_INTERVAL, or as soon as it's half full.
+ * 
+ * The format is a MAGIC header followed by one record per transition: the
+ * time (in us) since the previous record as an unsigned LEB128 varint,
+ * then the state packed into one byte by pack(). A transition thus takes
+ * two to four bytes, and a recording is read one record at a time, however
+ * long it is.
+ */
+public class ManeuverRecorder {
+	// =========================================
+	// Public Constants
+	// =========================================
+
+	// The first bytes of a recording.
+	public static final byte[] MAGIC = { 'R', '1', '0', '0', 'M', 1 };
+
+
+	// =========================================
+	// Private Constants
+	// =========================================
+
+	// The number of transitions the ring buffer holds.
+	private static final int CAPACITY = 1024;
+
+	// The longest time (in ns) transitions may stay in the buffer.
+	private static final long FLUSH_INTERVAL = 250 * 1000000L;
+
+
+	// =========================================
+	// Private Members
+	// =========================================
+
+	// Where to write the recording.
+	private final OutputStream mOutput;
+
+	// What to time transitions by, or null for System.nanoTime().
+	private final Clock mClock;
+
+	// The time (System.nanoTime(), or mClock's) the recorder was created.
+	private final long mStart;
+
+	// The ring buffer of transitions, each the time (in us since mStart)
+	// shifted left 8 bits, or'ed with the packed state. A slot is 0 when
+	// free, which no transition is, as the gear is never 0.
+	private final AtomicLongArray mRing = new AtomicLongArray(CAPACITY);
+
+	// The position of the first slot not yet claimed, and of the first not
+	// yet flushed (only moved by the flusher).
+	private final AtomicLong mHead = new AtomicLong();
+	private volatile long mTail = 0;
+
+	// The last state reported, packed by pack(), or -1 if none.
+	private final AtomicInteger mLast = new AtomicInteger(-1);
+
+	// Set if writing failed, or the recorder is closed.
+	private volatile boolean mClosed = false;
+
+	// Empties the buffer to the output.
+	private final Flusher mFlusher;
+
+	// Statistics.
+	private volatile int mCount;
+	private final AtomicInteger mDropped = new AtomicInteger();
+
+
+	// =========================================
+	// Public Methods
+	// =========================================
+
+	/**
+	 * Create a new recorder, write the header and start the flusher.
+	 * 
+	 * @param output Where to write the recording, closed by close().
+	 */
+	public ManeuverRecorder(OutputStream output) throws IOException {
+		this(output, null);
+	}
+
+	/**
+	 * Create a new recorder timing transitions by a clock, e.g. a VirtualClock.
+	 * 
+	 * @param output Where to write the recording, closed by close().
+	 * @param clock What to time transitions by, or null for real time.
+	 */
+	/* package */ ManeuverRecorder(OutputStream output, Clock clock) throws IOException {
+		mOutput = new BufferedOutputStream(output);
+		mOutput.write(MAGIC);
+		mClock = clock;
+		mStart = mNow();
+		mFlusher = new Flusher();
+		mFlusher.start();
+	}
+
+	/**
+	 * Record that the cars have been told to be in a new state.
+	 * 
+	 * Safe to call from any thread, and never blocks.
+	 * 
+	 * @param dir One of Car100.DIR_*.
+	 * @param acc One of Car100.ACC_*.
+	 * @param gear The gear, in the range [1, 3].
+	 */
+	public void record(byte dir, byte acc, byte gear) {
+		int state = pack(dir, acc, gear);
+		if (mClosed || mLast.getAndSet(state) == state) {
+			return;
+		}
+		long entry = (((mNow() - mStart) / 1000) << 8) | state;
+		long pos;
+		do {
+			pos = mHead.get();
+			if (pos - mTail >= CAPACITY) {
+				mDropped.incrementAndGet();
+				return;
+			}
+		} while (!mHead.compareAndSet(pos, pos + 1));
+		mRing.lazySet(mIndex(pos), entry);
+		if (pos - mTail >= CAPACITY / 2) {
+			LockSupport.unpark(mFlusher);
+		}
+	}
+
+	/**
+	 * @return The number of transitions recorded.
+	 */
+	public int getCount() {
+		return mCount;
+	}
+
+	/**
+	 * @return The number of transitions dropped, as the buffer was full.
+	 */
+	public int getDropped() {
+		return mDropped.get();
+	}
+
+	/**
+	 * Write what is left in the buffer, stop recording and close the output.
+	 * 
+	 * @throws IOException If writing the recording failed at any point.
+	 */
+	public void close() throws IOException {
+		mClosed = true;
+		LockSupport.unpark(mFlusher);
+		try {
+			mFlusher.join();
+		} catch (InterruptedException e) {}
+		if (mFlusher.mError != null) {
+			throw mFlusher.mError;
+		}
+	}
+
+	/**
+	 * Pack a state into the byte stored per record.
+	 */
+	public static int pack(byte dir, byte acc, byte gear) {
+		return (dir + 1) | ((acc + 1) << 2) | (gear << 4);
+	}
+
+	public static byte unpackDir(int state) {
+		return (byte)((state & 0x03) - 1);
+	}
+
+	public static byte unpackAcc(int state) {
+		return (byte)(((state >> 2) & 0x03) - 1);
+	}
+
+	public static byte unpackGear(int state) {
+		return (byte)((state >> 4) & 0x03);
+	}
+
+
+	// =========================================
+	// Helper Methods
+	// =========================================
+
+	/* The current time (in ns). */
+	private long mNow() {
+		return (mClock != null ? mClock.nanoTime() : System.nanoTime());
+	}
+
+	private int mIndex(long pos) {
+		return (int)(pos % CAPACITY);
+	}
+
+	/* Writes the contents of the ring buffer to the output. */
+	private class Flusher extends Thread {
+		// The last state written, or -1 if none.
+		private int mWritten = -1;
+
+		// The time (in us since mStart) of the last record written.
+		private long mLastTime;
+
+		// The reason writing failed, or null.
+		private volatile IOException mError;
+
+		public Flusher() {
+			super("Maneuver recorder");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			boolean closed = false;
+			while (!closed) {
+				LockSupport.parkNanos(this, FLUSH_INTERVAL);
+				closed = mClosed;
+				try {
+					if (mDrain()) {
+						mOutput.flush();
+					}
+				} catch (IOException e) {
+					// Keep what we have, a broken recording must not disturb driving.
+					mError = e;
+					mClosed = true;
+					break;
+				}
+			}
+			try {
+				mOutput.close();
+			} catch (IOException e) {
+				if (mError == null) {
+					mError = e;
+				}
+			}
+		}
+
+		/* Write the transitions in the buffer, up to the first not stored yet. */
+		private boolean mDrain() throws IOException {
+			boolean written = false;
+			long pos = mTail;
+			while (pos < mHead.get()) {
+				int index = mIndex(pos);
+				long entry = mRing.get(index);
+				if (entry == 0) {
+					// Claimed, but not stored yet, it's next in line the next time.
+					break;
+				}
+				mRing.set(index, 0);
+				mTail = ++pos;
+
+				int state = (int)(entry & 0xFF);
+				if (state == mWritten) {
+					continue;
+				}
+				// Transitions from different threads may be stored slightly out of order.
+				long time = entry >>> 8;
+				long delta = (mWritten < 0 ? 0 : Math.max(0, time - mLastTime));
+				while (delta >= 0x80) {
+					mOutput.write((int)(delta & 0x7F) | 0x80);
+					delta >>>= 7;
+				}
+				mOutput.write((int)delta);
+				mOutput.write(state);
+				mWritten = state;
+				mLastTime = Math.max(mLastTime, time);
+				mCount++;
+				written = true;
+			}
+			return written;
+		}
+	}
+}
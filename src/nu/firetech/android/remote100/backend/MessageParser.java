@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.io.IOException;
+
+/**
+ * Incremental parser for input from the car.
+ *
+ * Input is fed in chunks as it arrives and framed into lines (ended by CR
+ * and/or LF) in a reusable buffer. Each complete, non-empty line is matched
+ * against the known messages on its raw bytes and reported as exactly one
+ * message to the listener, so a message split over several reads is never
+ * missed. Nothing is allocated while parsing.
+ */
+/* package */ class MessageParser {
+	// =========================================
+	// Public Constants
+	// =========================================
+
+	// Possible messages.
+	public static final int MSG_OTHER		= 0;
+	public static final int MSG_CHARGING	= 1;
+	public static final int MSG_SPEED		= 2;
+	public static final int MSG_CHARGE_FULL	= 3;
+	public static final int MSG_REPLY		= 4;
+
+
+	// =========================================
+	// Private Constants
+	// =========================================
+
+	// The input which says that the car is charging.
+	private static final byte[] CAR_CHARGING	= ascii("Charging");
+	// The input which says that the car is in driving mode.
+	private static final byte[] CAR_SPEED		= ascii("Speed=2");
+	// The input which says that the car is fully charged.
+	private static final byte[] CAR_CHARGE_FULL	= ascii("Ready");
+	// The car's answers to a command from us.
+	private static final byte[] CAR_OK			= ascii("OK");
+	private static final byte[] CAR_ERROR		= ascii("ERROR");
+
+	// The longest line we care about, anything beyond this is ignored.
+	private static final int MAX_LINE_LENGTH = 128;
+
+	private static final byte CR = 13;
+	private static final byte LF = 10;
+
+
+	// =========================================
+	// Public Interfaces
+	// =========================================
+
+	/**
+	 * Receives the messages found by the parser.
+	 */
+	public interface Listener {
+		/**
+		 * Called once for each complete line of input.
+		 * 
+		 * @param message One of the MSG_* constants.
+		 */
+		void onMessage(int message) throws IOException;
+	}
+
+
+	// =========================================
+	// Private Members
+	// =========================================
+
+	// The listener to report messages to.
+	private final Listener mListener;
+
+	// The line currently being received.
+	private final byte[] mLine = new byte[MAX_LINE_LENGTH];
+
+	// The number of bytes in mLine.
+	private int mLength = 0;
+
+
+	// =========================================
+	// Public Methods
+	// =========================================
+
+	public MessageParser(Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Feed a chunk of input to the parser.
+	 * 
+	 * The listener is called for every line completed by this chunk. Any
+	 * trailing partial line is kept until the next call.
+	 * 
+	 * @param buffer The buffer holding the input.
+	 * @param offset The offset of the first byte of input in the buffer.
+	 * @param length The number of bytes of input.
+	 */
+	public void feed(byte[] buffer, int offset, int length) throws IOException {
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			byte b = buffer[i];
+			if (b == CR || b == LF) {
+				if (mLength > 0) {
+					int message = match();
+					mLength = 0;
+					mListener.onMessage(message);
+				}
+			} else if (mLength < MAX_LINE_LENGTH) {
+				mLine[mLength++] = b;
+			}
+		}
+	}
+
+	/**
+	 * Discard any partially received line.
+	 */
+	public void reset() {
+		mLength = 0;
+	}
+
+
+	// =========================================
+	// Helper Methods
+	// =========================================
+
+	/* Find out which message the current line holds. */
+	private int match() {
+		if (contains(CAR_SPEED)) {
+			return MSG_SPEED;
+		} else if (contains(CAR_CHARGING)) {
+			return MSG_CHARGING;
+		} else if (contains(CAR_CHARGE_FULL)) {
+			return MSG_CHARGE_FULL;
+		} else if (equals(CAR_OK) || equals(CAR_ERROR)) {
+			return MSG_REPLY;
+		}
+		return MSG_OTHER;
+	}
+
+	/* Check if the current line contains the given token. */
+	private boolean contains(byte[] token) {
+		int last = mLength - token.length;
+		outer:
+		for (int i = 0; i <= last; i++) {
+			for (int j = 0; j < token.length; j++) {
+				if (mLine[i + j] != token[j]) {
+					continue outer;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/* Check if the current line is exactly the given token. */
+	private boolean equals(byte[] token) {
+		return mLength == token.length && contains(token);
+	}
+
+	/* Convert a constant to its raw bytes. */
+	private static byte[] ascii(String str) {
+		byte[] bytes = new byte[str.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte)str.charAt(i);
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency and traffic statistics for the link to the car.
+ * 
+ * Each stage of the control path timestamps its work with System.nanoTime()
+ * and the time between stages ends up in fixed-bucket histograms:
+ * 
+ * * Input to wire - from the input that changed a command being posted
+ *   (e.g. in JoystickListener.onMoved(), or when the sensor event behind a
+ *   tilt or the gamepad sample behind a stick move happened) to the frame
+ *   leaving the scheduler. Also kept per kind of input (INPUT_*), to
+ *   compare them.
+ * * Line to screen - from a status line arriving from the car to the
+ *   status being shown by the UI.
+ * * Loss to ready - from a car that was ready losing its link to it being
+ *   ready again.
+ * * Probe RTT - from a heartbeat probe being sent to the car answering it.
+ * * Start to frame - from the activity being started or resumed (or the
+ *   process, on a cold start) to its first frame being drawn.
+ * * Start to ready - from the same point to the targeted cars being shown
+ *   as ready to drive.
+ * 
+ * Nothing here allocates or blocks, so it's cheap enough to always be on.
+ */
+public final class Metrics {
+	// =========================================
+	// Public Constants
+	// =========================================
+
+	// Kinds of input.
+	public static final int INPUT_TOUCH		= 0;
+	public static final int INPUT_TILT		= 1;
+	public static final int INPUT_GAMEPAD	= 2;
+	public static final int INPUT_NETWORK	= 3;
+
+
+	// =========================================
+	// Private Members
+	// =========================================
+
+	private static final LatencyHistogram sInputToWire = new LatencyHistogram("Input -> wire");
+	private static final LatencyHistogram[] sSourceToWire = {
+		new LatencyHistogram("Touch -> wire"),
+		new LatencyHistogram("Tilt -> wire"),
+		new LatencyHistogram("Pad -> wire"),
+		new LatencyHistogram("Net -> wire"),
+	};
+	private static final LatencyHistogram sLineToScreen = new LatencyHistogram("Line -> screen");
+	private static final LatencyHistogram sLossToReady = new LatencyHistogram("Loss -> ready");
+	private static final LatencyHistogram sProbeRtt = new LatencyHistogram("Probe RTT");
+	private static final LatencyHistogram sStartToFrame = new LatencyHistogram("Start -> frame");
+	private static final LatencyHistogram sStartToReady = new LatencyHistogram("Start -> ready");
+
+	private static final AtomicLong sCommandsSent = new AtomicLong();
+	private static final AtomicLong sInputsSuppressed = new AtomicLong();
+	private static final AtomicLong sBytesIn = new AtomicLong();
+	private static final AtomicLong sBytesOut = new AtomicLong();
+	private static final AtomicLong sProbes = new AtomicLong();
+	private static final AtomicLong sReconnects = new AtomicLong();
+	private static final AtomicLong sStateContention = new AtomicLong();
+	private static final AtomicLong sLateStops = new AtomicLong();
+
+	// The time (System.nanoTime()) of the oldest input not yet on the wire, or 0.
+	private static final AtomicLong sPendingInput = new AtomicLong();
+
+	// The kind of that input.
+	private static volatile int sPendingSource = INPUT_TOUCH;
+
+	// The time (System.nanoTime()) of the status line not yet on screen, or 0.
+	private static final AtomicLong sPendingStatus = new AtomicLong();
+
+
+	// =========================================
+	// Public Methods
+	// =========================================
+
+	private Metrics() {}
+
+	/**
+	 * An input changed what should be sent to the car.
+	 * 
+	 * Only to be called from one thread, the ControlLoop.
+	 * 
+	 * @param posted The time (System.nanoTime()) the input was posted.
+	 * @param source The kind of input, one of INPUT_*.
+	 */
+	public static void inputChanged(long posted, int source) {
+		if (sPendingInput.get() == 0) {
+			// Only this thread sets it, so it stays free until the CAS below.
+			sPendingSource = source;
+			sPendingInput.compareAndSet(0, posted);
+		}
+	}
+
+	/**
+	 * An input didn't change anything, and was dropped.
+	 */
+	public static void inputSuppressed() {
+		sInputsSuppressed.incrementAndGet();
+	}
+
+	/**
+	 * A command frame was written to the car.
+	 * 
+	 * @param bytes The size of the frame.
+	 */
+	public static void commandWritten(int bytes) {
+		sCommandsSent.incrementAndGet();
+		sBytesOut.addAndGet(bytes);
+		long posted = sPendingInput.getAndSet(0);
+		if (posted != 0) {
+			long latency = System.nanoTime() - posted;
+			sInputToWire.record(latency);
+			sSourceToWire[sPendingSource].record(latency);
+		}
+	}
+
+	/**
+	 * An answer or other protocol frame was written to the car.
+	 * 
+	 * @param bytes The size of the frame.
+	 */
+	public static void protocolWritten(int bytes) {
+		sBytesOut.addAndGet(bytes);
+	}
+
+	/**
+	 * A heartbeat probe was written to the car.
+	 * 
+	 * @param bytes The size of the frame.
+	 */
+	public static void probeWritten(int bytes) {
+		sProbes.incrementAndGet();
+		sBytesOut.addAndGet(bytes);
+	}
+
+	/**
+	 * The car answered a heartbeat probe.
+	 * 
+	 * @param rtt The time (in ns) from sending the probe to the answer.
+	 */
+	public static void probeAnswered(long rtt) {
+		sProbeRtt.record(rtt);
+	}
+
+	/**
+	 * Input was received from the car.
+	 * 
+	 * @param bytes The number of bytes received.
+	 */
+	public static void bytesReceived(int bytes) {
+		sBytesIn.addAndGet(bytes);
+	}
+
+	/**
+	 * A line from the car changed the status.
+	 * 
+	 * @param received The time (System.nanoTime()) the line was received.
+	 */
+	public static void statusReceived(long received) {
+		sPendingStatus.compareAndSet(0, received);
+	}
+
+	/**
+	 * The UI has shown the latest status.
+	 */
+	public static void statusShown() {
+		long received = sPendingStatus.getAndSet(0);
+		if (received != 0) {
+			sLineToScreen.record(System.nanoTime() - received);
+		}
+	}
+
+	/**
+	 * The link was connected again after having been lost.
+	 */
+	public static void reconnected() {
+		sReconnects.incrementAndGet();
+	}
+
+	/**
+	 * A change to a car's state had to be retried, as another thread changed it first.
+	 */
+	public static void stateContended() {
+		sStateContention.incrementAndGet();
+	}
+
+	/**
+	 * A STOP was written to a car, but later than CommandScheduler.STOP_LATENCY_BOUND.
+	 */
+	public static void stopLate() {
+		sLateStops.incrementAndGet();
+	}
+
+	/**
+	 * A car that had lost its link is ready again.
+	 * 
+	 * @param time The time (in ns) from the link being lost until now.
+	 */
+	public static void linkRestored(long time) {
+		sLossToReady.record(time);
+	}
+
+	/**
+	 * The first frame after a start has been drawn.
+	 * 
+	 * @param started The time (System.nanoTime()) of the start.
+	 * @return The time (in ns) it took.
+	 */
+	public static long startupFrame(long started) {
+		long time = System.nanoTime() - started;
+		sStartToFrame.record(time);
+		return time;
+	}
+
+	/**
+	 * The targeted cars have been shown as ready after a start.
+	 * 
+	 * @param started The time (System.nanoTime()) of the start.
+	 * @return The time (in ns) it took.
+	 */
+	public static long startupReady(long started) {
+		long time = System.nanoTime() - started;
+		sStartToReady.record(time);
+		return time;
+	}
+
+	public static LatencyHistogram getInputToWire() {
+		return sInputToWire;
+	}
+
+	/**
+	 * @param source The kind of input, one of INPUT_*.
+	 * @return The input to wire latencies of that kind of input.
+	 */
+	public static LatencyHistogram getInputToWire(int source) {
+		return sSourceToWire[source];
+	}
+
+	public static LatencyHistogram getLineToScreen() {
+		return sLineToScreen;
+	}
+
+	public static LatencyHistogram getLossToReady() {
+		return sLossToReady;
+	}
+
+	public static LatencyHistogram getProbeRtt() {
+		return sProbeRtt;
+	}
+
+	public static LatencyHistogram getStartToFrame() {
+		return sStartToFrame;
+	}
+
+	public static LatencyHistogram getStartToReady() {
+		return sStartToReady;
+	}
+
+	public static long getCommandsSent() {
+		return sCommandsSent.get();
+	}
+
+	public static long getInputsSuppressed() {
+		return sInputsSuppressed.get();
+	}
+
+	public static long getBytesIn() {
+		return sBytesIn.get();
+	}
+
+	public static long getBytesOut() {
+		return sBytesOut.get();
+	}
+
+	public static long getProbes() {
+		return sProbes.get();
+	}
+
+	public static long getReconnects() {
+		return sReconnects.get();
+	}
+
+	public static long getStateContention() {
+		return sStateContention.get();
+	}
+
+	public static long getLateStops() {
+		return sLateStops.get();
+	}
+
+	/**
+	 * Forget everything recorded so far.
+	 */
+	public static void reset() {
+		sInputToWire.reset();
+		for (LatencyHistogram h : sSourceToWire) {
+			h.reset();
+		}
+		sLineToScreen.reset();
+		sLossToReady.reset();
+		sProbeRtt.reset();
+		sStartToFrame.reset();
+		sStartToReady.reset();
+		sCommandsSent.set(0);
+		sInputsSuppressed.set(0);
+		sBytesIn.set(0);
+		sBytesOut.set(0);
+		sProbes.set(0);
+		sReconnects.set(0);
+		sStateContention.set(0);
+		sLateStops.set(0);
+		sPendingInput.set(0);
+		sPendingStatus.set(0);
+	}
+
+	/**
+	 * Append a short summary, suitable for an on-screen overlay.
+	 * 
+	 * @param sb Where to append the summary.
+	 */
+	public static void format(StringBuilder sb) {
+		sInputToWire.format(sb);
+		sb.append('\n');
+		for (LatencyHistogram h : sSourceToWire) {
+			// Only the kinds of input in use.
+			if (h.getCount() > 0) {
+				h.format(sb);
+				sb.append('\n');
+			}
+		}
+		sLineToScreen.format(sb);
+		sb.append('\n');
+		sLossToReady.format(sb);
+		sb.append('\n');
+		sProbeRtt.format(sb);
+		sb.append('\n');
+		sStartToFrame.format(sb);
+		sb.append('\n');
+		sStartToReady.format(sb);
+		sb.append("\nSent: ").append(getCommandsSent())
+		.append(" (").append(getInputsSuppressed()).append(" suppressed)")
+		.append(" In: ").append(getBytesIn()).append(" B")
+		.append(" Out: ").append(getBytesOut()).append(" B")
+		.append("\nProbes: ").append(getProbes())
+		.append(" Reconnects: ").append(getReconnects())
+		.append(" State retries: ").append(getStateContention())
+		.append(" Late stops: ").append(getLateStops());
+	}
+
+	/**
+	 * Append everything, including the full histograms, for offline analysis.
+	 * 
+	 * @param sb Where to append the dump.
+	 */
+	public static void dump(StringBuilder sb) {
+		format(sb);
+		sb.append("\n\n# Input -> wire (upper bound in us, count)\n");
+		sInputToWire.formatBuckets(sb);
+		sb.append("\n# Touch -> wire (upper bound in us, count)\n");
+		sSourceToWire[INPUT_TOUCH].formatBuckets(sb);
+		sb.append("\n# Tilt -> wire (upper bound in us, count)\n");
+		sSourceToWire[INPUT_TILT].formatBuckets(sb);
+		sb.append("\n# Pad -> wire (upper bound in us, count)\n");
+		sSourceToWire[INPUT_GAMEPAD].formatBuckets(sb);
+		sb.append("\n# Net -> wire (upper bound in us, count)\n");
+		sSourceToWire[INPUT_NETWORK].formatBuckets(sb);
+		sb.append("\n# Line -> screen (upper bound in us, count)\n");
+		sLineToScreen.formatBuckets(sb);
+		sb.append("\n# Loss -> ready (upper bound in us, count)\n");
+		sLossToReady.formatBuckets(sb);
+		sb.append("\n# Probe RTT (upper bound in us, count)\n");
+		sProbeRtt.formatBuckets(sb);
+		sb.append("\n# Start -> frame (upper bound in us, count)\n");
+		sStartToFrame.formatBuckets(sb);
+		sb.append("\n# Start -> ready (upper bound in us, count)\n");
+		sStartToReady.formatBuckets(sb);
+	}
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Gives the on/off controls of the car proportional effect, by software PWM.
+ * 
+ * The CAR-100 only knows full throttle or none, and full lock or none. To
+ * get something in between, the engine presses and releases forward/reverse
+ * and left/right repeatedly, so that the key is held for a share (the duty
+ * cycle) of each period. The inertia of the car smooths this into a lower
+ * speed or a wider turn. The gear still sets the top speed, so each of the
+ * three gears gives its own range of speeds to pick from with the stick.
+ * 
+ * Each period is split into SLOTS slots, and a key is held for a whole
+ * number of slots. Every slot boundary is an edge where the key may change,
+ * so the slot length decides both how often commands are sent and how
+ * precisely the car follows them. It's therefore derived from the measured
+ * link delay of the targeted cars (see CarFleet.getLinkDelay()): a slot
+ * shorter than the time a command takes to reach the car would just queue
+ * up commands that arrive too late to make a difference. With at most two
+ * edges per control and period, less than one command per slot is sent on
+ * average, whatever the link. The slot is also kept long enough for those
+ * EDGES commands per period to stay within the command rate of the
+ * targeted cars (see CarFleet.getCommandRate()), so that the scheduler
+ * never has to merge edges away to hold the rate calibrated for the link;
+ * this takes precedence over MAX_SLOT.
+ * 
+ * Duty cycles near 0% or 100% are rounded to steady releases or presses,
+ * and steering edges are half a period out of phase with the throttle
+ * edges, to spread the commands out. Like the Watchdog, the thread runs at
+ * max priority and spins through the last part of each wait to keep the
+ * edges on time, and keeps track of how late they actually were.
+ */
+public class PwmEngine extends Thread {
+	// =========================================
+	// Public Constants
+	// =========================================
+
+	// The duty cycle for holding a key all the time.
+	public static final int FULL = 1000;
+
+
+	// =========================================
+	// Private Constants
+	// =========================================
+
+	// The number of slots per period, and so the number of duty cycle steps.
+	private static final int SLOTS = 8;
+
+	// The most edges per period: a press and a release for each control.
+	private static final int EDGES = 4;
+
+	// Bounds for the length (in ns) of a slot, by the link delay.
+	private static final long MIN_SLOT = 20 * 1000000L;
+	private static final long MAX_SLOT = 100 * 1000000L;
+
+	// The length (in ns) of a slot until the link delay has been measured.
+	private static final long DEFAULT_SLOT = 50 * 1000000L;
+
+	// How close to an edge (in ns) we stop parking and start spinning.
+	private static final long SPIN_THRESHOLD = 200 * 1000L;
+
+
+	// =========================================
+	// Private Members
+	// =========================================
+
+	private volatile boolean run = true;
+
+	// The cars to control.
+	private final CarFleet mFleet;
+
+	// The latest duty cycles, packed by mPack().
+	private volatile int mDuty = 0;
+
+	// The length (in ns) of the slots in the current period.
+	private volatile long mSlot = DEFAULT_SLOT;
+
+	// Statistics.
+	private volatile int mEdgeCount;
+	private volatile long mLatenessMax;
+	private volatile long mLatenessTotal;
+
+
+	// =========================================
+	// Public Methods
+	// =========================================
+
+	/**
+	 * Create and start a new PWM engine.
+	 * 
+	 * @param fleet The cars to control.
+	 */
+	public PwmEngine(CarFleet fleet) {
+		super("PWM engine");
+		setDaemon(true);
+		setPriority(Thread.MAX_PRIORITY);
+		mFleet = fleet;
+		this.start();
+	}
+
+	/**
+	 * Set the duty cycles, each in the range [-FULL, FULL].
+	 * 
+	 * A change takes effect right away instead of waiting for the next edge,
+	 * so that releasing the stick stops the car without delay.
+	 * 
+	 * @param acc Throttle, positive forward and negative in reverse.
+	 * @param dir Steering, positive to the right and negative to the left.
+	 */
+	public void setDuty(int acc, int dir) {
+		int duty = mPack(mClamp(acc), mClamp(dir));
+		if (duty != mDuty) {
+			mDuty = duty;
+			LockSupport.unpark(this);
+		}
+	}
+
+	/**
+	 * @return The length (in ns) of a PWM period.
+	 */
+	public long getPeriod() {
+		return mSlot * SLOTS;
+	}
+
+	/**
+	 * @return The number of slot edges passed.
+	 */
+	public int getEdgeCount() {
+		return mEdgeCount;
+	}
+
+	/**
+	 * @return The longest time (in ns) from an edge until it was acted on.
+	 */
+	public long getLatenessMax() {
+		return mLatenessMax;
+	}
+
+	/**
+	 * @return The average time (in ns) from an edge until it was acted on.
+	 */
+	public long getLatenessAverage() {
+		int count = mEdgeCount;
+		return (count > 0 ? mLatenessTotal / count : 0);
+	}
+
+	public void run() {
+		int slot = 0;
+		long edge = System.nanoTime();
+		while (run) {
+			if (slot == 0) {
+				mSlot = mSlotLength(mFleet.getLinkDelay(), mFleet.getCommandRate());
+			}
+			mApply(slot, mDuty);
+
+			// Wait for the next edge, or for the duty cycles to change.
+			long next = edge + mSlot;
+			int duty = mDuty;
+			long remaining = next - System.nanoTime();
+			while (run && remaining > SPIN_THRESHOLD && mDuty == duty) {
+				LockSupport.parkNanos(this, remaining - SPIN_THRESHOLD);
+				remaining = next - System.nanoTime();
+			}
+			if (!run || mDuty != duty) {
+				continue;
+			}
+			while (remaining > 0 && mDuty == duty) {
+				Thread.yield();
+				remaining = next - System.nanoTime();
+			}
+			if (remaining > 0) {
+				continue;
+			}
+
+			long lateness = -remaining;
+			mEdgeCount++;
+			mLatenessTotal += lateness;
+			if (lateness > mLatenessMax) {
+				mLatenessMax = lateness;
+			}
+			if (lateness > mSlot) {
+				// We fell behind, don't try to catch up.
+				next = System.nanoTime();
+			}
+			edge = next;
+			slot = (slot + 1) % SLOTS;
+		}
+		mFleet.setAcc(Car100.ACC_STOP);
+		mFleet.setDir(Car100.DIR_STRAIGHT);
+	}
+
+	/**
+	 * Stop the engine, and with it the targeted cars.
+	 */
+	public void close() {
+		run = false;
+		LockSupport.unpark(this);
+	}
+
+
+	// =========================================
+	// Helper Methods
+	// =========================================
+
+	/* Set the keys of the targeted cars for the given slot of the period. */
+	private void mApply(int slot, int duty) {
+		int acc = mUnpackAcc(duty);
+		int dir = mUnpackDir(duty);
+		boolean accHeld = slot < mSlotsHeld(acc);
+		boolean dirHeld = (slot + SLOTS / 2) % SLOTS < mSlotsHeld(dir);
+		mFleet.setAcc(!accHeld ? Car100.ACC_STOP : (acc > 0 ? Car100.ACC_FORWARD : Car100.ACC_REVERSE));
+		mFleet.setDir(!dirHeld ? Car100.DIR_STRAIGHT : (dir > 0 ? Car100.DIR_RIGHT : Car100.DIR_LEFT));
+	}
+
+	/* The number of slots per period a key is held for the given duty cycle. */
+	private static int mSlotsHeld(int duty) {
+		return (Math.abs(duty) * SLOTS + FULL / 2) / FULL;
+	}
+
+	/* The slot length to use with the given link delay (in ns, or -1 if unknown) and command rate (or 0 if unlimited). */
+	private static long mSlotLength(long delay, int rate) {
+		long slot = (delay < 0 ? DEFAULT_SLOT : Math.max(MIN_SLOT, Math.min(MAX_SLOT, delay)));
+		if (rate > 0) {
+			// EDGES commands in SLOTS slots, at no more than rate per second.
+			slot = Math.max(slot, (EDGES * 1000000000L + SLOTS * rate - 1) / (SLOTS * rate));
+		}
+		return slot;
+	}
+
+	private static int mClamp(int duty) {
+		return Math.max(-FULL, Math.min(FULL, duty));
+	}
+
+	private static int mPack(int acc, int dir) {
+		return (acc & 0xFFFF) | (dir << 16);
+	}
+
+	private static int mUnpackAcc(int duty) {
+		return (short)duty;
+	}
+
+	private static int mUnpackDir(int duty) {
+		return duty >> 16;
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The real, monotonic clock: System.nanoTime(), with timers run on a pool.
+ */
+public class RealClock implements Clock {
+	private final ScheduledExecutorService pool;
+	
+	/**
+	 * @param pool Where to run the timers.
+	 */
+	public RealClock(ScheduledExecutorService pool) {
+		this.pool = pool;
+	}
+	
+	@Override
+	public long nanoTime() {
+		return System.nanoTime();
+	}
+	
+	@Override
+	public ScheduledFuture<?> schedule(Runnable task, long delay) {
+		return pool.schedule(task, delay, TimeUnit.NANOSECONDS);
+	}
+	
+	@Override
+	public ScheduledFuture<?> repeat(Runnable task, long period) {
+		return pool.scheduleWithFixedDelay(task, period, period, TimeUnit.NANOSECONDS);
+	}
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keeps a record of all traffic on the links to the cars, for reproducing
+ * problems seen in the field with a JournalReader.
+ * 
+ * Every chunk read from a car and every frame written to it (see
+ * JournalTransport) is appended, with a System.nanoTime() timestamp, to a
+ * ring buffer allocated up front. Appending only copies the bytes while
+ * holding the buffer lock, so the readers and the CommandScheduler never
+ * wait for the disk; if the buffer is full the record is dropped and
+ * counted instead. A flusher thread empties the buffer to a file every
+ * FLUSH_INTERVAL, or as soon as it's half full, and moves on to a new file
+ * when the current one has grown too big, deleting the oldest files to
+ * stay within the configured number.
+ * 
+ * A file starts with MAGIC, the wall clock time and the nanoTime() at the
+ * time it was created (8 bytes each), followed by records of HEADER_SIZE
+ * bytes: the nanoTime() (8 bytes), the type (IN, OUT or SOURCE), the
+ * source (1 byte) and the payload length (2 bytes), all big-endian, and
+ * then the payload. A SOURCE record names a source, its payload being the
+ * address of the car. Every file names all its sources, so each file can
+ * be read on its own.
+ */
+public class TrafficJournal {
+	// =========================================
+	// Public Constants
+	// =========================================
+
+	// The first bytes of a journal file.
+	public static final byte[] MAGIC = { 'R', '1', '0', '0', 'J', 1 };
+
+	// Record types.
+	public static final int IN		= 0;
+	public static final int OUT		= 1;
+	public static final int SOURCE	= 2;
+
+	// The size of a record, not counting the payload.
+	public static final int HEADER_SIZE = 12;
+
+	// The longest payload of a record, anything beyond it is cut off.
+	public static final int MAX_PAYLOAD = 0xFFFF;
+
+	// The names of journal files end with this.
+	public static final String SUFFIX = ".jnl";
+
+
+	// =========================================
+	// Private Constants
+	// =========================================
+
+	// The longest time (in ns) records may stay in the buffer.
+	private static final long FLUSH_INTERVAL = 250 * 1000000L;
+
+	// The most sources a journal can name.
+	private static final int MAX_SOURCES = 256;
+
+
+	// =========================================
+	// Public Classes
+	// =========================================
+
+	/**
+	 * Appends the traffic of one car to the journal.
+	 */
+	public final class Channel {
+		private final int mSource;
+
+		private Channel(int source) {
+			mSource = source;
+		}
+
+		/**
+		 * Record bytes read from the car.
+		 */
+		public void in(byte[] data, int offset, int length) {
+			mAppend(IN, mSource, data, offset, length);
+		}
+
+		/**
+		 * Record bytes written to the car.
+		 */
+		public void out(byte[] data, int offset, int length) {
+			mAppend(OUT, mSource, data, offset, length);
+		}
+	}
+
+
+	// =========================================
+	// Private Members
+	// =========================================
+
+	// The directory to write files to, and how many and how big they may be.
+	private final File mDir;
+	private final String mPrefix;
+	private final long mMaxFileSize;
+	private final int mMaxFiles;
+
+	// The ring buffer, and the positions of the first byte not yet written to
+	// it and the first byte not yet flushed. Guarded by mRing.
+	private final byte[] mRing;
+	private long mHead = 0;
+	private long mTail = 0;
+	private boolean mClosed = false;
+
+	// The addresses of the sources named so far, by source. Guarded by mRing.
+	private final List<String> mSources = new ArrayList<String>();
+
+	// Empties the buffer to disk.
+	private final Flusher mFlusher;
+
+	// Statistics.
+	private volatile long mRecords;
+	private volatile long mDropped;
+
+
+	// =========================================
+	// Public Methods
+	// =========================================
+
+	/**
+	 * Create a new journal, and start its flusher.
+	 * 
+	 * @param dir The directory to write files to.
+	 * @param prefix What the names of the files start with.
+	 * @param capacity The size (in bytes) of the ring buffer.
+	 * @param maxFileSize The size (in bytes) after which a new file is started.
+	 * @param maxFiles The number of files to keep, at least 1.
+	 */
+	public TrafficJournal(File dir, String prefix, int capacity, long maxFileSize, int maxFiles) {
+		if (capacity < HEADER_SIZE || maxFiles < 1) {
+			throw new IllegalArgumentException("Invalid journal size");
+		}
+		mDir = dir;
+		mPrefix = prefix;
+		mMaxFileSize = maxFileSize;
+		mMaxFiles = maxFiles;
+		mRing = new byte[capacity];
+		mFlusher = new Flusher();
+		mFlusher.start();
+	}
+
+	/**
+	 * Get a channel to record the traffic of a car through.
+	 * 
+	 * @param address The address of the car, see CarTransport.getAddress().
+	 * @return The channel, recording under the same source for each call with the same address.
+	 */
+	public Channel channel(String address) {
+		int source;
+		synchronized (mRing) {
+			source = mSources.indexOf(address);
+			if (source >= 0) {
+				return new Channel(source);
+			}
+			if (mSources.size() >= MAX_SOURCES) {
+				throw new IllegalStateException("Too many sources");
+			}
+			source = mSources.size();
+			mSources.add(address);
+		}
+		byte[] name = address.getBytes();
+		mAppend(SOURCE, source, name, 0, name.length);
+		return new Channel(source);
+	}
+
+	/**
+	 * @return The number of records appended.
+	 */
+	public long getRecords() {
+		return mRecords;
+	}
+
+	/**
+	 * @return The number of records dropped, as the buffer was full or flushing failed.
+	 */
+	public long getDropped() {
+		return mDropped;
+	}
+
+	/**
+	 * @return The reason flushing failed, or null if it hasn't.
+	 */
+	public IOException getError() {
+		return mFlusher.mError;
+	}
+
+	/**
+	 * Flush what is left in the buffer and stop journaling.
+	 */
+	public void close() {
+		synchronized (mRing) {
+			mClosed = true;
+		}
+		LockSupport.unpark(mFlusher);
+		try {
+			mFlusher.join();
+		} catch (InterruptedException e) {}
+	}
+
+
+	// =========================================
+	// Helper Methods
+	// =========================================
+
+	/* Append a record to the ring buffer, or drop it if there's no room. */
+	private void mAppend(int type, int source, byte[] data, int offset, int length) {
+		long time = System.nanoTime();
+		length = Math.min(length, MAX_PAYLOAD);
+		boolean wake;
+		synchronized (mRing) {
+			if (mClosed || HEADER_SIZE + length > mRing.length - (mHead - mTail)) {
+				mDropped++;
+				return;
+			}
+			long pos = mHead;
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				mRing[mIndex(pos++)] = (byte)(time >>> shift);
+			}
+			mRing[mIndex(pos++)] = (byte)type;
+			mRing[mIndex(pos++)] = (byte)source;
+			mRing[mIndex(pos++)] = (byte)(length >>> 8);
+			mRing[mIndex(pos++)] = (byte)length;
+			int index = mIndex(pos);
+			int first = Math.min(length, mRing.length - index);
+			System.arraycopy(data, offset, mRing, index, first);
+			System.arraycopy(data, offset + first, mRing, 0, length - first);
+			mHead = pos + length;
+			mRecords++;
+			wake = (mHead - mTail > mRing.length / 2);
+		}
+		if (wake) {
+			LockSupport.unpark(mFlusher);
+		}
+	}
+
+	private int mIndex(long pos) {
+		return (int)(pos % mRing.length);
+	}
+
+	/* Writes the contents of the ring buffer to disk. */
+	private class Flusher extends Thread {
+		// The copy of the buffer being written.
+		private final byte[] mChunk = new byte[mRing.length];
+
+		// The current file, and how much has been written to it.
+		private OutputStream mOutput;
+		private long mFileSize;
+
+		// The reason flushing failed, or null.
+		private volatile IOException mError;
+
+		public Flusher() {
+			super("Traffic journal");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			boolean closed = false;
+			while (!closed) {
+				LockSupport.parkNanos(this, FLUSH_INTERVAL);
+
+				int length;
+				synchronized (mRing) {
+					closed = mClosed;
+					length = (int)(mHead - mTail);
+					int index = mIndex(mTail);
+					int first = Math.min(length, mRing.length - index);
+					System.arraycopy(mRing, index, mChunk, 0, first);
+					System.arraycopy(mRing, 0, mChunk, first, length - first);
+					mTail = mHead;
+				}
+				if (length == 0 || mError != null) {
+					continue;
+				}
+				try {
+					if (mOutput == null || mFileSize >= mMaxFileSize) {
+						mRotate();
+					}
+					mOutput.write(mChunk, 0, length);
+					mFileSize += length;
+				} catch (IOException e) {
+					mError = e;
+					synchronized (mRing) {
+						mClosed = true;
+						mDropped += length;
+					}
+				}
+			}
+			if (mOutput != null) {
+				try {
+					mOutput.close();
+				} catch (IOException e) {}
+			}
+		}
+
+		/* Start a new file, and delete the oldest ones beyond mMaxFiles. */
+		private void mRotate() throws IOException {
+			if (mOutput != null) {
+				mOutput.close();
+				mOutput = null;
+			}
+			mDir.mkdirs();
+			String[] old = mDir.list(new FilenameFilter() {
+				@Override
+				public boolean accept(File dir, String name) {
+					return name.startsWith(mPrefix) && name.endsWith(SUFFIX);
+				}
+			});
+			if (old != null && old.length >= mMaxFiles) {
+				// The names contain the creation time, so they sort oldest first.
+				Arrays.sort(old);
+				for (int i = 0; i <= old.length - mMaxFiles; i++) {
+					new File(mDir, old[i]).delete();
+				}
+			}
+
+			mOutput = new FileOutputStream(new File(mDir, mPrefix + System.currentTimeMillis() + SUFFIX));
+			byte[] header = new byte[MAGIC.length + 16];
+			System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+			mPutLong(header, MAGIC.length, System.currentTimeMillis());
+			mPutLong(header, MAGIC.length + 8, System.nanoTime());
+			mOutput.write(header);
+			mFileSize = header.length;
+
+			// Name the sources again, so the file can be read on its own.
+			String[] sources;
+			synchronized (mRing) {
+				sources = mSources.toArray(new String[mSources.size()]);
+			}
+			for (int i = 0; i < sources.length; i++) {
+				byte[] name = sources[i].getBytes();
+				byte[] record = new byte[HEADER_SIZE + name.length];
+				mPutLong(record, 0, System.nanoTime());
+				record[8] = (byte)SOURCE;
+				record[9] = (byte)i;
+				record[10] = (byte)(name.length >>> 8);
+				record[11] = (byte)name.length;
+				System.arraycopy(name, 0, record, HEADER_SIZE, name.length);
+				mOutput.write(record);
+				mFileSize += record.length;
+			}
+		}
+
+		private void mPutLong(byte[] buffer, int offset, long value) {
+			for (int i = 0; i < 8; i++) {
+				buffer[offset + i] = (byte)(value >>> (56 - 8 * i));
+			}
+		}
+	}
+}
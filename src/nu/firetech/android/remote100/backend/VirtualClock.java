@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A clock that only moves when told to.
+ * 
+ * Time starts at ORIGIN and stands still until advance() is called, which
+ * moves it forward one due timer at a time, running each timer on the
+ * calling thread at exactly the time it was due. Timers due at the same
+ * time run in the order they were scheduled. Hours of heartbeats, reconnect
+ * back-offs and rate limits can thus be run through in milliseconds, with
+ * the same outcome every time.
+ * 
+ * Timers may be scheduled from any thread, but for runs to repeat exactly
+ * all the work must be driven from the thread calling advance().
+ * 
+ * A task that throws makes advance() throw the same, with time left at
+ * when the task ran, rather than having it swallowed by the timer. A
+ * repeated task that throws is not run again.
+ */
+public class VirtualClock implements Clock {
+	// =========================================
+	// Public Constants
+	// =========================================
+
+	// The time (in ns) the clock starts at. Not 0, which the backend uses for "never".
+	public static final long ORIGIN = 1000000000L;
+
+
+	// =========================================
+	// Private Members
+	// =========================================
+
+	// The current time (in ns).
+	private volatile long mNow = ORIGIN;
+
+	// The pending timers, the next one due first.
+	private final PriorityQueue<Timer> mTimers = new PriorityQueue<Timer>();
+
+	// The number of timers ever scheduled, to keep timers due at the same time in order.
+	private long mScheduled = 0;
+
+	// The number of timer runs so far.
+	private volatile long mRuns = 0;
+
+
+	// =========================================
+	// Public Methods
+	// =========================================
+
+	@Override
+	public long nanoTime() {
+		return mNow;
+	}
+
+	@Override
+	public ScheduledFuture<?> schedule(Runnable task, long delay) {
+		return mAdd(new Timer(task, 0), delay);
+	}
+
+	@Override
+	public ScheduledFuture<?> repeat(Runnable task, long period) {
+		if (period <= 0) {
+			throw new IllegalArgumentException("Invalid period: " + period);
+		}
+		return mAdd(new Timer(task, period), period);
+	}
+
+	/**
+	 * Move time forward, running the timers due on the way.
+	 * 
+	 * @param time The time (in ns) to move forward.
+	 * @throws RuntimeException Or Error, whatever a task run on the way threw.
+	 */
+	public void advance(long time) {
+		if (time < 0) {
+			throw new IllegalArgumentException("Time can't go backwards: " + time);
+		}
+		long end = mNow + time;
+		Timer timer;
+		while ((timer = mNext(end)) != null) {
+			timer.run();
+			mRethrow(timer);
+		}
+		synchronized (this) {
+			mNow = end;
+		}
+	}
+
+	/**
+	 * @return The number of timers waiting to run.
+	 */
+	public synchronized int getPending() {
+		return mTimers.size();
+	}
+
+	/**
+	 * @return The number of timer runs so far.
+	 */
+	public long getRuns() {
+		return mRuns;
+	}
+
+
+	// =========================================
+	// Helper Methods
+	// =========================================
+
+	/* Throw whatever a timer that has just run threw, if anything. */
+	private void mRethrow(Timer timer) {
+		// A repeated timer that ran fine isn't done, and one cancelled while running has nothing to tell.
+		if (!timer.isDone() || timer.isCancelled()) {
+			return;
+		}
+		try {
+			timer.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Error) {
+				throw (Error)cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			throw new RuntimeException(cause);
+		} catch (InterruptedException e) {
+			// Can't happen, the timer is done.
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/* Queue a timer to be due after the given delay (in ns). */
+	private synchronized Timer mAdd(Timer timer, long delay) {
+		timer.mDue = mNow + Math.max(delay, 0);
+		timer.mOrder = mScheduled++;
+		mTimers.add(timer);
+		return timer;
+	}
+
+	/* Take the next timer due at or before the given time, and move time to it. Returns null if there is none. */
+	private synchronized Timer mNext(long end) {
+		Timer timer;
+		while ((timer = mTimers.peek()) != null && timer.mDue - end <= 0) {
+			mTimers.poll();
+			if (!timer.isCancelled()) {
+				mNow = timer.mDue;
+				mRuns++;
+				return timer;
+			}
+		}
+		return null;
+	}
+
+	/* A pending run of a task. */
+	private final class Timer extends FutureTask<Object> implements ScheduledFuture<Object> {
+		// The time (in ns) the timer is due, and its place among timers due at the same time.
+		private long mDue;
+		private long mOrder;
+
+		// The time (in ns) between runs, or 0 to run once.
+		private final long mPeriod;
+
+		public Timer(Runnable task, long period) {
+			super(task, null);
+			mPeriod = period;
+		}
+
+		@Override
+		public void run() {
+			if (mPeriod == 0) {
+				super.run();
+			} else if (runAndReset()) {
+				mAdd(this, mPeriod);
+			}
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(mDue - mNow, TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			if (other == this) {
+				return 0;
+			}
+			if (other instanceof Timer) {
+				Timer timer = (Timer)other;
+				long diff = mDue - timer.mDue;
+				if (diff == 0) {
+					diff = mOrder - timer.mOrder;
+				}
+				return (diff < 0 ? -1 : (diff > 0 ? 1 : 0));
+			}
+			long diff = getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+			return (diff < 0 ? -1 : (diff > 0 ? 1 : 0));
+		}
+	}
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2011 Joakim Andersson
+ * 
+ * This file is part of Remote-100, an Android application to 
+ * control the Sony Ericsson CAR-100 accessory.
+ * 
+ * Remote-100 is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Remote-100 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package nu.firetech.android.remote100.backend;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Dead-man timer for the car.
+ * 
+ * While armed, the watchdog must be fed at least once per deadline. If it
+ * isn't, the listener is told to stop the car, once per missed deadline.
+ * The thread runs at max priority and spins through the last part of each
+ * wait to keep the firing jitter low, and keeps track of how often it has
+ * fired and how late after the deadline it actually managed to do so.
+ * 
+ * Given a Clock, e.g. a VirtualClock, no thread is started and the deadline
+ * is checked in timers on the clock instead, like an IoEngine on a clock.
+ */
+public class Watchdog extends Thread {
+	// =========================================
+	// Private Constants
+	// =========================================
+
+	// How close to the deadline (in ns) we stop parking and start spinning.
+	private static final long SPIN_THRESHOLD = 200 * 1000L;
+
+
+	// =========================================
+	// Public Interfaces
+	// =========================================
+
+	/**
+	 * Told when the watchdog hasn't been fed in time.
+	 */
+	public interface Listener {
+		/**
+		 * Called from the watchdog thread when the deadline has passed.
+		 */
+		void onExpired();
+	}
+
+
+	// =========================================
+	// Private Members
+	// =========================================
+
+	private volatile boolean run = true;
+
+	// What to time things by, or null for System.nanoTime() on the watchdog thread.
+	private final Clock mClock;
+
+	// The pending check on mClock, or null.
+	private volatile ScheduledFuture<?> mPending;
+
+	// Checks the deadline on mClock, and schedules the next check.
+	private final Runnable mCheckTask = new Runnable() {
+		@Override
+		public void run() {
+			mSchedule(mCheck());
+		}
+	};
+
+	// The longest time (in ns) allowed between two feeds.
+	private final long mDeadline;
+
+	// Who to tell when the deadline passes.
+	private final Listener mListener;
+
+	// Whether the deadline is enforced at all.
+	private volatile boolean mArmed = false;
+
+	// The time (System.nanoTime(), or mClock's) the watchdog was last fed.
+	private volatile long mLastFeed;
+
+	// The feed that the last firing was for, so we only fire once per miss.
+	private long mFired;
+
+	// Statistics.
+	private volatile int mFireCount;
+	private volatile long mLatenessMax;
+	private volatile long mLatenessTotal;
+
+
+	// =========================================
+	// Public Methods
+	// =========================================
+
+	/**
+	 * Create and start a new watchdog.
+	 * 
+	 * @param deadline The longest time (in ms) allowed between two feeds.
+	 * @param listener Who to tell when the deadline passes.
+	 */
+	public Watchdog(int deadline, Listener listener) {
+		this(null, deadline, listener);
+	}
+
+	/**
+	 * Create a new watchdog, checked on a clock rather than by its own thread if one is given.
+	 * 
+	 * A watchdog on a clock must be used from the thread running the clock's timers.
+	 * 
+	 * @param clock What to time things by, or null for real time on the watchdog thread.
+	 * @param deadline The longest time (in ms) allowed between two feeds.
+	 * @param listener Who to tell when the deadline passes.
+	 */
+	/* package */ Watchdog(Clock clock, int deadline, Listener listener) {
+		super("Watchdog");
+		if (deadline <= 0) {
+			throw new IllegalArgumentException("Invalid deadline: " + deadline);
+		}
+		setDaemon(true);
+		setPriority(Thread.MAX_PRIORITY);
+		mClock = clock;
+		mDeadline = deadline * 1000000L;
+		mListener = listener;
+		mLastFeed = mNow();
+		mFired = mLastFeed - 1;
+		if (clock == null) {
+			this.start();
+		}
+	}
+
+	/**
+	 * Reset the deadline, there has been fresh input.
+	 */
+	public void feed() {
+		mLastFeed = mNow();
+	}
+
+	/**
+	 * Enable or disable the deadline, e.g. depending on whether the car moves.
+	 * 
+	 * @param armed true if the deadline should be enforced.
+	 */
+	public void setArmed(boolean armed) {
+		if (mArmed != armed) {
+			if (armed) {
+				mLastFeed = mNow();
+			}
+			mArmed = armed;
+			if (mClock == null) {
+				LockSupport.unpark(this);
+			} else {
+				mSchedule(0);
+			}
+		}
+	}
+
+	/**
+	 * @return The number of times the watchdog has fired.
+	 */
+	public int getFireCount() {
+		return mFireCount;
+	}
+
+	/**
+	 * @return The longest time (in ns) from a deadline until the watchdog fired.
+	 */
+	public long getLatenessMax() {
+		return mLatenessMax;
+	}
+
+	/**
+	 * @return The average time (in ns) from a deadline until the watchdog fired.
+	 */
+	public long getLatenessAverage() {
+		int count = mFireCount;
+		return (count > 0 ? mLatenessTotal / count : 0);
+	}
+
+	public void run() {
+		while (run) {
+			long wait = mCheck();
+			if (wait < 0) {
+				LockSupport.park(this);
+			} else if (wait > SPIN_THRESHOLD) {
+				LockSupport.parkNanos(this, wait - SPIN_THRESHOLD);
+			} else {
+				long lastFeed = mLastFeed;
+				long deadline = System.nanoTime() + wait;
+				while (deadline - System.nanoTime() > 0 && mLastFeed == lastFeed) {
+					Thread.yield();
+				}
+			}
+		}
+	}
+
+	public void close() {
+		run = false;
+		if (mClock == null) {
+			LockSupport.unpark(this);
+		} else {
+			mSchedule(-1);
+		}
+	}
+
+
+	// =========================================
+	// Helper Methods
+	// =========================================
+
+	/* The current time (in ns). */
+	private long mNow() {
+		return (mClock != null ? mClock.nanoTime() : System.nanoTime());
+	}
+
+	/* Fire if the deadline has passed. Returns the time (in ns) until the next check is due, or -1 to wait for setArmed(). */
+	private long mCheck() {
+		if (!mArmed) {
+			return -1;
+		}
+		long lastFeed = mLastFeed;
+		if (lastFeed == mFired) {
+			// Already fired, wait for a feed.
+			return mDeadline;
+		}
+		long remaining = lastFeed + mDeadline - mNow();
+		if (remaining > 0) {
+			return remaining;
+		}
+
+		mListener.onExpired();
+		long lateness = -remaining;
+		mFired = lastFeed;
+		mFireCount++;
+		mLatenessTotal += lateness;
+		if (lateness > mLatenessMax) {
+			mLatenessMax = lateness;
+		}
+		return mDeadline;
+	}
+
+	/* Replace the pending check on the clock with one after a delay (in ns), or none if negative. */
+	private void mSchedule(long delay) {
+		ScheduledFuture<?> pending = mPending;
+		if (pending != null) {
+			pending.cancel(false);
+		}
+		mPending = (run && delay >= 0 ? mClock.schedule(mCheckTask, delay) : null);
+	}
+}